@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package nwaysettlement.benchmarks;
+
+import java.lang.reflect.Proxy;
+
+import org.voltdb.client.Client;
+
+/**
+ * A Client that accepts every call and does nothing, so we can time what
+ * happens before a call goes on the wire.
+ */
+public class NoOpClient {
+
+    public static Client create() {
+
+        return (Client) Proxy.newProxyInstance(Client.class.getClassLoader(), new Class<?>[] { Client.class },
+                (proxy, method, args) -> {
+
+                    final Class<?> returnType = method.getReturnType();
+
+                    if (returnType == boolean.class) {
+                        return true;
+                    } else if (returnType == long.class) {
+                        return 0L;
+                    } else if (returnType == int.class) {
+                        return 0;
+                    }
+
+                    return null;
+                });
+    }
+
+}
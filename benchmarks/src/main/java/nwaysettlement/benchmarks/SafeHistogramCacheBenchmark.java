@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package nwaysettlement.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.voltdb.voltutil.stats.SafeHistogramCache;
+
+import nwaysettlement.client.NWayCompoundTransaction;
+
+/**
+ * What every payment callback does to SafeHistogramCache, with 1, 8 and 32
+ * threads doing it at once. If the cache scales, throughput per thread stays
+ * roughly the same.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SafeHistogramCacheBenchmark {
+
+    SafeHistogramCache statsCache = SafeHistogramCache.getInstance();
+
+    private void recordPayment() {
+        statsCache.reportLatencyNanos("DONE", System.nanoTime(), "", NWayCompoundTransaction.HISTOGRAM_SIZE_MS);
+        statsCache.incCounter("Calls");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void oneThread() {
+        recordPayment();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void eightThreads() {
+        recordPayment();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public void thirtyTwoThreads() {
+        recordPayment();
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package nwaysettlement.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.voltdb.voltutil.stats.StatsHistogram;
+
+import nwaysettlement.client.NWayCompoundTransaction;
+
+/**
+ * Cost of recording a latency and of reading a percentile back.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StatsHistogramBenchmark {
+
+    private static final int SAMPLE_COUNT = 1 << 16;
+
+    StatsHistogram emptyHistogram;
+    StatsHistogram fullHistogram;
+    long[] samplesUs = new long[SAMPLE_COUNT];
+    int nextSample = 0;
+
+    @Setup
+    public void setup() {
+
+        emptyHistogram = new StatsHistogram("bench", NWayCompoundTransaction.HISTOGRAM_SIZE_MS);
+        fullHistogram = new StatsHistogram("bench", NWayCompoundTransaction.HISTOGRAM_SIZE_MS);
+
+        // Mostly sub-millisecond, with a long tail...
+        Random r = new Random(42);
+
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            samplesUs[i] = (long) Math.exp((r.nextGaussian() * 2) + 6);
+            fullHistogram.reportMicros(samplesUs[i], "");
+        }
+    }
+
+    @Benchmark
+    public void report() {
+        emptyHistogram.reportMicros(samplesUs[nextSample++ & (SAMPLE_COUNT - 1)], "");
+    }
+
+    @Benchmark
+    public long getLatencyPct() {
+        return fullHistogram.getLatencyPctMicros(99);
+    }
+
+}
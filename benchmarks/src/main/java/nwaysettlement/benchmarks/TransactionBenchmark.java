@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package nwaysettlement.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.voltdb.client.Client;
+
+import nwaysettlement.client.NWayCompoundTransaction;
+
+/**
+ * What it costs the client to build a payment and marshal its parameters,
+ * without the network. Run with '-prof gc' to see allocation per payment.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TransactionBenchmark {
+
+    @Param({ "2", "10", "100" })
+    int participants;
+
+    Client client;
+    Random r;
+    long txnId = 0;
+
+    @Setup
+    public void setup() {
+        client = NoOpClient.create();
+        r = new Random(42);
+    }
+
+    @Benchmark
+    public NWayCompoundTransaction construct() {
+
+        final long payerId = r.nextInt(1000000);
+        NWayCompoundTransaction newTran = new NWayCompoundTransaction(payerId, ++txnId, 10);
+
+        for (int j = 0; j < participants; j++) {
+            newTran.addPayee(payerId + 1 + j, r.nextInt(100));
+        }
+
+        return newTran;
+    }
+
+    @Benchmark
+    public NWayCompoundTransaction constructAndCreateTransactions() {
+
+        NWayCompoundTransaction newTran = construct();
+        newTran.createTransactions(client, txnId, System.nanoTime());
+
+        return newTran;
+    }
+
+    /**
+     * What LoadGenerator does. NoOpClient never calls back, so we release the
+     * transaction ourselves, as clientCallback would.
+     */
+    @Benchmark
+    public NWayCompoundTransaction pooledCreateTransactions() {
+
+        final long payerId = r.nextInt(1000000);
+        NWayCompoundTransaction newTran = NWayCompoundTransaction.acquire(payerId, ++txnId, 10);
+
+        for (int j = 0; j < participants; j++) {
+            newTran.addPayee(payerId + 1 + j, r.nextInt(100));
+        }
+
+        newTran.createTransactions(client, txnId, System.nanoTime());
+        newTran.release();
+
+        return newTran;
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package nwaysettlement.client;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.VoltBulkLoader.VoltBulkLoader;
+
+/**
+ * Creates user_balances rows using VoltDB's bulk loader, which batches rows by
+ * partition for us. Each thread has its own loader and its own range of
+ * userids. Clients that don't have a bulk loader get one UPSERT per row
+ * instead. Can be run on its own to set up accounts before a test, or called
+ * from TestClient.
+ */
+public class BalanceLoader {
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final int MAX_FAILURES_TO_REPORT = 10;
+
+    public static void main(String[] args) {
+        try {
+
+            if (args.length != 5) {
+                msg("Usage: hosts usercount offset balance threads");
+                msg("e.g.: localhost 100000000 0 1000000 8");
+                System.exit(1);
+            }
+
+            msg(Arrays.toString(args));
+
+            Client c = TestClient.connectVoltDB(args[0]);
+            int userCount = Integer.parseInt(args[1]);
+            int offset = Integer.parseInt(args[2]);
+            long balance = Long.parseLong(args[3]);
+            int threads = Integer.parseInt(args[4]);
+
+            load(c, userCount, offset, balance, threads);
+
+            c.drain();
+            c.close();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Upsert userCount balances, starting at userid offset.
+     *
+     * @param c
+     * @param userCount
+     * @param offset
+     * @param balance
+     * @param threadCount
+     * @return how many rows failed
+     * @throws InterruptedException
+     */
+    public static long load(Client c, int userCount, int offset, long balance, int threadCount)
+            throws InterruptedException {
+
+        msg("Create " + userCount + " balances on " + threadCount + " threads");
+
+        final long startMs = System.currentTimeMillis();
+        final AtomicLong failures = new AtomicLong();
+        final Date balanceDate = new Date();
+
+        Thread[] threads = new Thread[threadCount];
+        final int rangeSize = (userCount + threadCount - 1) / threadCount;
+
+        for (int t = 0; t < threadCount; t++) {
+
+            final int rangeStart = t * rangeSize;
+            final int rangeEnd = Math.min(userCount, rangeStart + rangeSize);
+
+            threads[t] = new Thread(() -> {
+
+                try {
+                    VoltBulkLoader bulkLoader = c.getNewBulkLoader("user_balances", BATCH_SIZE, true,
+                            (rowHandle, fieldList, response) -> {
+                                if (failures.incrementAndGet() <= MAX_FAILURES_TO_REPORT) {
+                                    msg("Balance " + rowHandle + " failed: " + response.getStatusString());
+                                }
+                            });
+
+                    if (bulkLoader == null) {
+                        // e.g. SettlementSimulator...
+                        loadOneAtATime(c, rangeStart, rangeEnd, offset, balance, balanceDate, failures);
+                        return;
+                    }
+
+                    for (int i = rangeStart; i < rangeEnd; i++) {
+
+                        bulkLoader.insertRow(i + offset, i + offset, balance, balanceDate);
+
+                        if (i % 1000000 == 1) {
+                            msg("On balance #" + i);
+                        }
+                    }
+
+                    bulkLoader.drain();
+                    bulkLoader.close();
+
+                } catch (Exception e) {
+                    msg("Balance loader failed: " + e.getMessage());
+                    failures.addAndGet(rangeEnd - rangeStart);
+                }
+
+            }, "BalanceLoader-" + t);
+
+            threads[t].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        final long elapsedMs = Math.max(1, System.currentTimeMillis() - startMs);
+
+        msg("Create " + userCount + " balances ...  done in " + elapsedMs + "ms, "
+                + ((userCount * 1000L) / elapsedMs) + " rows/sec, " + failures.get() + " failures");
+
+        return failures.get();
+    }
+
+    /**
+     * For clients that can't give us a bulk loader.
+     */
+    private static void loadOneAtATime(Client c, int rangeStart, int rangeEnd, int offset, long balance,
+            Date balanceDate, AtomicLong failures) throws Exception {
+
+        for (int i = rangeStart; i < rangeEnd; i++) {
+
+            c.callProcedure(response -> {
+                if (response.getStatus() != ClientResponse.SUCCESS
+                        && failures.incrementAndGet() <= MAX_FAILURES_TO_REPORT) {
+                    msg("Balance failed: " + response.getStatusString());
+                }
+            }, "user_balances.UPSERT", i + offset, balance, balanceDate);
+        }
+
+        c.drain();
+    }
+
+    /**
+     * Print a formatted message.
+     *
+     * @param message
+     */
+    public static void msg(String message) {
+        TestClient.msg(message);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package nwaysettlement.client;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ClientResponseWithPartitionKey;
+import org.voltdb.client.NoConnectionsException;
+import org.voltdb.client.ProcCallException;
+
+/**
+ * Gets the database ready for another run. Transactions and stats are
+ * truncated, not deleted. Balances can be saved once with 'snapshot' and put
+ * back before each run with 'restore', which is much faster than loading them
+ * again.
+ */
+public class BenchmarkReset {
+
+    public static void main(String[] args) {
+        try {
+
+            if (args.length != 2) {
+                msg("Usage: hosts none|snapshot|restore");
+                System.exit(1);
+            }
+
+            msg(Arrays.toString(args));
+
+            Client c = TestClient.connectVoltDB(args[0]);
+
+            if (!args[1].equalsIgnoreCase("snapshot") && !args[1].equalsIgnoreCase("restore")
+                    && !args[1].equalsIgnoreCase("none")) {
+                msg("Unknown balance option '" + args[1] + "'");
+                System.exit(1);
+            }
+
+            // Transactions go first. CompactBalancesTask folds DONE rows into
+            // user_balances, so if they're still there after a restore they
+            // get counted twice.
+            resetTransactions(c);
+
+            if (args[1].equalsIgnoreCase("snapshot")) {
+                snapshotBalances(c);
+            } else if (args[1].equalsIgnoreCase("restore")) {
+                restoreBalances(c);
+            }
+
+            c.drain();
+            c.close();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Remove all transactions and stats.
+     *
+     * @param c
+     * @throws IOException
+     * @throws NoConnectionsException
+     * @throws ProcCallException
+     */
+    public static void resetTransactions(Client c) throws IOException, NoConnectionsException, ProcCallException {
+
+        final long startMs = System.currentTimeMillis();
+        msg("ResetTransactions");
+        c.callProcedure("ResetTransactions");
+        msg("ResetTransactions took " + (System.currentTimeMillis() - startMs) + "ms");
+    }
+
+    /**
+     * Save user_balances so restoreBalances can put them back.
+     *
+     * @param c
+     * @throws IOException
+     * @throws NoConnectionsException
+     * @throws ProcCallException
+     */
+    public static void snapshotBalances(Client c) throws IOException, NoConnectionsException, ProcCallException {
+        callAllPartitions(c, "SnapshotBalances");
+    }
+
+    /**
+     * Put user_balances back to how they were when snapshotBalances was
+     * called.
+     *
+     * @param c
+     * @throws IOException
+     * @throws NoConnectionsException
+     * @throws ProcCallException
+     */
+    public static void restoreBalances(Client c) throws IOException, NoConnectionsException, ProcCallException {
+        callAllPartitions(c, "RestoreBalances");
+    }
+
+    private static void callAllPartitions(Client c, String procName)
+            throws IOException, NoConnectionsException, ProcCallException {
+
+        final long startMs = System.currentTimeMillis();
+        msg(procName);
+
+        ClientResponseWithPartitionKey[] responses = c.callAllPartitionProcedure(procName);
+
+        for (ClientResponseWithPartitionKey response : responses) {
+            if (response.response.getStatus() != ClientResponse.SUCCESS) {
+                msg(procName + " failed for partition key " + response.partitionKey + ": "
+                        + response.response.getStatusString());
+            }
+        }
+
+        msg(procName + " on " + responses.length + " partitions took " + (System.currentTimeMillis() - startMs)
+                + "ms");
+    }
+
+    /**
+     * Print a formatted message.
+     *
+     * @param message
+     */
+    public static void msg(String message) {
+        TestClient.msg(message);
+    }
+}
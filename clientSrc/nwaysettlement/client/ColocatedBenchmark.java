@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package nwaysettlement.client;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.voltdb.VoltType;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.NullCallback;
+import org.voltdb.voltutil.stats.SafeHistogramCache;
+import org.voltdb.voltutil.stats.StatsHistogram;
+
+import nwayprocedures.StartTransactionPayer;
+
+/**
+ * Compares settlements whose participants are all in the payer's partition
+ * with ones that span partitions. Co-located settlements are run twice: once
+ * through CompoundPayment, which spots them and uses SettleLocalPayment, and
+ * once by calling SettleLocalPayment directly, which is what a client that
+ * checks its own hashinator could do. For each we measure synchronous latency
+ * and then throughput with iterations asynchronous calls in flight.
+ */
+public class ColocatedBenchmark {
+
+    /**
+     * How many userids we'll look through to find payees.
+     */
+    private static final int MAX_USERID = 10000000;
+
+    public static void main(String[] args) {
+        try {
+
+            if (args.length != 4) {
+                msg("Usage: hosts payeecount iterations delay");
+                msg("e.g.: localhost 5 1000 10");
+                System.exit(1);
+            }
+
+            msg(Arrays.toString(args));
+
+            Client c = TestClient.connectVoltDB(args[0]);
+            int payeeCount = Integer.parseInt(args[1]);
+            int iterations = Integer.parseInt(args[2]);
+            int delay = Integer.parseInt(args[3]);
+
+            // User 0 pays everyone, so find payees in and out of its partition
+            final long payerPartition = c.getPartitionForParameter(VoltType.BIGINT.getValue(), 0L);
+            long[] colocatedPayees = new long[payeeCount];
+            long[] spreadPayees = new long[payeeCount];
+            int colocatedFound = 0;
+            int spreadFound = 0;
+
+            for (long userId = 1; userId < MAX_USERID
+                    && (colocatedFound < payeeCount || spreadFound < payeeCount); userId++) {
+
+                if (c.getPartitionForParameter(VoltType.BIGINT.getValue(), userId) == payerPartition) {
+                    if (colocatedFound < payeeCount) {
+                        colocatedPayees[colocatedFound++] = userId;
+                    }
+                } else if (spreadFound < payeeCount) {
+                    spreadPayees[spreadFound++] = userId;
+                }
+            }
+
+            NullCallback nc = new NullCallback();
+
+            c.callProcedure(nc, "user_balances.UPSERT", 0, Long.MAX_VALUE / 2, new Date());
+
+            for (int i = 0; i < payeeCount; i++) {
+                c.callProcedure(nc, "user_balances.UPSERT", colocatedPayees[i], 0, new Date());
+                c.callProcedure(nc, "user_balances.UPSERT", spreadPayees[i], 0, new Date());
+            }
+
+            c.drain();
+
+            BenchmarkReset.resetTransactions(c);
+
+            long[] amounts = new long[payeeCount];
+            Arrays.fill(amounts, 1);
+
+            long txnId = 0;
+
+            if (spreadFound < payeeCount) {
+                msg("Only one partition, so nothing to compare co-located settlements with");
+            } else {
+                txnId = run(c, "SPREAD", "CompoundPayment", spreadPayees, amounts, iterations, delay, txnId);
+            }
+
+            txnId = run(c, "COLOCATED", "CompoundPayment", colocatedPayees, amounts, iterations, delay, txnId);
+            run(c, "COLOCATED_DIRECT", "SettleLocalPayment", colocatedPayees, amounts, iterations, delay, txnId);
+
+            c.drain();
+            c.close();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * @return the last txnId we used
+     */
+    private static long run(Client c, String statName, String procName, long[] payees, long[] amounts,
+            int iterations, int delay, long txnId) throws Exception {
+
+        SafeHistogramCache statsCache = SafeHistogramCache.getInstance();
+        int failures = 0;
+
+        for (int i = 0; i < iterations; i++) {
+
+            txnId++;
+            final long startMs = System.currentTimeMillis();
+
+            // Both procedures take the same parameters
+            ClientResponse cr = c.callProcedure(procName, 0, txnId, payees, amounts, new Date(startMs + delay));
+
+            if (cr.getAppStatus() == StartTransactionPayer.DONE_CODE) {
+                statsCache.reportLatency(statName, startMs, "", NWayCompoundTransaction.HISTOGRAM_SIZE_MS);
+            } else {
+                failures++;
+            }
+        }
+
+        StatsHistogram aHistogram = statsCache.get(statName);
+        msg(statName + ": failures=" + failures + " " + aHistogram.toStringShort());
+
+        AtomicLong asyncFailures = new AtomicLong();
+        final long startMs = System.currentTimeMillis();
+
+        for (int i = 0; i < iterations; i++) {
+
+            txnId++;
+
+            c.callProcedure(response -> {
+                if (response.getStatus() != ClientResponse.SUCCESS
+                        || response.getAppStatus() != StartTransactionPayer.DONE_CODE) {
+                    asyncFailures.incrementAndGet();
+                }
+            }, procName, 0, txnId, payees, amounts, new Date(startMs + delay));
+        }
+
+        c.drain();
+
+        final long elapsedMs = Math.max(1, System.currentTimeMillis() - startMs);
+        msg(statName + ": " + (iterations * 1000L / elapsedMs) + " TPS, failures=" + asyncFailures.get());
+
+        return txnId;
+    }
+
+    /**
+     * Print a formatted message.
+     *
+     * @param message
+     */
+    public static void msg(String message) {
+        TestClient.msg(message);
+    }
+}
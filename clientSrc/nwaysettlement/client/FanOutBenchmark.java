@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package nwaysettlement.client;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.NullCallback;
+import org.voltdb.voltutil.stats.SafeHistogramCache;
+import org.voltdb.voltutil.stats.StatsHistogram;
+
+import nwayprocedures.StartTransactionPayer;
+
+/**
+ * Shows how CompoundPayment latency changes as the number of payees grows.
+ * Calls are synchronous, so what we measure is the cost of one settlement, not
+ * queueing.
+ */
+public class FanOutBenchmark {
+
+    public static void main(String[] args) {
+        try {
+
+            if (args.length != 4) {
+                msg("Usage: hosts payeecounts iterations delay");
+                msg("e.g.: localhost 1,10,100,1000,10000 100 10");
+                System.exit(1);
+            }
+
+            msg(Arrays.toString(args));
+            SafeHistogramCache statsCache = SafeHistogramCache.getInstance();
+
+            Client c = TestClient.connectVoltDB(args[0]);
+            String[] payeeCountStrings = args[1].split(",");
+            int iterations = Integer.parseInt(args[2]);
+            int delay = Integer.parseInt(args[3]);
+
+            int[] payeeCounts = new int[payeeCountStrings.length];
+            int maxPayees = 0;
+
+            for (int i = 0; i < payeeCounts.length; i++) {
+                payeeCounts[i] = Integer.parseInt(payeeCountStrings[i]);
+                maxPayees = Math.max(maxPayees, payeeCounts[i]);
+            }
+
+            msg("Create " + (maxPayees + 1) + " balances");
+
+            NullCallback nc = new NullCallback();
+
+            // User 0 pays everyone else, so give them lots of money
+            c.callProcedure(nc, "user_balances.UPSERT", 0, Long.MAX_VALUE / 2, new Date());
+
+            for (int i = 1; i <= maxPayees; i++) {
+                c.callProcedure(nc, "user_balances.UPSERT", i, 0, new Date());
+            }
+
+            c.drain();
+
+            BenchmarkReset.resetTransactions(c);
+
+            long txnId = 0;
+
+            for (int payeeCount : payeeCounts) {
+
+                final String statName = "PAYEES_" + payeeCount;
+
+                long[] payees = new long[payeeCount];
+                long[] amounts = new long[payeeCount];
+
+                for (int i = 0; i < payeeCount; i++) {
+                    payees[i] = i + 1;
+                    amounts[i] = 1;
+                }
+
+                int failures = 0;
+
+                for (int i = 0; i < iterations; i++) {
+
+                    txnId++;
+                    final long startMs = System.currentTimeMillis();
+
+                    ClientResponse cr = c.callProcedure("CompoundPayment", 0, txnId, payees, amounts,
+                            new Date(startMs + delay));
+
+                    if (cr.getAppStatus() == StartTransactionPayer.DONE_CODE) {
+                        statsCache.reportLatency(statName, startMs, "", NWayCompoundTransaction.HISTOGRAM_SIZE_MS);
+                    } else {
+                        failures++;
+                    }
+                }
+
+                StatsHistogram aHistogram = statsCache.get(statName);
+                msg(payeeCount + " payees: failures=" + failures + " " + aHistogram.toStringShort());
+
+            }
+
+            c.drain();
+            c.close();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Print a formatted message.
+     *
+     * @param message
+     */
+    public static void msg(String message) {
+        TestClient.msg(message);
+    }
+}
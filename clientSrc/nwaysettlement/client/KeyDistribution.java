@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package nwaysettlement.client;
+
+import java.util.Random;
+
+/**
+ * Picks user ids between 0 and userCount - 1. Created from a string:
+ * <ul>
+ * <li>uniform - every user is equally likely.</li>
+ * <li>zipf:theta - user 0 is the most popular, then user 1, and so on.
+ * theta must be between 0 and 1. The closer it gets to 1, the more skewed the
+ * distribution.</li>
+ * <li>hotspot:hotpct:trafficpct - hotpct percent of users get trafficpct
+ * percent of the picks.</li>
+ * </ul>
+ * Safe to share between threads, as callers pass in their own Random.
+ */
+public class KeyDistribution {
+
+    public static final String UNIFORM = "uniform";
+    public static final String ZIPF = "zipf";
+    public static final String HOTSPOT = "hotspot";
+
+    final String description;
+    final String type;
+    final int userCount;
+
+    // Zipf, using the method from Gray et al, "Quickly Generating
+    // Billion-Record Synthetic Databases"
+    double theta;
+    double alpha;
+    double zetan;
+    double eta;
+
+    // Hotspot
+    int hotKeys;
+    double hotFraction;
+
+    private KeyDistribution(String description, String type, int userCount) {
+        this.description = description;
+        this.type = type;
+        this.userCount = userCount;
+    }
+
+    /**
+     * @param description e.g. 'uniform', 'zipf:0.99' or 'hotspot:1:90'
+     * @param userCount
+     * @return a new KeyDistribution
+     * @throws IllegalArgumentException if description makes no sense
+     */
+    public static KeyDistribution parse(String description, int userCount) {
+
+        String[] fields = description.toLowerCase().split(":");
+        KeyDistribution d = new KeyDistribution(description, fields[0], userCount);
+
+        if (fields[0].equals(UNIFORM) && fields.length == 1) {
+            return d;
+        }
+
+        if (fields[0].equals(ZIPF) && fields.length == 2) {
+
+            d.theta = Double.parseDouble(fields[1]);
+
+            if (d.theta <= 0 || d.theta >= 1) {
+                throw new IllegalArgumentException("zipf theta must be > 0 and < 1, not " + fields[1]);
+            }
+
+            d.alpha = 1 / (1 - d.theta);
+            d.zetan = zeta(userCount, d.theta);
+            d.eta = (1 - Math.pow(2.0 / userCount, 1 - d.theta)) / (1 - (zeta(2, d.theta) / d.zetan));
+
+            return d;
+        }
+
+        if (fields[0].equals(HOTSPOT) && fields.length == 3) {
+
+            final double hotPct = Double.parseDouble(fields[1]);
+            final double trafficPct = Double.parseDouble(fields[2]);
+
+            if (hotPct <= 0 || hotPct >= 100 || trafficPct < 0 || trafficPct > 100) {
+                throw new IllegalArgumentException("hotspot percentages out of range: " + description);
+            }
+
+            d.hotKeys = (int) Math.max(1, Math.min(userCount - 1, (userCount * hotPct) / 100));
+            d.hotFraction = trafficPct / 100;
+
+            return d;
+        }
+
+        throw new IllegalArgumentException("Unknown key distribution '" + description + "'");
+    }
+
+    /**
+     * @param r
+     * @return a user id between 0 and userCount - 1.
+     */
+    public int next(Random r) {
+
+        if (type.equals(ZIPF)) {
+
+            final double u = r.nextDouble();
+            final double uz = u * zetan;
+
+            if (uz < 1) {
+                return 0;
+            }
+
+            if (uz < 1 + Math.pow(0.5, theta)) {
+                return Math.min(1, userCount - 1);
+            }
+
+            return (int) Math.min(userCount - 1, (long) (userCount * Math.pow((eta * u) - eta + 1, alpha)));
+        }
+
+        if (type.equals(HOTSPOT)) {
+
+            if (r.nextDouble() < hotFraction) {
+                return r.nextInt(hotKeys);
+            }
+
+            return hotKeys + r.nextInt(userCount - hotKeys);
+        }
+
+        return r.nextInt(userCount);
+    }
+
+    private static double zeta(long n, double theta) {
+
+        double sum = 0;
+
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+}
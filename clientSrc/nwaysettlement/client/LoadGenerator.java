@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package nwaysettlement.client;
+
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.voltdb.VoltType;
+import org.voltdb.client.Client;
+import org.voltdb.voltutil.stats.SafeHistogramCache;
+
+/**
+ * Sends CompoundPayment calls from several threads, each taking the next slot
+ * from a shared ScheduledArrivals. Nobody waits for responses, so how fast we
+ * send depends only on the schedule. How late each call went compared with
+ * its slot is recorded as SEND_LAG, and NWayCompoundTransaction measures
+ * latency from the slot, not from when the call went.
+ * <p>
+ * Payers come from payerDistribution. Payees come from payeeDistribution, or
+ * are the users after the payer if it's null. We count how many participants
+ * each partition gets so skewed runs can show how uneven the load was.
+ */
+public class LoadGenerator {
+
+    public static final String SEND_LAG = "SEND_LAG";
+
+    public static final String SEQUENTIAL = "sequential";
+
+    /**
+     * Give up looking for distinct payees after this many tries per payee, in
+     * case the distribution is very skewed.
+     */
+    private static final int MAX_PAYEE_TRIES = 100;
+
+    Client c;
+    ScheduledArrivals arrivals;
+    int userCount;
+    int offset;
+    int participants;
+    long delay;
+    KeyDistribution payerDistribution;
+    KeyDistribution payeeDistribution;
+    SettlementRouter router = null;
+
+    ConcurrentHashMap<Long, LongAdder> partitionLoad = new ConcurrentHashMap<>();
+
+    SafeHistogramCache statsCache = SafeHistogramCache.getInstance();
+
+    public LoadGenerator(Client c, ScheduledArrivals arrivals, int userCount, int offset, int participants,
+            long delay) {
+        this(c, arrivals, userCount, offset, participants, delay,
+                KeyDistribution.parse(KeyDistribution.UNIFORM, userCount), null);
+    }
+
+    /**
+     * @param payeeDistribution null means use the users after the payer
+     */
+    public LoadGenerator(Client c, ScheduledArrivals arrivals, int userCount, int offset, int participants,
+            long delay, KeyDistribution payerDistribution, KeyDistribution payeeDistribution) {
+        super();
+        this.c = c;
+        this.arrivals = arrivals;
+        this.userCount = userCount;
+        this.offset = offset;
+        this.participants = participants;
+        this.delay = delay;
+        this.payerDistribution = payerDistribution;
+        this.payeeDistribution = payeeDistribution;
+    }
+
+    /**
+     * @param router if not null, decides how payments are sent instead of
+     *               sending them all over our client
+     */
+    public void setRouter(SettlementRouter router) {
+        this.router = router;
+    }
+
+    /**
+     * Send payments on threadCount threads until arrivals runs out of slots.
+     *
+     * @param threadCount
+     * @throws InterruptedException
+     */
+    public void run(int threadCount) throws InterruptedException {
+
+        Thread[] threads = new Thread[threadCount];
+
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread(this::sendPayments, "LoadGenerator-" + i);
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void sendPayments() {
+
+        Random r = new Random();
+        long slot;
+
+        while ((slot = arrivals.nextSlot()) >= 0) {
+
+            final long intendedNanos = arrivals.awaitSlot(slot);
+            final long txnId = slot + 1;
+
+            int randomFrom = payerDistribution.next(r) + offset;
+
+            NWayCompoundTransaction newTran = NWayCompoundTransaction.acquire(randomFrom, txnId, delay);
+            countPartition(randomFrom);
+
+            if (payeeDistribution == null) {
+
+                for (int j = 0; j < participants; j++) {
+                    long amount = r.nextInt(100);
+                    newTran.addPayee(((randomFrom + 1 + j) % userCount) + offset, amount);
+                    countPartition(((randomFrom + 1 + j) % userCount) + offset);
+                }
+
+            } else {
+
+                int tries = 0;
+
+                while (newTran.getPayeeCount() < participants && tries++ < participants * MAX_PAYEE_TRIES) {
+
+                    final int payee = payeeDistribution.next(r) + offset;
+
+                    if (payee != randomFrom && !newTran.hasPayee(payee)) {
+                        newTran.addPayee(payee, r.nextInt(100));
+                        countPartition(payee);
+                    }
+                }
+            }
+
+            statsCache.reportLatencyNanos(SEND_LAG, intendedNanos, "", NWayCompoundTransaction.HISTOGRAM_SIZE_MS);
+
+            if (router == null) {
+                newTran.createTransactions(c, txnId, intendedNanos);
+            } else {
+                router.send(newTran, txnId, intendedNanos);
+            }
+        }
+    }
+
+    private void countPartition(long userId) {
+        final long partitionId = c.getPartitionForParameter(VoltType.BIGINT.getValue(), userId);
+        partitionLoad.computeIfAbsent(partitionId, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * @return how many participants we've sent to each partition so far.
+     */
+    public TreeMap<Long, Long> getPartitionLoad() {
+
+        TreeMap<Long, Long> load = new TreeMap<>();
+
+        for (Entry<Long, LongAdder> entry : partitionLoad.entrySet()) {
+            load.put(entry.getKey(), entry.getValue().sum());
+        }
+
+        return load;
+    }
+
+    /**
+     * @return the busiest partition's load as a percentage of the average, so
+     *         100 means perfectly even.
+     */
+    public long getPartitionImbalancePct() {
+
+        TreeMap<Long, Long> load = getPartitionLoad();
+
+        if (load.isEmpty()) {
+            return 0;
+        }
+
+        long total = 0;
+        long max = 0;
+
+        for (long partitionCount : load.values()) {
+            total += partitionCount;
+            max = Math.max(max, partitionCount);
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        return (max * 100 * load.size()) / total;
+    }
+
+}
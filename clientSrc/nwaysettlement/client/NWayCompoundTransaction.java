@@ -8,10 +8,9 @@
 package nwaysettlement.client;
 
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
 
 import org.voltdb.client.Client;
 import org.voltdb.client.ClientResponse;
@@ -20,17 +19,47 @@ import org.voltdb.voltutil.stats.SafeHistogramCache;
 
 import nwayprocedures.StartTransactionPayer;
 
+/**
+ * One CompoundPayment call and its callback. Payees are kept in primitive
+ * arrays, and must be distinct.
+ * <p>
+ * At high rates use acquire() instead of the constructor. Objects from
+ * acquire() go back to a pool once their callback has recorded its stats, so
+ * in a steady state a payment doesn't allocate anything here.
+ */
 public class NWayCompoundTransaction implements ProcedureCallback {
 
-    public static final int HISTOGRAM_SIZE_MS = 1000;
+    public static final int HISTOGRAM_SIZE_MS = 60000;
+
+    /**
+     * DONE and FAIL measure from when we meant to send the call. DONE_SERVICE
+     * and FAIL_SERVICE measure from when we actually sent it, so the
+     * difference is time spent queueing in the client.
+     */
+    public static final String SERVICE_TIME_SUFFIX = "_SERVICE";
+
+    private static final int MAX_POOL_SIZE = 100000;
+
+    private static final ArrayBlockingQueue<NWayCompoundTransaction> pool = new ArrayBlockingQueue<>(
+            MAX_POOL_SIZE);
+
     long delay;
     long payerId;
     long txnId;
-    Date startDate;
+    long startMs;
+    long startNanos;
+    long intendedStartNanos;
     Date startCheckDate;
     boolean isValid = true;
+    boolean isPooled = false;
     SafeHistogramCache statsCache = SafeHistogramCache.getInstance();
-    HashMap<Long, Long> payeeList = new HashMap<>();
+
+    long[] payees = new long[0];
+    long[] payeeAmounts = new long[0];
+    int payeeCount = 0;
+
+    // Reused, as we only need it until the call has been sent
+    final Date effectiveDate = new Date(0);
 
     public NWayCompoundTransaction(long payerId, long txnId, long delay) {
         super();
@@ -40,70 +69,165 @@ public class NWayCompoundTransaction implements ProcedureCallback {
 
     }
 
-    public void addPayee(long payee, long amount) {
-        payeeList.put(payee, amount);
-    }
+    /**
+     * @return a transaction from the pool, or a new one if the pool is empty.
+     *         It goes back to the pool when its callback has finished.
+     */
+    public static NWayCompoundTransaction acquire(long payerId, long txnId, long delay) {
 
-    public void createTransactions(Client c, long txnId) {
+        NWayCompoundTransaction t = pool.poll();
 
-        startDate = new Date(System.currentTimeMillis());
-        final Date effectiveDate = new Date(startDate.getTime() + delay);
+        if (t == null) {
+            t = new NWayCompoundTransaction(payerId, txnId, delay);
+        } else {
+            t.payerId = payerId;
+            t.txnId = txnId;
+            t.delay = delay;
+        }
 
-        long payeeAmount = 0;
+        t.isPooled = true;
 
-        statsCache.incCounter("Calls");
+        return t;
+    }
 
-        long[] payees = new long[payeeList.size()];
-        long[] payeeAmounts = new long[payeeList.size()];
-        int listEntryid = 0;
+    /**
+     * Put a transaction from acquire() back in the pool. Called for you by
+     * clientCallback.
+     */
+    public void release() {
+
+        if (isPooled) {
+            isPooled = false;
+            payeeCount = 0;
+            isValid = true;
+            startCheckDate = null;
+            pool.offer(this);
+        }
+    }
 
-        try {
-            Iterator<Entry<Long, Long>> it = payeeList.entrySet().iterator();
-            while (it.hasNext()) {
-                Entry<Long, Long> pair = it.next();
-                payeeAmount = payeeAmount - pair.getValue();
+    public void addPayee(long payee, long amount) {
 
-                payees[listEntryid] = pair.getKey();
-                payeeAmounts[listEntryid] = pair.getValue();
-                listEntryid++;
+        if (payeeCount == payees.length) {
+            payees = Arrays.copyOf(payees, Math.max(4, payeeCount * 2));
+            payeeAmounts = Arrays.copyOf(payeeAmounts, payees.length);
+        }
+
+        payees[payeeCount] = payee;
+        payeeAmounts[payeeCount] = amount;
+        payeeCount++;
+    }
 
+    /**
+     * @param payee
+     * @return true if payee has already been added. Scans the list.
+     */
+    public boolean hasPayee(long payee) {
+
+        for (int i = 0; i < payeeCount; i++) {
+            if (payees[i] == payee) {
+                return true;
             }
+        }
 
+        return false;
+    }
+
+    public int getPayeeCount() {
+        return payeeCount;
+    }
+
+    public void createTransactions(Client c, long txnId) {
+        createTransactions(c, txnId, System.nanoTime());
+    }
+
+    /**
+     * @param c
+     * @param txnId
+     * @param intendedStartNanos the System.nanoTime() at which our load
+     *                           schedule said this call should go.
+     */
+    public void createTransactions(Client c, long txnId, long intendedStartNanos) {
+
+        start(intendedStartNanos);
+
+        try {
             c.callProcedure(this, "CompoundPayment", payerId, txnId, payees, payeeAmounts, effectiveDate);
 
         } catch (Exception e) {
-            isValid = false;
-            statsCache.reportLatency("ERROR_" + e.getMessage(), startDate.getTime(), "", HISTOGRAM_SIZE_MS);
+            failedToSend(e);
+        }
+    }
+
+    /**
+     * Get ready to send. Called by createTransactions, or by a
+     * SettlementRouter that sends us as part of a batch.
+     */
+    void start(long intendedStartNanos) {
+
+        startMs = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+        this.intendedStartNanos = intendedStartNanos;
+        effectiveDate.setTime(startMs + delay);
+
+        statsCache.incCounter("Calls");
+
+        // The whole array gets sent, so it has to be exactly the right size.
+        // Once it is, a pooled transaction with the same number of payees
+        // won't need to resize it again.
+        if (payees.length != payeeCount) {
+            payees = Arrays.copyOf(payees, payeeCount);
+            payeeAmounts = Arrays.copyOf(payeeAmounts, payeeCount);
         }
     }
 
+    void failedToSend(Exception e) {
+        isValid = false;
+        statsCache.reportLatencyNanos("ERROR_" + e.getMessage(), intendedStartNanos, "", HISTOGRAM_SIZE_MS);
+        release();
+    }
+
     @Override
     public void clientCallback(ClientResponse response) throws Exception {
+        recordOutcome(response.getStatus(), response.getStatusString(), response.getAppStatusString());
+    }
 
-        if (response.getStatus() != ClientResponse.SUCCESS) {
+    /**
+     * Record how we did and go back to the pool. appStatusString is only
+     * looked at if status is SUCCESS.
+     *
+     * @param status
+     * @param statusString
+     * @param appStatusString
+     */
+    void recordOutcome(byte status, String statusString, String appStatusString) {
+
+        if (status != ClientResponse.SUCCESS) {
             isValid = false;
-            statsCache.reportLatency("ERROR_" + response.getStatusString(), startDate.getTime(), "", HISTOGRAM_SIZE_MS);
-        } else if (!response.getAppStatusString().equals(StartTransactionPayer.DONE_MESSAGE)) {
-            msg(response.getAppStatusString());
+            statsCache.reportLatencyNanos("ERROR_" + statusString, intendedStartNanos, "", HISTOGRAM_SIZE_MS);
+        } else if (!appStatusString.equals(StartTransactionPayer.DONE_MESSAGE)) {
+            msg(appStatusString);
             isValid = false;
-            statsCache.reportLatency("ERROR_" + response.getAppStatusString(), startDate.getTime(), "",
-                    HISTOGRAM_SIZE_MS);
+            statsCache.reportLatencyNanos("ERROR_" + appStatusString, intendedStartNanos, "", HISTOGRAM_SIZE_MS);
         }
 
         if (isValid) {
-            statsCache.reportLatency("DONE", startDate.getTime(), "", HISTOGRAM_SIZE_MS);
+            statsCache.reportLatencyNanos("DONE", intendedStartNanos, "", HISTOGRAM_SIZE_MS);
+            statsCache.reportLatencyNanos("DONE" + SERVICE_TIME_SUFFIX, startNanos, "", HISTOGRAM_SIZE_MS);
             // TODO
             // theChecker.addTransactionToCheck(this);
         } else {
 
-            statsCache.reportLatency("FAIL", startDate.getTime(), "", HISTOGRAM_SIZE_MS);
+            statsCache.reportLatencyNanos("FAIL", intendedStartNanos, "", HISTOGRAM_SIZE_MS);
+            statsCache.reportLatencyNanos("FAIL" + SERVICE_TIME_SUFFIX, startNanos, "", HISTOGRAM_SIZE_MS);
 
         }
 
+        release();
+
     }
 
     public Date getMinCheckDate() {
-        return new Date(startDate.getTime() + delay + 1);
+        return new Date(startMs + delay + 1);
     }
 
     public void startCheck() {
@@ -150,7 +274,7 @@ public class NWayCompoundTransaction implements ProcedureCallback {
      * @return the startDate
      */
     public Date getStartDate() {
-        return startDate;
+        return new Date(startMs);
     }
 
     /**
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package nwaysettlement.client;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.NullCallback;
+
+/**
+ * Shows how long one EndOrphanedTransactions run takes as the number of
+ * orphaned transactions grows. Each orphan is a PAYERDONE payer and a PENDING
+ * payee that are old enough to be cleaned up.
+ * <p>
+ * Optionally there are also freshrows PENDING rows that aren't stale yet, as
+ * there would be in a busy system. The sweep should cost the same with or
+ * without them.
+ */
+public class OrphanSweepBenchmark {
+
+    private static final long FRESH_TXN_ID_START = 1000000000000L;
+
+    public static void main(String[] args) {
+        try {
+
+            if (args.length < 3 || args.length > 4) {
+                msg("Usage: hosts backlogsizes iterations [freshrows]");
+                msg("e.g.: localhost 1,10,100,1000,10000 5 1000000");
+                System.exit(1);
+            }
+
+            msg(Arrays.toString(args));
+
+            Client c = TestClient.connectVoltDB(args[0]);
+            String[] backlogSizeStrings = args[1].split(",");
+            int iterations = Integer.parseInt(args[2]);
+            int freshRows = 0;
+
+            if (args.length == 4) {
+                freshRows = Integer.parseInt(args[3]);
+            }
+
+            NullCallback nc = new NullCallback();
+
+            msg("ALTER TASK EndOrphanedTransactionsTask DISABLE;");
+            c.callProcedure("@AdHoc", "ALTER TASK EndOrphanedTransactionsTask DISABLE;");
+            msg("ALTER TASK EndLocalOrphanedTransactionsTask DISABLE;");
+            c.callProcedure("@AdHoc", "ALTER TASK EndLocalOrphanedTransactionsTask DISABLE;");
+
+            c.callProcedure("@AdHoc", "TRUNCATE TABLE user_transactions;");
+
+            if (freshRows > 0) {
+
+                msg("Creating " + freshRows + " fresh PENDING rows");
+
+                // Not stale for another hour...
+                final Date insertDate = new Date();
+                final Date staleDate = new Date(insertDate.getTime() + 3600000);
+
+                for (int j = 0; j < freshRows; j++) {
+                    c.callProcedure(nc, "user_transactions.INSERT", j, 0, 1, FRESH_TXN_ID_START + j, insertDate,
+                            staleDate, "PENDING", "OrphanSweepBenchmark", insertDate, insertDate, null, null);
+                }
+
+                c.drain();
+            }
+
+            long txnId = 0;
+
+            for (String backlogSizeString : backlogSizeStrings) {
+
+                final int backlogSize = Integer.parseInt(backlogSizeString);
+                long totalMs = 0;
+                long rowsRead = 0;
+
+                for (int i = 0; i < iterations; i++) {
+
+                    // Get rid of what the last sweep did, but keep the fresh rows
+                    c.callProcedure("@AdHoc", "DELETE FROM user_transactions WHERE tran_status IN ('DONE','FAILED');");
+
+                    // Old enough for the sweeper to act on...
+                    final Date insertDate = new Date(System.currentTimeMillis() - 60000);
+
+                    for (int j = 0; j < backlogSize; j++) {
+                        txnId++;
+                        c.callProcedure(nc, "user_transactions.INSERT", 0, 0, -1, txnId, insertDate, insertDate,
+                                "PAYERDONE", "OrphanSweepBenchmark", insertDate, insertDate, 2, null);
+                        c.callProcedure(nc, "user_transactions.INSERT", 1, 0, 1, txnId, insertDate, insertDate,
+                                "PENDING", "OrphanSweepBenchmark", insertDate, insertDate, null, null);
+                    }
+
+                    c.drain();
+
+                    final long startMs = System.currentTimeMillis();
+                    ClientResponse cr = c.callProcedure("EndOrphanedTransactions", backlogSize, 10);
+                    totalMs += System.currentTimeMillis() - startMs;
+
+                    cr.getResults()[0].advanceRow();
+                    rowsRead += cr.getResults()[0].getLong("rows_read");
+                }
+
+                msg("Backlog of " + backlogSize + " orphans with " + freshRows + " fresh rows: average sweep took "
+                        + (totalMs / iterations) + "ms and read " + (rowsRead / iterations) + " rows");
+
+            }
+
+            msg("ALTER TASK EndOrphanedTransactionsTask ENABLE;");
+            c.callProcedure("@AdHoc", "ALTER TASK EndOrphanedTransactionsTask ENABLE;");
+            msg("ALTER TASK EndLocalOrphanedTransactionsTask ENABLE;");
+            c.callProcedure("@AdHoc", "ALTER TASK EndLocalOrphanedTransactionsTask ENABLE;");
+
+            c.drain();
+            c.close();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Print a formatted message.
+     *
+     * @param message
+     */
+    public static void msg(String message) {
+        TestClient.msg(message);
+    }
+}
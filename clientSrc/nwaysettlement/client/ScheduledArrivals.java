@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package nwaysettlement.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Rate limiter that gives out numbered slots, each with the time it's meant
+ * to be sent. Slot n is due n / tpMs milliseconds after we start. If callers
+ * fall behind the schedule doesn't move, so they catch up by sending straight
+ * away. That keeps the offered load at tpMs no matter how slow responses are,
+ * and lets callers see how late each request actually went.
+ * <p>
+ * Safe to share between threads.
+ */
+public class ScheduledArrivals {
+
+    /**
+     * Don't park for less than this, as parkNanos can oversleep by about
+     * this much.
+     */
+    private static final long MIN_PARK_NANOS = 100000;
+
+    final long startNanos;
+    final double nanosPerSlot;
+    final long slotCount;
+    final AtomicLong nextSlot = new AtomicLong();
+
+    /**
+     * @param tpMs      transactions per millisecond
+     * @param slotCount how many slots to give out
+     */
+    public ScheduledArrivals(int tpMs, long slotCount) {
+        this.startNanos = System.nanoTime();
+        this.nanosPerSlot = 1000000.0 / Math.max(1, tpMs);
+        this.slotCount = slotCount;
+    }
+
+    /**
+     * @return the next slot number, or -1 if they've all gone.
+     */
+    public long nextSlot() {
+
+        final long slot = nextSlot.getAndIncrement();
+
+        if (slot >= slotCount) {
+            return -1;
+        }
+
+        return slot;
+    }
+
+    /**
+     * @param slot
+     * @return the System.nanoTime() at which slot should be sent.
+     */
+    public long getIntendedNanos(long slot) {
+        return startNanos + (long) (slot * nanosPerSlot);
+    }
+
+    /**
+     * Wait until slot is due.
+     *
+     * @param slot
+     * @return the System.nanoTime() at which slot should have been sent.
+     */
+    public long awaitSlot(long slot) {
+
+        final long intendedNanos = getIntendedNanos(slot);
+        long waitNanos = intendedNanos - System.nanoTime();
+
+        while (waitNanos > 0) {
+
+            if (waitNanos > MIN_PARK_NANOS) {
+                LockSupport.parkNanos(waitNanos - (MIN_PARK_NANOS / 2));
+            } else {
+                Thread.yield();
+            }
+
+            waitNanos = intendedNanos - System.nanoTime();
+        }
+
+        return intendedNanos;
+    }
+
+    /**
+     * @return how many slots have been handed out so far.
+     */
+    public long getSlotsIssued() {
+        return Math.min(nextSlot.get(), slotCount);
+    }
+
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package nwaysettlement.client;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientConfig;
+import org.voltdb.client.ClientFactory;
+import org.voltdb.client.ClientResponse;
+
+import nwayprocedures.CompoundPayment;
+import nwayprocedures.CompoundPaymentGroup;
+
+/**
+ * Decides which connection each NWayCompoundTransaction goes over.
+ * <p>
+ * CompoundPayment isn't partitioned, so normally its coordinator runs on
+ * whichever host the call lands on. In 'payer' mode we keep a connection to
+ * each host and send each settlement to the host that leads its payer's
+ * partition, so the payer's calls don't leave the host. We use the client's
+ * hashinator to find the partition and '@Statistics TOPO' to find its leader.
+ * <p>
+ * 'grouped' mode does the same, but also holds settlements per payer
+ * partition for up to LINGER_MS and sends them as one CompoundPaymentGroup
+ * call of up to batchSize transfers, which uses the same protocol as
+ * CompoundPayment. A group is also sent when the next settlement would take
+ * it past CompoundPayment.MAX_CALLS_PER_STAGE. Settlements with more payees
+ * than CompoundPaymentGroup allows are sent on their own.
+ * <p>
+ * 'any' mode sends everything over the client we were given, which is what
+ * happened before we had a router.
+ */
+public class SettlementRouter {
+
+    public static final String ANY = "any";
+
+    public static final String PAYER = "payer";
+
+    public static final String GROUPED = "grouped";
+
+    public static final int DEFAULT_BATCH_SIZE = 10;
+
+    /**
+     * Longest we hold a settlement in grouped mode before sending it.
+     */
+    public static final long LINGER_MS = 1;
+
+    final Client defaultClient;
+    final String mode;
+    final int batchSize;
+
+    // hostId to a connection to just that host
+    final HashMap<Integer, Client> hostClients = new HashMap<>();
+
+    // partitionId to the connection for its leader
+    volatile HashMap<Long, Client> partitionClients = new HashMap<>();
+
+    // Settlements waiting to go, by payer partition, and how many calls per
+    // stage each group needs
+    final HashMap<Long, ArrayList<NWayCompoundTransaction>> groups = new HashMap<>();
+    final HashMap<Long, Integer> groupCalls = new HashMap<>();
+
+    ScheduledExecutorService flusher = null;
+
+    /**
+     * @param defaultClient used for anything we can't route
+     * @param hostnames     the comma delimited hosts defaultClient uses
+     * @param modeSpec      'any', 'payer', 'grouped' or 'grouped:batchsize'
+     * @throws Exception
+     */
+    public SettlementRouter(Client defaultClient, String hostnames, String modeSpec) throws Exception {
+
+        this.defaultClient = defaultClient;
+
+        String[] modeParts = modeSpec.split(":");
+
+        if (SettlementSimulator.isSimulator(hostnames) && !modeParts[0].equalsIgnoreCase(ANY)) {
+            msg("The simulator has no hosts to route to, so routing is '" + ANY + "'");
+            mode = ANY;
+        } else if (modeParts[0].equalsIgnoreCase(ANY) || modeParts[0].equalsIgnoreCase(PAYER)
+                || modeParts[0].equalsIgnoreCase(GROUPED)) {
+            mode = modeParts[0].toLowerCase();
+        } else {
+            throw new IllegalArgumentException("Unknown routing '" + modeSpec + "', expected " + ANY + ", "
+                    + PAYER + ", " + GROUPED + " or " + GROUPED + ":batchsize");
+        }
+
+        if (modeParts.length > 1) {
+            batchSize = Math.max(1, Math.min(Integer.parseInt(modeParts[1]),
+                    CompoundPayment.MAX_CALLS_PER_STAGE / CompoundPaymentGroup.getCallBudget(0)));
+        } else {
+            batchSize = DEFAULT_BATCH_SIZE;
+        }
+
+        if (!mode.equals(ANY)) {
+            connectHosts(hostnames);
+            refreshTopology();
+        }
+
+        if (mode.equals(GROUPED)) {
+            flusher = Executors.newSingleThreadScheduledExecutor();
+            flusher.scheduleAtFixedRate(this::flushAll, LINGER_MS, LINGER_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Make a connection to each host on its own, and work out its hostId from
+     * '@SystemInformation OVERVIEW'. Hosts we can't match aren't routed to.
+     */
+    private void connectHosts(String hostnames) throws Exception {
+
+        HashMap<String, Integer> addressToHostId = new HashMap<>();
+
+        ClientResponse cr = defaultClient.callProcedure("@SystemInformation", "OVERVIEW");
+        VoltTable overview = cr.getResults()[0];
+
+        while (overview.advanceRow()) {
+
+            final String key = overview.getString("KEY");
+
+            if (key.equals("HOSTNAME") || key.equals("IPADDRESS")) {
+                addressToHostId.put(overview.getString("VALUE"), (int) overview.getLong("HOST_ID"));
+            }
+        }
+
+        for (String hostname : hostnames.split(",")) {
+
+            final String host = hostname.split(":")[0];
+            Integer hostId = addressToHostId.get(host);
+
+            if (hostId == null) {
+                try {
+                    hostId = addressToHostId.get(InetAddress.getByName(host).getHostAddress());
+                } catch (Exception e) {
+                    msg("Can't resolve " + host + ": " + e.getMessage());
+                }
+            }
+
+            if (hostId == null) {
+                msg("Can't find hostId for " + hostname + ", so won't route to it");
+            } else if (!hostClients.containsKey(hostId)) {
+
+                // Not topology aware, or it would connect to everyone else too
+                Client hostClient = ClientFactory.createClient(new ClientConfig());
+                hostClient.createConnection(hostname);
+                hostClients.put(hostId, hostClient);
+                msg("Routing to " + hostname + " as hostId " + hostId);
+            }
+        }
+    }
+
+    /**
+     * Find out which host leads each partition. Call this now and again, as
+     * leaders move when hosts fail or rejoin.
+     */
+    public void refreshTopology() {
+
+        if (hostClients.isEmpty()) {
+            return;
+        }
+
+        try {
+            HashMap<Long, Client> newPartitionClients = new HashMap<>();
+
+            ClientResponse cr = defaultClient.callProcedure("@Statistics", "TOPO", 0);
+            VoltTable topo = cr.getResults()[0];
+
+            while (topo.advanceRow()) {
+
+                // Includes the MP partition, which payers never hash to
+                final long partitionId = topo.getLong("Partition");
+                final String leader = topo.getString("Leader");
+
+                if (leader != null && leader.contains(":")) {
+
+                    Client leaderClient = hostClients.get(Integer.parseInt(leader.split(":")[0]));
+
+                    if (leaderClient != null) {
+                        newPartitionClients.put(partitionId, leaderClient);
+                    }
+                }
+            }
+
+            partitionClients = newPartitionClients;
+
+        } catch (Exception e) {
+            msg("Can't refresh topology, keeping the old one: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param payerId
+     * @return the connection to the host that leads payerId's partition, or
+     *         our default client if we don't know it.
+     */
+    public Client getClient(long payerId) {
+
+        if (mode.equals(ANY)) {
+            return defaultClient;
+        }
+
+        Client leaderClient = partitionClients.get(getPartition(payerId));
+
+        if (leaderClient == null) {
+            return defaultClient;
+        }
+
+        return leaderClient;
+    }
+
+    private long getPartition(long userId) {
+        return defaultClient.getPartitionForParameter(VoltType.BIGINT.getValue(), userId);
+    }
+
+    /**
+     * Send t now, or in grouped mode add it to its payer partition's next
+     * CompoundPaymentGroup call.
+     *
+     * @param t
+     * @param txnId
+     * @param intendedStartNanos
+     */
+    public void send(NWayCompoundTransaction t, long txnId, long intendedStartNanos) {
+
+        if (!mode.equals(GROUPED) || t.getPayeeCount() > CompoundPaymentGroup.MAX_PAYEES_PER_TRANSFER) {
+            t.createTransactions(getClient(t.getPayerId()), txnId, intendedStartNanos);
+            return;
+        }
+
+        t.start(intendedStartNanos);
+
+        final long partitionId = getPartition(t.getPayerId());
+        final int calls = CompoundPaymentGroup.getCallBudget(t.getPayeeCount());
+        ArrayList<NWayCompoundTransaction> fullGroup = null;
+        ArrayList<NWayCompoundTransaction> sendFirst = null;
+
+        synchronized (groups) {
+
+            ArrayList<NWayCompoundTransaction> group = groups.get(partitionId);
+
+            // If t won't fit, what we have goes now and t starts a new group
+            if (group != null && groupCalls.get(partitionId) + calls > CompoundPayment.MAX_CALLS_PER_STAGE) {
+                sendFirst = groups.remove(partitionId);
+                group = null;
+            }
+
+            if (group == null) {
+                group = new ArrayList<>(batchSize);
+                groups.put(partitionId, group);
+                groupCalls.put(partitionId, 0);
+            }
+
+            group.add(t);
+            groupCalls.put(partitionId, groupCalls.get(partitionId) + calls);
+
+            if (group.size() >= batchSize) {
+                fullGroup = groups.remove(partitionId);
+            }
+        }
+
+        if (sendFirst != null) {
+            sendGroup(partitionId, sendFirst);
+        }
+
+        if (fullGroup != null) {
+            sendGroup(partitionId, fullGroup);
+        }
+    }
+
+    /**
+     * Send everything we're holding.
+     */
+    public void flushAll() {
+
+        HashMap<Long, ArrayList<NWayCompoundTransaction>> waiting = new HashMap<>();
+
+        synchronized (groups) {
+            Iterator<Entry<Long, ArrayList<NWayCompoundTransaction>>> i = groups.entrySet().iterator();
+
+            while (i.hasNext()) {
+                Entry<Long, ArrayList<NWayCompoundTransaction>> entry = i.next();
+                waiting.put(entry.getKey(), entry.getValue());
+                i.remove();
+            }
+        }
+
+        for (Entry<Long, ArrayList<NWayCompoundTransaction>> entry : waiting.entrySet()) {
+            sendGroup(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void sendGroup(long partitionId, ArrayList<NWayCompoundTransaction> group) {
+
+        int payeeTotal = 0;
+
+        for (NWayCompoundTransaction t : group) {
+            payeeTotal += t.getPayeeCount();
+        }
+
+        long[] payerIds = new long[group.size()];
+        long[] txnIds = new long[group.size()];
+        long[] payeeCounts = new long[group.size()];
+        long[] payeeIds = new long[payeeTotal];
+        long[] amounts = new long[payeeTotal];
+        long effectiveMs = Long.MAX_VALUE;
+        int payeeIdx = 0;
+
+        for (int i = 0; i < payerIds.length; i++) {
+
+            NWayCompoundTransaction t = group.get(i);
+
+            payerIds[i] = t.payerId;
+            txnIds[i] = t.txnId;
+            payeeCounts[i] = t.payeeCount;
+            System.arraycopy(t.payees, 0, payeeIds, payeeIdx, t.payeeCount);
+            System.arraycopy(t.payeeAmounts, 0, amounts, payeeIdx, t.payeeCount);
+            payeeIdx += t.payeeCount;
+
+            // One effective date for everyone, so use the earliest
+            effectiveMs = Math.min(effectiveMs, t.effectiveDate.getTime());
+        }
+
+        Client leaderClient = partitionClients.get(partitionId);
+
+        if (leaderClient == null) {
+            leaderClient = defaultClient;
+        }
+
+        try {
+            leaderClient.callProcedure(response -> {
+
+                if (response.getStatus() != ClientResponse.SUCCESS) {
+                    for (NWayCompoundTransaction t : group) {
+                        t.recordOutcome(response.getStatus(), response.getStatusString(), "");
+                    }
+                    return;
+                }
+
+                // One row per transfer, in the order we sent them
+                VoltTable transfers = response.getResults()[0];
+
+                for (int i = 0; transfers.advanceRow(); i++) {
+                    group.get(i).recordOutcome(ClientResponse.SUCCESS, "", transfers.getString("status"));
+                }
+
+            }, "CompoundPaymentGroup", payerIds, txnIds, payeeCounts, payeeIds, amounts, new Date(effectiveMs));
+
+        } catch (Exception e) {
+            for (NWayCompoundTransaction t : group) {
+                t.failedToSend(e);
+            }
+        }
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * Send anything we're holding and close the connections we made.
+     *
+     * @throws Exception
+     */
+    public void close() throws Exception {
+
+        if (flusher != null) {
+            flusher.shutdown();
+            flusher.awaitTermination(1, TimeUnit.SECONDS);
+        }
+
+        flushAll();
+
+        for (Client hostClient : hostClients.values()) {
+            hostClient.drain();
+            hostClient.close();
+        }
+    }
+
+    /**
+     * Print a formatted message.
+     *
+     * @param message
+     */
+    public static void msg(String message) {
+        TestClient.msg(message);
+    }
+
+}
@@ -0,0 +1,1086 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package nwaysettlement.client;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.client.Client;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ProcedureCallback;
+import org.voltdb.types.TimestampType;
+
+import nwayprocedures.SetTransactionEntryDone;
+import nwayprocedures.StartTransactionPayer;
+
+/**
+ * An in-process stand in for the database, so the load generator and stats
+ * code can be run and benchmarked without a cluster.
+ * <p>
+ * Users are spread over partitions, each of which is an in-memory copy of
+ * user_balances, user_transactions, settlement_header and local_settlement
+ * with its own lock. CompoundPayment works the way the real one does. If
+ * everyone is in one partition it's a single SettleLocalPayment. Otherwise
+ * StartSettlementHeader claims txnId, then StartTransactionPayer and
+ * StartTransactionPayees for each partition, then SetPayerDone and the header
+ * to PAYERDONE, then SetTransactionEntriesDone for each partition and the
+ * header to DONE, taking one partition lock at a time. Rows go from PENDING
+ * to PAYERDONE to DONE, a reused txnId gets the original's outcome, and the
+ * status codes and messages are the ones in StartTransactionPayer. DONE rows
+ * are folded straight into the balance, as CompactBalances would eventually
+ * do.
+ * <p>
+ * Use asClient() to get something TestClient can use. Callbacks run on the
+ * calling thread before callProcedure returns. Only the calls TestClient,
+ * BalanceLoader and BenchmarkReset make are understood; anything else gets
+ * GRACEFUL_FAILURE. There's no bulk loader and no tasks.
+ */
+public class SettlementSimulator {
+
+    public static final String HOSTNAME = "simulator";
+
+    public static final int DEFAULT_PARTITION_COUNT = 8;
+
+    static final String TRANSACTION_STATUS_QUERY = "TRANSACTION_STATUS";
+
+    final Partition[] partitions;
+
+    public SettlementSimulator(int partitionCount) {
+
+        partitions = new Partition[Math.max(1, partitionCount)];
+
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Partition();
+        }
+    }
+
+    /**
+     * @param hostnames what the user gave us instead of a list of hosts, e.g.
+     *                  'simulator' or 'simulator:16'
+     * @return a simulator with the requested number of partitions
+     */
+    public static SettlementSimulator fromHostname(String hostnames) {
+
+        int partitionCount = DEFAULT_PARTITION_COUNT;
+        final int colon = hostnames.indexOf(':');
+
+        if (colon > -1) {
+            partitionCount = Integer.parseInt(hostnames.substring(colon + 1));
+        }
+
+        return new SettlementSimulator(partitionCount);
+    }
+
+    /**
+     * @param hostnames
+     * @return true if hostnames is asking for a simulator instead of a cluster
+     */
+    public static boolean isSimulator(String hostnames) {
+        return hostnames != null && hostnames.toLowerCase().startsWith(HOSTNAME);
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    public int getPartitionForUser(long userId) {
+
+        // Spread sequential userids the way the hashinator would
+        return (int) (((userId * 0x9E3779B97F4A7C15L) >>> 33) % partitions.length);
+    }
+
+    /**
+     * @return a Client whose calls run against this simulator.
+     */
+    public Client asClient() {
+
+        return (Client) Proxy.newProxyInstance(Client.class.getClassLoader(), new Class<?>[] { Client.class },
+                new ClientHandler());
+    }
+
+    /**
+     * Equivalent of user_balances.UPSERT
+     */
+    public void upsertBalance(long userId, long balance) {
+
+        Partition p = partitions[getPartitionForUser(userId)];
+
+        synchronized (p) {
+            Account a = p.accounts.get(userId);
+
+            if (a == null) {
+                p.accounts.put(userId, new Account(balance));
+            } else {
+                a.balance = balance;
+            }
+        }
+    }
+
+    /**
+     * @return the balance including DONE transactions, or null if there is no
+     *         such user.
+     */
+    public Long getBalance(long userId) {
+
+        Partition p = partitions[getPartitionForUser(userId)];
+
+        synchronized (p) {
+            Account a = p.accounts.get(userId);
+
+            if (a == null) {
+                return null;
+            }
+
+            return a.balance;
+        }
+    }
+
+    /**
+     * Equivalent of ResetTransactions. Balances are left alone.
+     */
+    public void resetTransactions() {
+
+        for (Partition p : partitions) {
+            synchronized (p) {
+                p.openTransactions.clear();
+                p.statusCounts.clear();
+                p.headers.clear();
+                p.localSettlements.clear();
+
+                for (Account a : p.accounts.values()) {
+                    a.inFlight = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return how many user_transactions rows each status has, as in the
+     *         TRANSACTION_STATUS view.
+     */
+    public TreeMap<String, Long> getStatusCounts() {
+
+        TreeMap<String, Long> totals = new TreeMap<>();
+
+        for (Partition p : partitions) {
+            synchronized (p) {
+                for (Entry<String, long[]> entry : p.statusCounts.entrySet()) {
+                    if (entry.getValue()[0] != 0) {
+                        totals.merge(entry.getKey(), entry.getValue()[0], Long::sum);
+                    }
+                }
+            }
+        }
+
+        return totals;
+    }
+
+    /**
+     * Run CompoundPayment.
+     */
+    public SimulatedResponse compoundPayment(long payerId, long txnId, long[] payeeId, long[] amounts,
+            Date effectiveDate) {
+
+        if (amounts == null || payeeId == null || effectiveDate == null) {
+            return SimulatedResponse.abort(StartTransactionPayer.PARAMETER_NULL_CODE,
+                    StartTransactionPayer.PARAMETER_NULL_MESSAGE);
+        }
+
+        if (amounts.length != payeeId.length) {
+            return SimulatedResponse.abort(StartTransactionPayer.PAYEE_LIST_MISMATCH_CODE,
+                    StartTransactionPayer.PAYEE_LIST_MISMATCH_MESSAGE);
+        }
+
+        if (amounts.length > StartTransactionPayer.MAX_PAYEES) {
+            return SimulatedResponse.abort(StartTransactionPayer.PAYEE_LIST_TOOLONG_CODE,
+                    StartTransactionPayer.PAYEE_LIST_TOOLONG_MESSAGE);
+        }
+
+        if (StartTransactionPayer.hasDuplicateParticipants(payerId, payeeId)) {
+            return SimulatedResponse.abort(StartTransactionPayer.DUPLICATE_PARTICIPANT_CODE,
+                    StartTransactionPayer.DUPLICATE_PARTICIPANT_MESSAGE);
+        }
+
+        final long effectiveMs = effectiveDate.getTime();
+        final StringBuilder errorList = new StringBuilder();
+        ArrayList<SimulatedResponse> responses = new ArrayList<>();
+
+        // Everyone in one partition means one SettleLocalPayment call
+        if (isColocated(payerId, payeeId)) {
+
+            SimulatedResponse r = settleLocalPayment(payerId, txnId, payeeId, amounts, effectiveMs);
+
+            if (r.appStatus == StartTransactionPayer.ALREADY_SUBMITTED_CODE) {
+                return resubmission(r.appStatusString);
+            }
+
+            responses.add(r);
+            final byte errorCode = checkResponses(responses, StartTransactionPayer.DONE_CODE, errorList);
+
+            if (errorList.length() > 0) {
+                return new SimulatedResponse(ClientResponse.SUCCESS, "", errorCode, errorList.toString());
+            }
+
+            return SimulatedResponse.app(StartTransactionPayer.DONE_CODE, StartTransactionPayer.DONE_MESSAGE);
+        }
+
+        // Claim txnId
+        SimulatedResponse claim = startSettlementHeader(txnId);
+
+        if (claim.appStatus == StartTransactionPayer.ALREADY_SUBMITTED_CODE) {
+            return resubmission(claim.appStatusString);
+        }
+
+        byte returnStatusByte = StartTransactionPayer.DONE_CODE;
+        String returnAppStatus = StartTransactionPayer.DONE_MESSAGE;
+
+        // Launch payer and payee rows
+        long payerAmount = 0;
+
+        for (long amount : amounts) {
+            payerAmount -= amount;
+        }
+
+        ArrayList<long[]> payeeGroups = groupByPartition(payeeId, amounts);
+
+        responses.add(startTransactionPayer(payerId, payerAmount, txnId, effectiveMs));
+
+        for (int i = 0; i < payeeGroups.size(); i += 2) {
+            responses.add(startTransactionPayees(payeeGroups.get(i), payerId, payeeGroups.get(i + 1), txnId,
+                    effectiveMs));
+        }
+
+        byte errorCode = checkResponses(responses, StartTransactionPayer.PENDING_CODE, errorList);
+        boolean payerDone = false;
+
+        if (errorList.length() == 0) {
+
+            responses.clear();
+            responses.add(setPayerDone(payerId, txnId));
+            payerDone = responses.get(0).status == ClientResponse.SUCCESS
+                    && responses.get(0).appStatus == StartTransactionPayer.PAYERDONE_CODE;
+
+            SimulatedResponse headerResponse = setSettlementHeaderStatus(txnId,
+                    StartTransactionPayer.PAYERDONE_MESSAGE);
+
+            // As in CompoundPayment, a header that's already DONE is fine
+            if (headerResponse.appStatus != StartTransactionPayer.HEADER_FINISHED_CODE
+                    || !StartTransactionPayer.DONE_MESSAGE.equals(headerResponse.appStatusString)) {
+                responses.add(headerResponse);
+            }
+
+            errorCode = checkResponses(responses, StartTransactionPayer.PAYERDONE_CODE, errorList);
+        }
+
+        if (errorList.length() > 0) {
+            returnStatusByte = errorCode;
+            returnAppStatus = StartTransactionPayer.CANTSTART;
+        } else {
+
+            long[] participants = Arrays.copyOf(payeeId, payeeId.length + 1);
+            participants[payeeId.length] = payerId;
+
+            ArrayList<long[]> participantGroups = groupByPartition(participants, null);
+            responses.clear();
+
+            for (int i = 0; i < participantGroups.size(); i += 2) {
+                responses.add(setTransactionEntriesDone(participantGroups.get(i), txnId));
+            }
+
+            checkResponses(responses, StartTransactionPayer.DONE_CODE, errorList);
+        }
+
+        if (errorList.length() == 0) {
+            setSettlementHeaderStatus(txnId, StartTransactionPayer.DONE_MESSAGE);
+            return new SimulatedResponse(ClientResponse.SUCCESS, "", returnStatusByte, returnAppStatus);
+        }
+
+        // Once the payer is PAYERDONE cleaning up means finishing
+        if (payerDone) {
+            endTransactionEntries(txnId, StartTransactionPayer.DONE_MESSAGE);
+            setSettlementHeaderStatus(txnId, StartTransactionPayer.DONE_MESSAGE);
+            return SimulatedResponse.app(StartTransactionPayer.DONE_CODE, StartTransactionPayer.DONE_MESSAGE);
+        }
+
+        endTransactionEntries(txnId, returnAppStatus);
+        setSettlementHeaderStatus(txnId, returnAppStatus);
+        return new SimulatedResponse(ClientResponse.SUCCESS, "", returnStatusByte, errorList.toString());
+    }
+
+    /**
+     * What CompoundPayment returns when txnId has been used before.
+     */
+    private static SimulatedResponse resubmission(String originalStatus) {
+        return SimulatedResponse.app(StartTransactionPayer.getResubmissionCode(originalStatus), originalStatus);
+    }
+
+    private boolean isColocated(long payerId, long[] payeeId) {
+
+        final int payerPartition = getPartitionForUser(payerId);
+
+        for (long payee : payeeId) {
+            if (getPartitionForUser(payee) != payerPartition) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Equivalent of StartSettlementHeader. The header lives in the partition
+     * that owns txnId, and whoever creates it owns txnId.
+     */
+    SimulatedResponse startSettlementHeader(long txnId) {
+
+        Partition p = partitions[getPartitionForUser(txnId)];
+
+        synchronized (p) {
+
+            String headerStatus = p.headers.get(txnId);
+
+            if (headerStatus != null) {
+                return SimulatedResponse.app(StartTransactionPayer.ALREADY_SUBMITTED_CODE, headerStatus);
+            }
+
+            p.headers.put(txnId, StartTransactionPayer.PENDING_MESSAGE);
+        }
+
+        return SimulatedResponse.app(StartTransactionPayer.PENDING_CODE, StartTransactionPayer.PENDING_MESSAGE);
+    }
+
+    /**
+     * Equivalent of SetSettlementHeaderStatus. Headers that have finished are
+     * left alone, and we say what they finished as.
+     */
+    SimulatedResponse setSettlementHeaderStatus(long txnId, String newStatus) {
+
+        Partition p = partitions[getPartitionForUser(txnId)];
+
+        synchronized (p) {
+
+            String headerStatus = p.headers.get(txnId);
+
+            if (headerStatus == null) {
+                return SimulatedResponse.app(StartTransactionPayer.HEADER_FINISHED_CODE,
+                        StartTransactionPayer.NO_SUCH_HEADER_MESSAGE);
+            }
+
+            if (!headerStatus.equals(StartTransactionPayer.PENDING_MESSAGE)
+                    && !headerStatus.equals(StartTransactionPayer.PAYERDONE_MESSAGE)) {
+                return SimulatedResponse.app(StartTransactionPayer.HEADER_FINISHED_CODE, headerStatus);
+            }
+
+            p.headers.put(txnId, newStatus);
+        }
+
+        if (newStatus.equals(StartTransactionPayer.PAYERDONE_MESSAGE)) {
+            return SimulatedResponse.app(StartTransactionPayer.PAYERDONE_CODE,
+                    StartTransactionPayer.PAYERDONE_MESSAGE);
+        }
+
+        return SimulatedResponse.app(StartTransactionPayer.DONE_CODE, StartTransactionPayer.DONE_MESSAGE);
+    }
+
+    /**
+     * Equivalent of SettleLocalPayment. Everything happens under the payer's
+     * partition lock, and either every row is DONE or nothing changes.
+     */
+    SimulatedResponse settleLocalPayment(long payingUserId, long txnId, long[] paidUserIds, long[] paidAmounts,
+            long effectiveMs) {
+
+        Partition p = partitions[getPartitionForUser(payingUserId)];
+
+        synchronized (p) {
+
+            // A resubmission gets the original's outcome, even if it's now
+            // too late
+            HashSet<Long> payers = p.localSettlements.get(txnId);
+
+            if (payers != null && payers.contains(payingUserId)) {
+                return SimulatedResponse.app(StartTransactionPayer.ALREADY_SUBMITTED_CODE,
+                        StartTransactionPayer.DONE_MESSAGE);
+            }
+
+            Row earlier = p.findRow(payingUserId, txnId);
+
+            if (earlier != null) {
+                return SimulatedResponse.app(StartTransactionPayer.ALREADY_SUBMITTED_CODE, earlier.status);
+            }
+
+            if (effectiveMs < System.currentTimeMillis() - StartTransactionPayer.GRACE_MS) {
+                return SimulatedResponse.app(StartTransactionPayer.MISSED_EFFECTIVE_DATE_CODE,
+                        StartTransactionPayer.MISSED_EFFECTIVE_DATE_MESSAGE);
+            }
+
+            Account payer = p.accounts.get(payingUserId);
+
+            if (payer == null) {
+                return SimulatedResponse.app(StartTransactionPayer.NO_SUCH_USER_CODE,
+                        StartTransactionPayer.NO_SUCH_USER_MESSAGE);
+            }
+
+            for (long paidUserId : paidUserIds) {
+                if (!p.accounts.containsKey(paidUserId)) {
+                    return SimulatedResponse.app(StartTransactionPayer.NO_SUCH_USER_CODE,
+                            StartTransactionPayer.NO_SUCH_USER_MESSAGE);
+                }
+            }
+
+            long payingAmount = 0;
+
+            for (long paidAmount : paidAmounts) {
+                payingAmount -= paidAmount;
+            }
+
+            final long availableCredit = payer.balance + payer.inFlight;
+
+            if (availableCredit + payingAmount < 0) {
+                return SimulatedResponse.app(StartTransactionPayer.NOT_ENOUGH_MONEY_CODE,
+                        StartTransactionPayer.NOT_ENOUGH_MONEY_MESSAGE + " " + availableCredit);
+            }
+
+            payer.balance += payingAmount;
+
+            for (int i = 0; i < paidUserIds.length; i++) {
+                p.accounts.get(paidUserIds[i]).balance += paidAmounts[i];
+            }
+
+            p.count(StartTransactionPayer.DONE_MESSAGE, paidUserIds.length + 1);
+            p.localSettlements.computeIfAbsent(txnId, k -> new HashSet<>()).add(payingUserId);
+        }
+
+        return SimulatedResponse.app(StartTransactionPayer.DONE_CODE, StartTransactionPayer.DONE_MESSAGE);
+    }
+
+    /**
+     * Equivalent of StartTransactionPayer
+     */
+    SimulatedResponse startTransactionPayer(long payingUserId, long payingAmount, long txnId, long effectiveMs) {
+
+        if (effectiveMs < System.currentTimeMillis() - StartTransactionPayer.GRACE_MS) {
+            return SimulatedResponse.app(StartTransactionPayer.MISSED_EFFECTIVE_DATE_CODE,
+                    StartTransactionPayer.MISSED_EFFECTIVE_DATE_MESSAGE);
+        }
+
+        Partition p = partitions[getPartitionForUser(payingUserId)];
+
+        synchronized (p) {
+
+            Account a = p.accounts.get(payingUserId);
+
+            if (a == null) {
+                return SimulatedResponse.app(StartTransactionPayer.NO_SUCH_USER_CODE,
+                        StartTransactionPayer.NO_SUCH_USER_MESSAGE);
+            }
+
+            // DONE transactions plus money already promised to in-flight ones...
+            final long availableCredit = a.balance + a.inFlight;
+
+            if (availableCredit + payingAmount < 0) {
+                return SimulatedResponse.app(StartTransactionPayer.NOT_ENOUGH_MONEY_CODE,
+                        StartTransactionPayer.NOT_ENOUGH_MONEY_MESSAGE + " " + availableCredit);
+            }
+
+            if (!p.insertRow(new Row(payingUserId, payingAmount, txnId))) {
+                return SimulatedResponse.constraintViolation(payingUserId, txnId);
+            }
+
+            a.inFlight += payingAmount;
+        }
+
+        return SimulatedResponse.app(StartTransactionPayer.PENDING_CODE, StartTransactionPayer.PENDING_MESSAGE);
+    }
+
+    /**
+     * Equivalent of StartTransactionPayees. Either all payees get a PENDING row
+     * or none do.
+     */
+    SimulatedResponse startTransactionPayees(long[] paidUserIds, long payingUserId, long[] paidAmounts, long txnId,
+            long effectiveMs) {
+
+        if (effectiveMs < System.currentTimeMillis() - StartTransactionPayer.GRACE_MS) {
+            return SimulatedResponse.app(StartTransactionPayer.MISSED_EFFECTIVE_DATE_CODE,
+                    StartTransactionPayer.MISSED_EFFECTIVE_DATE_MESSAGE);
+        }
+
+        Partition p = partitions[getPartitionForUser(paidUserIds[0])];
+
+        synchronized (p) {
+
+            for (long paidUserId : paidUserIds) {
+                if (!p.accounts.containsKey(paidUserId)) {
+                    return SimulatedResponse.app(StartTransactionPayer.NO_SUCH_USER_CODE,
+                            StartTransactionPayer.NO_SUCH_USER_MESSAGE);
+                }
+            }
+
+            for (long paidUserId : paidUserIds) {
+                if (p.findRow(paidUserId, txnId) != null) {
+                    return SimulatedResponse.constraintViolation(paidUserId, txnId);
+                }
+            }
+
+            for (int i = 0; i < paidUserIds.length; i++) {
+                p.insertRow(new Row(paidUserIds[i], paidAmounts[i], txnId));
+            }
+        }
+
+        return SimulatedResponse.app(StartTransactionPayer.PENDING_CODE, StartTransactionPayer.PENDING_MESSAGE);
+    }
+
+    /**
+     * Equivalent of SetPayerDone. Moves the payer's row from PENDING to
+     * PAYERDONE, after which the payment is going to finish.
+     */
+    SimulatedResponse setPayerDone(long userId, long txnId) {
+
+        Partition p = partitions[getPartitionForUser(userId)];
+
+        synchronized (p) {
+
+            Row r = p.findRow(userId, txnId);
+
+            if (r == null || !r.status.equals(StartTransactionPayer.PENDING_MESSAGE)) {
+                return new SimulatedResponse(ClientResponse.GRACEFUL_FAILURE,
+                        "Expected one row for userid " + userId + " txn " + txnId,
+                        ClientResponse.UNINITIALIZED_APP_STATUS_CODE, "");
+            }
+
+            p.setStatus(r, StartTransactionPayer.PAYERDONE_MESSAGE);
+        }
+
+        return SimulatedResponse.app(StartTransactionPayer.PAYERDONE_CODE, StartTransactionPayer.PAYERDONE_MESSAGE);
+    }
+
+    /**
+     * Equivalent of SetTransactionEntriesDone. Rows that are missing, already
+     * finished or older than TX_FINISH_GRACE_WINDOW_MS are left alone and give
+     * MISSED_EFFECTIVE_DATE_CODE.
+     */
+    SimulatedResponse setTransactionEntriesDone(long[] userIds, long txnId) {
+
+        Partition p = partitions[getPartitionForUser(userIds[0])];
+        final long cutoffMs = System.currentTimeMillis() - SetTransactionEntryDone.TX_FINISH_GRACE_WINDOW_MS;
+        boolean missedOne = false;
+
+        synchronized (p) {
+
+            for (long userId : userIds) {
+
+                Row r = p.findRow(userId, txnId);
+
+                if (r == null || r.insertMs < cutoffMs) {
+                    missedOne = true;
+                } else {
+                    Account a = p.accounts.get(userId);
+
+                    if (r.amount < 0) {
+                        a.inFlight -= r.amount;
+                    }
+
+                    a.balance += r.amount;
+                    p.setStatus(r, StartTransactionPayer.DONE_MESSAGE);
+                    p.removeRow(r);
+                }
+            }
+        }
+
+        if (missedOne) {
+            return SimulatedResponse.app(StartTransactionPayer.MISSED_EFFECTIVE_DATE_CODE,
+                    StartTransactionPayer.MISSED_EFFECTIVE_DATE_MESSAGE);
+        }
+
+        return SimulatedResponse.app(StartTransactionPayer.DONE_CODE, StartTransactionPayer.DONE_MESSAGE);
+    }
+
+    /**
+     * Equivalent of EndTransactionEntries for every participant. Unfinished
+     * rows for txnId are finished if status is DONE, and otherwise get status
+     * and stop counting against the payer's credit.
+     */
+    void endTransactionEntries(long txnId, String status) {
+
+        final boolean finishing = status.equals(StartTransactionPayer.DONE_MESSAGE);
+
+        for (Partition p : partitions) {
+            synchronized (p) {
+
+                ArrayList<Row> rows = p.openTransactions.remove(txnId);
+
+                if (rows != null) {
+                    for (Row r : rows) {
+                        Account a = p.accounts.get(r.userId);
+
+                        if (r.amount < 0) {
+                            a.inFlight -= r.amount;
+                        }
+
+                        if (finishing) {
+                            a.balance += r.amount;
+                        }
+
+                        p.setStatus(r, status);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param userIds
+     * @param amounts can be null
+     * @return pairs of arrays: the userids for a partition, then their amounts
+     */
+    private ArrayList<long[]> groupByPartition(long[] userIds, long[] amounts) {
+
+        int[] counts = new int[partitions.length];
+
+        for (long userId : userIds) {
+            counts[getPartitionForUser(userId)]++;
+        }
+
+        long[][] groupUsers = new long[partitions.length][];
+        long[][] groupAmounts = new long[partitions.length][];
+        int[] filled = new int[partitions.length];
+
+        for (int i = 0; i < userIds.length; i++) {
+
+            final int partitionId = getPartitionForUser(userIds[i]);
+
+            if (groupUsers[partitionId] == null) {
+                groupUsers[partitionId] = new long[counts[partitionId]];
+                groupAmounts[partitionId] = new long[counts[partitionId]];
+            }
+
+            groupUsers[partitionId][filled[partitionId]] = userIds[i];
+
+            if (amounts != null) {
+                groupAmounts[partitionId][filled[partitionId]] = amounts[i];
+            }
+
+            filled[partitionId]++;
+        }
+
+        ArrayList<long[]> groups = new ArrayList<>();
+
+        for (int i = 0; i < partitions.length; i++) {
+            if (groupUsers[i] != null) {
+                groups.add(groupUsers[i]);
+                groups.add(groupAmounts[i]);
+            }
+        }
+
+        return groups;
+    }
+
+    /**
+     * Same checks as CompoundPayment.hasNoErrors.
+     *
+     * @return the status byte of the last failure, if any
+     */
+    private static byte checkResponses(ArrayList<SimulatedResponse> responses, byte okCode,
+            StringBuilder errorList) {
+
+        byte returnStatusByte = okCode;
+
+        for (int i = 0; i < responses.size(); i++) {
+
+            SimulatedResponse r = responses.get(i);
+
+            if (r.status != ClientResponse.SUCCESS) {
+                returnStatusByte = r.status;
+                errorList.append("DB Error ").append(i).append(' ').append(returnStatusByte).append(':')
+                        .append(r.statusString).append(':');
+            } else if (r.appStatus != okCode) {
+                returnStatusByte = r.appStatus;
+                errorList.append("App Error ").append(i).append(' ').append(returnStatusByte).append(':')
+                        .append(r.appStatusString).append(':');
+            }
+        }
+
+        return returnStatusByte;
+    }
+
+    private static long toLong(Object o) {
+        return ((Number) o).longValue();
+    }
+
+    private static Date toDate(Object o) {
+
+        if (o instanceof TimestampType) {
+            return ((TimestampType) o).asExactJavaDate();
+        }
+
+        return (Date) o;
+    }
+
+    /**
+     * Run a procedure call the way the server would.
+     */
+    SimulatedResponse call(String procName, Object[] params) {
+
+        try {
+            switch (procName) {
+
+            case "CompoundPayment":
+                return compoundPayment(toLong(params[0]), toLong(params[1]), (long[]) params[2],
+                        (long[]) params[3], toDate(params[4]));
+
+            case "user_balances.UPSERT":
+                upsertBalance(toLong(params[0]), toLong(params[1]));
+                return SimulatedResponse.ok();
+
+            case "GetBalance":
+                return getBalanceResponse(toLong(params[0]));
+
+            case "ResetTransactions":
+                resetTransactions();
+                return SimulatedResponse.ok();
+
+            case "UpsertStats":
+            case "promBL_latency_stats.UPSERT":
+                // Nowhere to put these, and the client keeps its own copy...
+                return SimulatedResponse.ok();
+
+            case "@AdHoc":
+                if (((String) params[0]).toUpperCase().contains(TRANSACTION_STATUS_QUERY)) {
+                    return getTransactionStatusResponse();
+                }
+
+                break;
+
+            default:
+                break;
+            }
+
+        } catch (RuntimeException e) {
+            return new SimulatedResponse(ClientResponse.GRACEFUL_FAILURE, procName + ": " + e,
+                    ClientResponse.UNINITIALIZED_APP_STATUS_CODE, "");
+        }
+
+        return new SimulatedResponse(ClientResponse.GRACEFUL_FAILURE, procName + " isn't simulated",
+                ClientResponse.UNINITIALIZED_APP_STATUS_CODE, "");
+    }
+
+    private SimulatedResponse getBalanceResponse(long userId) {
+
+        VoltTable t = new VoltTable(new VoltTable.ColumnInfo("USERID", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("BALANCE_AMOUNT", VoltType.BIGINT));
+
+        Long balance = getBalance(userId);
+
+        if (balance != null) {
+            t.addRow(userId, balance);
+        }
+
+        SimulatedResponse r = SimulatedResponse.ok();
+        r.results = new VoltTable[] { t };
+        return r;
+    }
+
+    private SimulatedResponse getTransactionStatusResponse() {
+
+        VoltTable t = new VoltTable(new VoltTable.ColumnInfo("TRAN_STATUS", VoltType.STRING),
+                new VoltTable.ColumnInfo("HOW_MANY", VoltType.BIGINT));
+
+        for (Entry<String, Long> entry : getStatusCounts().entrySet()) {
+            t.addRow(entry.getKey(), entry.getValue());
+        }
+
+        SimulatedResponse r = SimulatedResponse.ok();
+        r.results = new VoltTable[] { t };
+        return r;
+    }
+
+    /**
+     * Implements the parts of Client that TestClient uses.
+     */
+    class ClientHandler implements InvocationHandler {
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+            switch (method.getName()) {
+
+            case "callProcedure":
+
+                if (args[0] instanceof ProcedureCallback) {
+                    ProcedureCallback cb = (ProcedureCallback) args[0];
+                    SimulatedResponse r = call((String) args[1], paramsFrom(args, 2));
+                    cb.clientCallback(r.toClientResponse());
+                    return true;
+                }
+
+                // Unlike the real thing we don't throw ProcCallException, so
+                // callers have to check getStatus()
+                return call((String) args[0], paramsFrom(args, 1)).toClientResponse();
+
+            case "getPartitionForParameter":
+                return (long) getPartitionForUser(toLong(args[1]));
+
+            case "callAllPartitionProcedure":
+                return Array.newInstance(method.getReturnType().getComponentType(), 0);
+
+            case "hashCode":
+                return System.identityHashCode(proxy);
+
+            case "equals":
+                return proxy == args[0];
+
+            case "toString":
+                return "SettlementSimulator with " + partitions.length + " partitions";
+
+            default:
+                break;
+            }
+
+            // drain, close, createConnection etc. have nothing to do
+            final Class<?> returnType = method.getReturnType();
+
+            if (returnType == boolean.class) {
+                return true;
+            } else if (returnType == long.class) {
+                return 0L;
+            } else if (returnType == int.class) {
+                return 0;
+            }
+
+            return null;
+        }
+
+        private Object[] paramsFrom(Object[] args, int start) {
+
+            // Varargs arrive as an array in the last argument
+            if (args.length == start + 1 && args[start] instanceof Object[]) {
+                return (Object[]) args[start];
+            }
+
+            return Arrays.copyOfRange(args, start, args.length);
+        }
+    }
+
+    /**
+     * What a simulated procedure call returns.
+     */
+    public static class SimulatedResponse implements InvocationHandler {
+
+        static final VoltTable[] NO_RESULTS = new VoltTable[0];
+
+        final byte status;
+        final String statusString;
+        final byte appStatus;
+        final String appStatusString;
+        VoltTable[] results = NO_RESULTS;
+
+        SimulatedResponse(byte status, String statusString, byte appStatus, String appStatusString) {
+            this.status = status;
+            this.statusString = statusString;
+            this.appStatus = appStatus;
+            this.appStatusString = appStatusString;
+        }
+
+        static SimulatedResponse ok() {
+            return new SimulatedResponse(ClientResponse.SUCCESS, "", ClientResponse.UNINITIALIZED_APP_STATUS_CODE,
+                    "");
+        }
+
+        static SimulatedResponse app(byte appStatus, String appStatusString) {
+            return new SimulatedResponse(ClientResponse.SUCCESS, "", appStatus, appStatusString);
+        }
+
+        /**
+         * A CompoundPayment that fails its own parameter checks.
+         */
+        static SimulatedResponse abort(byte appStatus, String message) {
+            return new SimulatedResponse(ClientResponse.USER_ABORT, message, appStatus, message);
+        }
+
+        /**
+         * What the server does if we try to insert a duplicate PK.
+         */
+        static SimulatedResponse constraintViolation(long userId, long txnId) {
+            return new SimulatedResponse(ClientResponse.GRACEFUL_FAILURE,
+                    "Constraint violation: userid " + userId + " already has txn " + txnId,
+                    ClientResponse.UNINITIALIZED_APP_STATUS_CODE, "");
+        }
+
+        ClientResponse toClientResponse() {
+            return (ClientResponse) Proxy.newProxyInstance(ClientResponse.class.getClassLoader(),
+                    new Class<?>[] { ClientResponse.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+            switch (method.getName()) {
+            case "getStatus":
+                return status;
+            case "getStatusString":
+                return statusString;
+            case "getAppStatus":
+                return appStatus;
+            case "getAppStatusString":
+                return appStatusString;
+            case "getResults":
+                return results;
+            case "toString":
+                return toString();
+            default:
+                break;
+            }
+
+            // Roundtrip times and the like; everything happens in zero time
+            final Class<?> returnType = method.getReturnType();
+
+            if (returnType == long.class) {
+                return 0L;
+            } else if (returnType == int.class) {
+                return 0;
+            } else if (returnType == boolean.class) {
+                return false;
+            }
+
+            return null;
+        }
+
+        public byte getStatus() {
+            return status;
+        }
+
+        public byte getAppStatus() {
+            return appStatus;
+        }
+
+        public String getAppStatusString() {
+            return appStatusString;
+        }
+
+        @Override
+        public String toString() {
+            return "SimulatedResponse [status=" + status + ", statusString=" + statusString + ", appStatus="
+                    + appStatus + ", appStatusString=" + appStatusString + "]";
+        }
+    }
+
+    /**
+     * One user_balances row, plus the total of the payer rows that haven't
+     * finished yet.
+     */
+    static class Account {
+
+        long balance;
+        long inFlight = 0;
+
+        Account(long balance) {
+            this.balance = balance;
+        }
+    }
+
+    /**
+     * One user_transactions row that hasn't finished yet.
+     */
+    static class Row {
+
+        final long userId;
+        final long amount;
+        final long txnId;
+        final long insertMs = System.currentTimeMillis();
+        String status = StartTransactionPayer.PENDING_MESSAGE;
+
+        Row(long userId, long amount, long txnId) {
+            this.userId = userId;
+            this.amount = amount;
+            this.txnId = txnId;
+        }
+    }
+
+    /**
+     * One partition's worth of data. Callers lock it for the length of a
+     * simulated single partition procedure.
+     */
+    static class Partition {
+
+        final HashMap<Long, Account> accounts = new HashMap<>();
+        final HashMap<Long, ArrayList<Row>> openTransactions = new HashMap<>();
+        final HashMap<String, long[]> statusCounts = new HashMap<>();
+
+        // settlement_header status by txnId, for the txnIds we own
+        final HashMap<Long, String> headers = new HashMap<>();
+
+        // local_settlement, as payers by txnId
+        final HashMap<Long, HashSet<Long>> localSettlements = new HashMap<>();
+
+        Row findRow(long userId, long txnId) {
+
+            ArrayList<Row> rows = openTransactions.get(txnId);
+
+            if (rows != null) {
+                for (Row r : rows) {
+                    if (r.userId == userId) {
+                        return r;
+                    }
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * @return false if there's already a row for this user and txn
+         */
+        boolean insertRow(Row r) {
+
+            ArrayList<Row> rows = openTransactions.get(r.txnId);
+
+            if (rows == null) {
+                rows = new ArrayList<>(2);
+                openTransactions.put(r.txnId, rows);
+            } else if (findRow(r.userId, r.txnId) != null) {
+                return false;
+            }
+
+            rows.add(r);
+            count(r.status, 1);
+            return true;
+        }
+
+        void removeRow(Row r) {
+
+            ArrayList<Row> rows = openTransactions.get(r.txnId);
+            rows.remove(r);
+
+            if (rows.isEmpty()) {
+                openTransactions.remove(r.txnId);
+            }
+        }
+
+        void setStatus(Row r, String status) {
+            count(r.status, -1);
+            r.status = status;
+            count(status, 1);
+        }
+
+        void count(String status, long delta) {
+            statusCounts.computeIfAbsent(status, k -> new long[1])[0] += delta;
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package nwaysettlement.client;
+
+import java.util.Arrays;
+
+import org.voltdb.client.Client;
+import org.voltdb.voltutil.stats.PrometheusExporter;
+
+/**
+ * Collects promBL_latency_stats rows and sends them all in one UpsertStats
+ * call when flush() is called. Rows are kept in parallel arrays that are
+ * reused between flushes, so the cost of publishing doesn't go up as we add
+ * percentiles or statuses.
+ * <p>
+ * If we have a PrometheusExporter rows become gauges on it instead, and
+ * nothing is sent to the database.
+ */
+public class StatsPublisher {
+
+    private static final int INITIAL_SIZE = 64;
+
+    final Client c;
+    final PrometheusExporter exporter;
+    final ComplainOnErrorCallback callback = new ComplainOnErrorCallback();
+
+    String[] statnames = new String[INITIAL_SIZE];
+    String[] stathelps = new String[INITIAL_SIZE];
+    String[] eventTypes = new String[INITIAL_SIZE];
+    String[] eventNames = new String[INITIAL_SIZE];
+    long[] statvalues = new long[INITIAL_SIZE];
+    int statCount = 0;
+
+    public StatsPublisher(Client c) {
+        this(c, null);
+    }
+
+    /**
+     * @param c
+     * @param exporter if not null, where rows go instead of the database
+     */
+    public StatsPublisher(Client c, PrometheusExporter exporter) {
+        this.c = c;
+        this.exporter = exporter;
+    }
+
+    /**
+     * @return true if we're writing to a PrometheusExporter, not the database
+     */
+    public boolean isExporting() {
+        return exporter != null;
+    }
+
+    /**
+     * Add a row. Nothing is sent until flush().
+     */
+    public synchronized void add(String statname, String stathelp, String eventType, String eventName,
+            long statvalue) {
+
+        if (exporter != null) {
+            exporter.setGauge(statname + "_" + eventType + "_" + eventName, statvalue);
+            return;
+        }
+
+        if (statCount == statnames.length) {
+            final int newSize = statCount * 2;
+            statnames = Arrays.copyOf(statnames, newSize);
+            stathelps = Arrays.copyOf(stathelps, newSize);
+            eventTypes = Arrays.copyOf(eventTypes, newSize);
+            eventNames = Arrays.copyOf(eventNames, newSize);
+            statvalues = Arrays.copyOf(statvalues, newSize);
+        }
+
+        statnames[statCount] = statname;
+        stathelps[statCount] = stathelp;
+        eventTypes[statCount] = eventType;
+        eventNames[statCount] = eventName;
+        statvalues[statCount] = statvalue;
+        statCount++;
+    }
+
+    /**
+     * Send everything added since the last flush in one asynchronous call.
+     *
+     * @return how many rows were sent
+     */
+    public synchronized int flush() throws Exception {
+
+        final int sent = statCount;
+
+        if (sent == 0) {
+            return 0;
+        }
+
+        statCount = 0;
+
+        // The arrays are sent as they are, so copy exactly the part we've used
+        c.callProcedure(callback, "UpsertStats", Arrays.copyOf(statnames, sent), Arrays.copyOf(stathelps, sent),
+                Arrays.copyOf(eventTypes, sent), Arrays.copyOf(eventNames, sent), Arrays.copyOf(statvalues, sent));
+
+        return sent;
+    }
+
+    public synchronized int getStatCount() {
+        return statCount;
+    }
+
+}
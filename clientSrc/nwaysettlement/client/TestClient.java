@@ -8,29 +8,38 @@
 
 package nwaysettlement.client;
 
-import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.voltdb.client.Client;
 import org.voltdb.client.ClientConfig;
 import org.voltdb.client.ClientFactory;
 import org.voltdb.client.ClientResponse;
-import org.voltdb.client.NoConnectionsException;
-import org.voltdb.client.NullCallback;
-import org.voltdb.client.ProcCallException;
+import org.voltdb.voltutil.stats.PrometheusExporter;
 import org.voltdb.voltutil.stats.SafeHistogramCache;
 import org.voltdb.voltutil.stats.StatsHistogram;
 
 public class TestClient {
 
+    // Shared by all our connections when hosts is 'simulator'
+    private static SettlementSimulator simulator = null;
+
     public static void main(String[] args) {
         try {
             
-            if (args.length != 8) {
-                msg("Usage: hosts tpms usercount trancount delay processingtime participants offset");
+            if (args.length < 8 || args.length > 14) {
+                msg("Usage: hosts tpms usercount trancount delay processingtime participants offset [threads] "
+                        + "[payerdist] [payeedist] [metricsport] [routing] [balances]");
+                msg("where payerdist is uniform, zipf:theta or hotspot:hotpct:trafficpct "
+                        + "and payeedist is sequential or one of those");
+                msg("hosts can be 'simulator' or 'simulator:partitions' to run without a cluster");
+                msg("if metricsport is > 0 stats are served there for Prometheus instead of written to VoltDB");
+                msg("routing is any, payer, grouped or grouped:batchsize");
+                msg("balances is load, restore or none. restore puts back balances saved by BenchmarkReset");
                 System.exit(1);
             }
 
@@ -46,119 +55,150 @@ public class TestClient {
             int processingtime = Integer.parseInt(args[5]);
             int participants = Integer.parseInt(args[6]);
             int offset = Integer.parseInt(args[7]);
+            int threads = 1;
 
-            msg("Hosts=" + args[0]);
-            msg("tpMs=" + tpMs);
-            msg("userCount=" + userCount);
-            msg("tranCount=" + tranCount);
-            msg("delay=" + delay);
-            msg("processingtime=" + processingtime);
-            msg("participants=" + participants);
-            msg("offset=" + offset);
-
-            int tpThisMs = 0;
-            final long startMs = System.currentTimeMillis();
-            long currentMs = System.currentTimeMillis();
-                       long lastQueryMs = System.currentTimeMillis();
-
-            NullCallback nc = new NullCallback();
-
-            msg("Create " + userCount + " balances");
-
-            for (int i = 0; i < userCount; i++) {
-                c.callProcedure(nc, "user_balances.UPSERT", i + offset, 1000000, new Date());
-
-                if (tpThisMs++ > tpMs) {
+            if (args.length >= 9) {
+                threads = Integer.parseInt(args[8]);
+            }
 
-                    // but sleep if we're moving too fast...
-                    while (currentMs == System.currentTimeMillis()) {
-                        Thread.sleep(0, 50000);
-                    }
+            KeyDistribution payerDistribution = KeyDistribution.parse(KeyDistribution.UNIFORM, userCount);
 
-                    currentMs = System.currentTimeMillis();
-                    tpThisMs = 0;
-                }
-
-                if (i % 100000 == 1) {
-                    msg("On balance #" + i);
-                }
+            if (args.length >= 10) {
+                payerDistribution = KeyDistribution.parse(args[9], userCount);
             }
 
-            c.drain();
-
-            msg("Create " + userCount + " balances ...  done");
+            KeyDistribution payeeDistribution = null;
 
-            msg("DELETE FROM promBL_latency_stats;");
-            c.callProcedure("@AdHoc", "DELETE FROM promBL_latency_stats;");
+            if (args.length >= 11 && !args[10].equalsIgnoreCase(LoadGenerator.SEQUENTIAL)) {
+                payeeDistribution = KeyDistribution.parse(args[10], userCount);
+            }
 
-            msg("DELETE FROM user_transactions;");
-            c.callProcedure("@AdHoc", "DELETE FROM user_transactions;");
+            int metricsPort = 0;
 
-            msg("Waiting for 10 seconds so there's a gap in grafana between loading records and starting");
-            Thread.sleep(10000);
+            if (args.length >= 12) {
+                metricsPort = Integer.parseInt(args[11]);
+            }
 
-            Random r = new Random();
+            String routing = SettlementRouter.ANY;
 
-            long txnId = 0;
+            if (args.length >= 13) {
+                routing = args[12];
+            }
 
-            for (int i = 0; i < tranCount; i++) {
+            String balances = "load";
 
-                txnId++;
+            if (args.length >= 14) {
+                balances = args[13];
 
-                int randomFrom = r.nextInt(userCount) + offset;
+                if (!balances.equalsIgnoreCase("load") && !balances.equalsIgnoreCase("restore")
+                        && !balances.equalsIgnoreCase("none")) {
+                    msg("Unknown balances option '" + balances + "'");
+                    System.exit(1);
+                }
+            }
 
-                NWayCompoundTransaction newTran2 = new NWayCompoundTransaction(randomFrom, txnId, delay);
+            msg("Hosts=" + args[0]);
+            msg("tpMs=" + tpMs);
+            msg("userCount=" + userCount);
+            msg("tranCount=" + tranCount);
+            msg("delay=" + delay);
+            msg("processingtime=" + processingtime);
+            msg("participants=" + participants);
+            msg("offset=" + offset);
+            msg("threads=" + threads);
+            msg("payerDistribution=" + payerDistribution);
+            msg("payeeDistribution=" + (payeeDistribution == null ? LoadGenerator.SEQUENTIAL : payeeDistribution));
+            msg("metricsPort=" + metricsPort);
+            msg("routing=" + routing);
+            msg("balances=" + balances);
+
+            PrometheusExporter exporter = null;
+
+            if (metricsPort > 0) {
+                exporter = new PrometheusExporter(statsCache);
+                exporter.start(metricsPort);
+                msg("Serving stats on http://localhost:" + metricsPort + PrometheusExporter.METRICS_PATH);
+            }
 
-                for (int j = 0; j < participants; j++) {
-                    long amount = r.nextInt(100);
-                    newTran2.addPayee(((randomFrom + 1 + j) % userCount) + offset, amount);
-                }
+            // Truncate before restoring, or CompactBalancesTask adds the old
+            // DONE rows to the restored balances
+            BenchmarkReset.resetTransactions(c);
 
-                newTran2.createTransactions(c, txnId);
+            if (balances.equalsIgnoreCase("load")) {
+                BalanceLoader.load(c, userCount, offset, 1000000, threads);
+            } else if (balances.equalsIgnoreCase("restore")) {
+                BenchmarkReset.restoreBalances(c);
+            }
 
-                if (tpThisMs++ > tpMs) {
+            msg("Waiting for 10 seconds so there's a gap in grafana between loading records and starting");
+            Thread.sleep(10000);
 
-                    // but sleep if we're moving too fast...
-                    while (currentMs == System.currentTimeMillis()) {
-                        Thread.sleep(0, 50000);
-                    }
+            // Connecting to every host can take a while, so do it before the
+            // schedule starts, or the time it takes is replayed as a burst
+            SettlementRouter router = new SettlementRouter(c, args[0], routing);
 
-                    currentMs = System.currentTimeMillis();
-                    tpThisMs = 0;
-                }
+            // Monitoring runs on its own thread and connection, so it can't
+            // hold up the load...
+            final StatsPublisher monitorStats = new StatsPublisher(c2, exporter);
+            ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor();
 
-                if (lastQueryMs + 15000 < System.currentTimeMillis()) {
+            // The schedule starts now, so nothing slow can come between here
+            // and loadGenerator.run
+            final long startMs = System.currentTimeMillis();
+            ScheduledArrivals arrivals = new ScheduledArrivals(tpMs, tranCount);
 
-                    lastQueryMs = System.currentTimeMillis();
+            LoadGenerator loadGenerator = new LoadGenerator(c, arrivals, userCount, offset, participants, delay,
+                    payerDistribution, payeeDistribution);
+            loadGenerator.setRouter(router);
 
-                    msg("row " + i);
-                    ClientResponse cr = c.callProcedure("@AdHoc",
+            monitor.scheduleAtFixedRate(() -> {
+                try {
+                    final long sent = arrivals.getSlotsIssued();
+                    msg("row " + sent);
+                    ClientResponse cr = c2.callProcedure("@AdHoc",
                             "select * from TRANSACTION_STATUS order by tran_status;");
                     while (cr.getResults()[0].advanceRow()) {
 
                         String tranStatus = cr.getResults()[0].getString("TRAN_STATUS");
                         long howMany = cr.getResults()[0].getLong("HOW_MANY");
-                        reportStats(c, "status", "status", tranStatus, "howmany", howMany);
+                        reportStats(monitorStats, "status", "status", tranStatus, "howmany", howMany);
 
                     }
 
-                    reportStats(c, "tpms", "tpms", "client", "tpms", tpMs);
-                    reportStats(c, "tpms", "tpms", "client", "count", i);
+                    reportStats(monitorStats, "tpms", "tpms", "client", "tpms", tpMs);
+                    reportStats(monitorStats, "tpms", "tpms", "client", "count", sent);
+                    reportStats(monitorStats, "partition_load", "partition_load", "client", "imbalance_pct",
+                            loadGenerator.getPartitionImbalancePct());
+
+                    getStats(statsCache, monitorStats, delay, participants);
+                    monitorStats.flush();
 
-                    getStats(statsCache, c, delay, participants);
+                    router.refreshTopology();
+                } catch (Exception e) {
+                    msg("Monitoring failed: " + e.getMessage());
                 }
+            }, 15, 15, TimeUnit.SECONDS);
 
-            }
+            loadGenerator.run(threads);
 
-            getStats(statsCache, c, delay, participants);
+            monitor.shutdown();
+            monitor.awaitTermination(1, TimeUnit.MINUTES);
+
+            router.close();
+
+            final StatsPublisher stats = new StatsPublisher(c, exporter);
+
+            getStats(statsCache, stats, delay, participants);
+            stats.flush();
 
             c.drain();
             c2.drain();
-            
-            
-            long actualTps = txnId / ((System.currentTimeMillis() - startMs)/1000);
-            
-            msg(txnId + " Transactions done. Actual TPS = " + actualTps);
+
+            long actualTps = (tranCount * 1000L) / Math.max(1, System.currentTimeMillis() - startMs);
+
+            msg(tranCount + " Transactions done. Actual TPS = " + actualTps);
+            msg("Participants per partition: " + loadGenerator.getPartitionLoad());
+            msg("Busiest partition as % of average: " + loadGenerator.getPartitionImbalancePct());
 
             for (int i = 0; i < 2; i++) {
                 Thread.sleep(1000);
@@ -167,17 +207,26 @@ public class TestClient {
 
                     String tranStatus = cr.getResults()[0].getString("TRAN_STATUS");
                     long howMany = cr.getResults()[0].getLong("HOW_MANY");
-                    reportStats(c, "status", "status", tranStatus, "howmany", howMany);
+                    reportStats(stats, "status", "status", tranStatus, "howmany", howMany);
 
                 }
+
+                stats.flush();
             }
             msg("done");
 
-            getStats(statsCache, c, delay, participants);
+            getStats(statsCache, stats, delay, participants);
+            stats.flush();
             msg("waiting 20 seconds");
             Thread.sleep(20000);
             msg(statsCache.toString());
-            getZeroedStats(statsCache, c);
+            getZeroedStats(statsCache, stats);
+            stats.flush();
+            c.drain();
+
+            if (exporter != null) {
+                exporter.stop();
+            }
 
         } catch (Exception e) {
             // TODO Auto-generated catch block
@@ -186,12 +235,19 @@ public class TestClient {
 
     }
 
-    private static void getStats(SafeHistogramCache statsCache, Client c, int delay, int participants)
-            throws IOException, NoConnectionsException, ProcCallException {
-        String[] statNames = { "DONE", "FAIL", "PENDING", "PAYERDONE" };
+    private static void getStats(SafeHistogramCache statsCache, StatsPublisher publisher, int delay, int participants) {
+
+        // The exporter serves the histograms itself
+        if (publisher.isExporting()) {
+            return;
+        }
+
+        String[] statNames = { "DONE", "FAIL", "PENDING", "PAYERDONE", LoadGenerator.SEND_LAG,
+                "DONE" + NWayCompoundTransaction.SERVICE_TIME_SUFFIX,
+                "FAIL" + NWayCompoundTransaction.SERVICE_TIME_SUFFIX };
 
-        reportStats(c, "delay", "delay", "processing_lag_ms", "planned", delay);
-        reportStats(c, "size", "size", "number_participants", "participants", participants);
+        reportStats(publisher, "delay", "delay", "processing_lag_ms", "planned", delay);
+        reportStats(publisher, "size", "size", "number_participants", "participants", participants);
 
         float[] pctiles = { 50, 90, 95, 99, 99.5f, 99.95f, 100 };
 
@@ -199,45 +255,52 @@ public class TestClient {
 
             StatsHistogram aHistogram = statsCache.get(statName);
 
-            reportStats(c, "avg", "avg", "AVG_LATENCY", statName, (long) aHistogram.getLatencyAverage());
+            reportStats(publisher, "avg", "avg", "AVG_LATENCY", statName, (long) aHistogram.getLatencyAverage());
 
             for (float pctile : pctiles) {
-                reportStats(c, "lcy", "lcy", "LATENCY_" + pctile, statName, aHistogram.getLatencyPct(pctile));
+                reportStats(publisher, "lcy", "lcy", "LATENCY_" + pctile, statName, aHistogram.getLatencyPct(pctile));
             }
 
             long count = (long) aHistogram.getEventTotal();
 
-            reportStats(c, "count", "count", "COUNT_" + statName, "COUNT_" + statName, count);
+            reportStats(publisher, "count", "count", "COUNT_" + statName, "COUNT_" + statName, count);
         }
     }
 
-    private static void getZeroedStats(SafeHistogramCache statsCache, Client c)
-            throws IOException, NoConnectionsException, ProcCallException {
-        String[] statNames = { "DONE", "FAIL", "PENDING", "PAYERDONE" };
+    private static void getZeroedStats(SafeHistogramCache statsCache, StatsPublisher publisher) {
 
-        reportStats(c, "delay", "delay", "processing_lag_ms", "planned", 0);
-        reportStats(c, "size", "size", "number_participants", "participants", 0);
+        if (publisher.isExporting()) {
+            return;
+        }
+
+        String[] statNames = { "DONE", "FAIL", "PENDING", "PAYERDONE", LoadGenerator.SEND_LAG,
+                "DONE" + NWayCompoundTransaction.SERVICE_TIME_SUFFIX,
+                "FAIL" + NWayCompoundTransaction.SERVICE_TIME_SUFFIX };
+
+        reportStats(publisher, "delay", "delay", "processing_lag_ms", "planned", 0);
+        reportStats(publisher, "size", "size", "number_participants", "participants", 0);
 
         float[] pctiles = { 50, 90, 95, 99, 99.5f, 99.95f, 100 };
 
         for (String statName : statNames) {
 
-            reportStats(c, "avg", "avg", "AVG_LATENCY", statName, 0);
+            reportStats(publisher, "avg", "avg", "AVG_LATENCY", statName, 0);
 
             for (float pctile : pctiles) {
-                reportStats(c, "lcy", "lcy", "LATENCY_" + pctile, statName, 0);
+                reportStats(publisher, "lcy", "lcy", "LATENCY_" + pctile, statName, 0);
             }
 
-            reportStats(c, "count", "count", "COUNT_" + statName, "COUNT_" + statName, 0);
+            reportStats(publisher, "count", "count", "COUNT_" + statName, "COUNT_" + statName, 0);
         }
     }
 
-    private static void reportStats(Client c, String statname, String stathelp, String eventType, String eventName,
-            long statvalue) throws IOException, NoConnectionsException, ProcCallException {
-        ComplainOnErrorCallback coec = new ComplainOnErrorCallback();
+    /**
+     * Queue a stat. It gets written when publisher is flushed.
+     */
+    private static void reportStats(StatsPublisher publisher, String statname, String stathelp, String eventType,
+            String eventName, long statvalue) {
 
-        c.callProcedure(coec, "promBL_latency_stats.UPSERT", statname, stathelp, eventType, eventName, statvalue,
-                new Date());
+        publisher.add(statname, stathelp, eventType, eventName, statvalue);
 
     }
 
@@ -245,6 +308,10 @@ public class TestClient {
         Client client = null;
         ClientConfig config = null;
 
+        if (SettlementSimulator.isSimulator(commaDelimitedHostnames)) {
+            return getSimulator(commaDelimitedHostnames).asClient();
+        }
+
         try {
             msg("Logging into VoltDB");
 
@@ -273,6 +340,21 @@ public class TestClient {
 
     }
 
+    /**
+     * @param hostnames e.g. 'simulator:16'
+     * @return the in-process simulator, so that every connection we make sees
+     *         the same data.
+     */
+    private static synchronized SettlementSimulator getSimulator(String hostnames) {
+
+        if (simulator == null) {
+            simulator = SettlementSimulator.fromHostname(hostnames);
+            msg("Using in-process simulator with " + simulator.getPartitionCount() + " partitions");
+        }
+
+        return simulator;
+    }
+
     /**
      * Print a formatted message.
      *
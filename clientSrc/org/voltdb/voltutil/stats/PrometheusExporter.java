@@ -0,0 +1,218 @@
+package org.voltdb.voltutil.stats;
+
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves a SafeHistogramCache at /metrics in the Prometheus text format, so a
+ * client's stats can be scraped directly instead of being written to the
+ * database. Histograms become Prometheus histograms in seconds, plus
+ * percentiles and an events per second rate. Counters become counters. Gauges
+ * are whatever the caller last set with setGauge().
+ * <p>
+ * Rates are for the time since the previous scrape, so if more than one
+ * Prometheus server scrapes us they will see each other's intervals. Use
+ * rate() on the _count series if that matters.
+ */
+public class PrometheusExporter {
+
+    public static final String METRICS_PATH = "/metrics";
+
+    static final String PREFIX = "nway_client_";
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * Histogram bucket boundaries, in microseconds.
+     */
+    static final long[] BUCKET_LIMITS_US = { 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000,
+            250000, 500000, 1000000, 2500000, 5000000, 10000000, 30000000, 60000000 };
+
+    static final double[] PERCENTILES = { 50, 90, 95, 99, 99.5, 99.95, 100 };
+
+    final SafeHistogramCache statsCache;
+    final ConcurrentHashMap<String, Long> gauges = new ConcurrentHashMap<>();
+
+    HttpServer server = null;
+
+    // For working out rates
+    HashMap<String, Long> lastTotals = new HashMap<>();
+    long lastScrapeMs = System.currentTimeMillis();
+
+    public PrometheusExporter(SafeHistogramCache statsCache) {
+        this.statsCache = statsCache;
+    }
+
+    /**
+     * Start serving on port, using a single daemon thread.
+     *
+     * @param port
+     * @throws IOException
+     */
+    public void start(int port) throws IOException {
+
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(METRICS_PATH, this::handle);
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "PrometheusExporter");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+    }
+
+    public void stop() {
+
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    /**
+     * Set a value that can go up and down, such as a row count.
+     *
+     * @param name
+     * @param value
+     */
+    public void setGauge(String name, long value) {
+        gauges.put(name, value);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+
+        final byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(200, body.length);
+
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    /**
+     * @return everything we know, in the Prometheus text format.
+     */
+    public synchronized String scrape() {
+
+        final long nowMs = System.currentTimeMillis();
+        final double elapsedSeconds = Math.max(1, nowMs - lastScrapeMs) / 1000.0;
+        HashMap<String, Long> totals = new HashMap<>();
+        StringBuilder b = new StringBuilder();
+
+        TreeMap<String, StatsHistogram> histograms = new TreeMap<>(statsCache.getHistogramSnapshots());
+        TreeMap<String, Long> counters = new TreeMap<>(statsCache.getCounters());
+
+        b.append("# HELP " + PREFIX + "latency_seconds Client latency histograms\n");
+        b.append("# TYPE " + PREFIX + "latency_seconds histogram\n");
+
+        for (Entry<String, StatsHistogram> entry : histograms.entrySet()) {
+
+            final String label = "name=\"" + escape(entry.getKey()) + "\"";
+            final StatsHistogram h = entry.getValue();
+            final long count = (long) h.getEventTotal();
+
+            for (long limitUs : BUCKET_LIMITS_US) {
+                sample(b, "latency_seconds_bucket", label + ",le=\"" + (limitUs / 1000000.0) + "\"",
+                        h.getCountAtOrBelowMicros(limitUs));
+            }
+
+            sample(b, "latency_seconds_bucket", label + ",le=\"+Inf\"", count);
+            sample(b, "latency_seconds_sum", label, h.getLatencyTotal() / 1000);
+            sample(b, "latency_seconds_count", label, count);
+
+            totals.put("h_" + entry.getKey(), count);
+        }
+
+        b.append("# HELP " + PREFIX + "latency_percentile_seconds Client latency percentiles\n");
+        b.append("# TYPE " + PREFIX + "latency_percentile_seconds gauge\n");
+
+        for (Entry<String, StatsHistogram> entry : histograms.entrySet()) {
+
+            final String label = "name=\"" + escape(entry.getKey()) + "\"";
+
+            for (double pct : PERCENTILES) {
+                sample(b, "latency_percentile_seconds", label + ",percentile=\"" + pct + "\"",
+                        entry.getValue().getLatencyPctMicros(pct) / 1000000.0);
+            }
+        }
+
+        b.append("# HELP " + PREFIX + "events_total Client counters\n");
+        b.append("# TYPE " + PREFIX + "events_total counter\n");
+
+        for (Entry<String, Long> entry : counters.entrySet()) {
+            sample(b, "events_total", "name=\"" + escape(entry.getKey()) + "\"", entry.getValue());
+            totals.put("c_" + entry.getKey(), entry.getValue());
+        }
+
+        b.append("# HELP " + PREFIX + "events_per_second Events per second since the previous scrape\n");
+        b.append("# TYPE " + PREFIX + "events_per_second gauge\n");
+
+        for (Entry<String, StatsHistogram> entry : histograms.entrySet()) {
+            rate(b, entry.getKey(), "h_" + entry.getKey(), totals, elapsedSeconds);
+        }
+
+        for (Entry<String, Long> entry : counters.entrySet()) {
+            rate(b, entry.getKey(), "c_" + entry.getKey(), totals, elapsedSeconds);
+        }
+
+        b.append("# HELP " + PREFIX + "gauge Values set by the client\n");
+        b.append("# TYPE " + PREFIX + "gauge gauge\n");
+
+        for (Entry<String, Long> entry : new TreeMap<>(gauges).entrySet()) {
+            sample(b, "gauge", "name=\"" + escape(entry.getKey()) + "\"", entry.getValue());
+        }
+
+        lastTotals = totals;
+        lastScrapeMs = nowMs;
+
+        return b.toString();
+    }
+
+    private void rate(StringBuilder b, String name, String key, HashMap<String, Long> totals,
+            double elapsedSeconds) {
+
+        final Long lastTotal = lastTotals.get(key);
+
+        // Also covers SafeHistogramCache being reset between scrapes
+        if (lastTotal != null && lastTotal <= totals.get(key)) {
+            sample(b, "events_per_second", "name=\"" + escape(name) + "\"",
+                    (totals.get(key) - lastTotal) / elapsedSeconds);
+        }
+    }
+
+    private static void sample(StringBuilder b, String metric, String labels, double value) {
+        b.append(PREFIX).append(metric).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder b, String metric, String labels, long value) {
+        b.append(PREFIX).append(metric).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    /**
+     * Label values can have anything in them, such as error messages.
+     */
+    static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+}
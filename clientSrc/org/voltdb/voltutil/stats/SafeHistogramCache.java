@@ -9,186 +9,131 @@ package org.voltdb.voltutil.stats;
  */
 
 import java.util.HashMap;
-
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stats shared by all the threads in a client. Nothing here takes a global
+ * lock: histograms are striped (see StripedStatsHistogram) and counters are
+ * LongAdders. Histograms returned by get() and subtractTimes() are merged
+ * copies, so they don't change after you get them.
+ */
 public class SafeHistogramCache {
 
-    private static SafeHistogramCache instance = null;
+    private static final SafeHistogramCache instance = new SafeHistogramCache();
 
-    HashMap<String, StatsHistogram> theHistogramMap = new HashMap<>();
-    HashMap<String, Long> theCounterMap = new HashMap<>();
-    HashMap<String, SizeHistogram> theSizeHistogramMap = new HashMap<>();
+    volatile ConcurrentHashMap<String, StripedStatsHistogram> theHistogramMap = new ConcurrentHashMap<>();
+    volatile ConcurrentHashMap<String, LongAdder> theCounterMap = new ConcurrentHashMap<>();
+    volatile ConcurrentHashMap<String, SizeHistogram> theSizeHistogramMap = new ConcurrentHashMap<>();
 
     final int DEFAULT_SIZE = 100;
 
-    long lastStatsTime = System.currentTimeMillis();
+    volatile long lastStatsTime = System.currentTimeMillis();
 
     protected SafeHistogramCache() {
         // Exists only to defeat instantiation.
     }
 
     public static SafeHistogramCache getInstance() {
-        if (instance == null) {
-            instance = new SafeHistogramCache();
-        }
         return instance;
     }
 
     public void reset() {
-        synchronized (theHistogramMap) {
-            synchronized (theCounterMap) {
-                synchronized (theSizeHistogramMap) {
-                    theHistogramMap = new HashMap<>();
-                    theCounterMap = new HashMap<>();
-                    theSizeHistogramMap = new HashMap<>();
-
-                }
-            }
-        }
+        theHistogramMap = new ConcurrentHashMap<>();
+        theCounterMap = new ConcurrentHashMap<>();
+        theSizeHistogramMap = new ConcurrentHashMap<>();
     }
 
     public StatsHistogram get(String type) {
-        StatsHistogram h = null;
-
-        synchronized (theHistogramMap) {
-            h = theHistogramMap.get(type);
-
-            if (h == null) {
-                h = new StatsHistogram(DEFAULT_SIZE);
-                theHistogramMap.put(type, h);
-            }
-        }
-
-        return h;
+        return theHistogramMap.computeIfAbsent(type, k -> new StripedStatsHistogram("", DEFAULT_SIZE)).snapshot();
     }
 
     public void clear(String type) {
 
-        StatsHistogram oldH = null;
-        StatsHistogram newH = null;
-
-        synchronized (theHistogramMap) {
-            oldH = theHistogramMap.remove(type);
-
-            if (oldH == null) {
-                newH = new StatsHistogram(100);
-            } else {
-                newH = new StatsHistogram(oldH.maxSize);
-            }
-            theHistogramMap.put(type, newH);
+        StripedStatsHistogram oldH = theHistogramMap.get(type);
 
+        if (oldH == null) {
+            theHistogramMap.put(type, new StripedStatsHistogram("", 100));
+        } else {
+            theHistogramMap.put(type, new StripedStatsHistogram(oldH.name, oldH.maxSize));
         }
 
     }
 
     public SizeHistogram getSize(String type) {
-        SizeHistogram h = null;
-
-        synchronized (theSizeHistogramMap) {
-            h = theSizeHistogramMap.get(type);
-
-            if (h == null) {
-                h = new SizeHistogram(type, DEFAULT_SIZE);
-                theSizeHistogramMap.put(type, h);
-            }
-        }
-
-        return h;
+        return theSizeHistogramMap.computeIfAbsent(type, k -> new SizeHistogram(k, DEFAULT_SIZE));
     }
 
     public long getCounter(String type) {
-        Long l = new Long(0);
+        LongAdder l = theCounterMap.get(type);
 
-        synchronized (theCounterMap) {
-            l = theCounterMap.get(type);
-            if (l == null) {
-                return 0;
-            }
+        if (l == null) {
+            return 0;
         }
 
-        return l.longValue();
+        return l.sum();
     }
 
-    public void setCounter(String type, long value) {
+    /**
+     * @return the current value of every counter, by name.
+     */
+    public HashMap<String, Long> getCounters() {
 
-        synchronized (theCounterMap) {
-            Long l = theCounterMap.get(type);
-            if (l == null) {
-                l = new Long(value);
+        HashMap<String, Long> counters = new HashMap<>();
 
-            }
-            theCounterMap.put(type, l);
+        for (Entry<String, LongAdder> entry : theCounterMap.entrySet()) {
+            counters.put(entry.getKey(), entry.getValue().sum());
         }
 
+        return counters;
     }
 
-    public void incCounter(String type) {
-
-        synchronized (theCounterMap) {
-            Long l = theCounterMap.get(type);
-            if (l == null) {
-                l = new Long(0);
-            }
-            theCounterMap.put(type, l.longValue() + 1);
-        }
+    public void setCounter(String type, long value) {
+        LongAdder l = new LongAdder();
+        l.add(value);
+        theCounterMap.put(type, l);
+    }
 
+    public void incCounter(String type) {
+        theCounterMap.computeIfAbsent(type, k -> new LongAdder()).increment();
     }
 
     public void report(String type, int value, String comment, int defaultSize) {
-
-        synchronized (theHistogramMap) {
-            StatsHistogram h = theHistogramMap.get(type);
-            if (h == null) {
-                h = new StatsHistogram(type, defaultSize);
-                theHistogramMap.put(type, h);
-            }
-            h.report(value, comment);
-
-        }
-
+        getStriped(type, defaultSize).report(value, comment);
     }
 
     public void reportSize(String type, int size, String comment, int defaultSize) {
 
-        synchronized (theSizeHistogramMap) {
-            SizeHistogram h = theSizeHistogramMap.get(type);
-            if (h == null) {
-                h = new SizeHistogram(type, defaultSize);
-                theSizeHistogramMap.put(type, h);
-            }
+        SizeHistogram h = theSizeHistogramMap.computeIfAbsent(type, k -> new SizeHistogram(k, defaultSize));
 
+        synchronized (h) {
             h.inc(size, comment);
-
         }
 
     }
 
     public void reportLatency(String type, long start, String comment, int defaultSize) {
+        getStriped(type, defaultSize).reportLatency(start, comment);
+    }
 
-        synchronized (theHistogramMap) {
-            StatsHistogram h = theHistogramMap.get(type);
-            if (h == null) {
-                h = new StatsHistogram(type, defaultSize);
-
-            }
-            h.reportLatency(start, comment);
-            theHistogramMap.put(type, h);
-        }
-
+    /**
+     * Like reportLatency, but with microsecond resolution.
+     *
+     * @param startNanos a value from System.nanoTime()
+     */
+    public void reportLatencyNanos(String type, long startNanos, String comment, int defaultSize) {
+        getStriped(type, defaultSize).reportLatencyNanos(startNanos, comment);
     }
 
     public StatsHistogram subtractTimes(String bigHist, String smallHist, String name) {
 
-        StatsHistogram hBig;
-        StatsHistogram hSmall;
-        synchronized (theHistogramMap) {
-            hBig = theHistogramMap.get(bigHist);
-            hSmall = theHistogramMap.get(smallHist);
-        }
+        StatsHistogram hBig = get(bigHist);
+        StatsHistogram hSmall = get(smallHist);
+
         StatsHistogram delta = StatsHistogram.subtract(name, hBig, hSmall);
 
-        synchronized (theHistogramMap) {
-            theHistogramMap.put(name, delta);
-        }
+        theHistogramMap.put(name, new StripedStatsHistogram(delta));
 
         return delta;
 
@@ -198,36 +143,13 @@ public class SafeHistogramCache {
      * @return true if we have stats to report...
      */
     public boolean hasStats() {
-
-        synchronized (theHistogramMap) {
-            synchronized (theCounterMap) {
-                synchronized (theSizeHistogramMap) {
-
-                    if (!theHistogramMap.isEmpty() || !theCounterMap.isEmpty() || !theSizeHistogramMap.isEmpty()) {
-                        return true;
-                    }
-
-                }
-            }
-        }
-        return false;
-
+        return !theHistogramMap.isEmpty() || !theCounterMap.isEmpty() || !theSizeHistogramMap.isEmpty();
     }
 
     @Override
     public String toString() {
-        String data = "";
-        synchronized (theHistogramMap) {
-            synchronized (theCounterMap) {
-                synchronized (theSizeHistogramMap) {
-
-                    data = theHistogramMap.toString() + System.lineSeparator() + theCounterMap.toString()
-                            + System.lineSeparator() + theSizeHistogramMap.toString();
-                }
-            }
-        }
-
-        return data;
+        return getHistogramSnapshots().toString() + System.lineSeparator() + theCounterMap.toString()
+                + System.lineSeparator() + theSizeHistogramMap.toString();
     }
 
     public String toStringIfOlderThanMs(int statsInterval) {
@@ -235,44 +157,58 @@ public class SafeHistogramCache {
         String data = "";
 
         if (lastStatsTime + statsInterval < System.currentTimeMillis()) {
-            synchronized (theHistogramMap) {
-
-                data = theHistogramMap.toString();
-                lastStatsTime = System.currentTimeMillis();
-            }
-
+            data = getHistogramSnapshots().toString();
+            lastStatsTime = System.currentTimeMillis();
         }
+
         return data;
     }
 
     public void initSize(String name, int batchSize, String description) {
 
-        synchronized (theSizeHistogramMap) {
-            SizeHistogram h = theSizeHistogramMap.get(name);
-            if (h == null) {
+        theSizeHistogramMap.computeIfAbsent(name, k -> {
+            SizeHistogram h = new SizeHistogram(k, batchSize);
+            h.setDescription(description);
+            return h;
+        });
 
-                h = new SizeHistogram(name, batchSize);
-                h.setDescription(description);
-                theSizeHistogramMap.put(name, h);
+    }
+
+    public void init(String name, int batchSize, String description) {
 
-            }
+        theHistogramMap.computeIfAbsent(name, k -> {
+            StripedStatsHistogram h = new StripedStatsHistogram(k, batchSize);
+            h.description = description;
+            return h;
+        });
 
+    }
+
+    private StripedStatsHistogram getStriped(String type, int defaultSize) {
+
+        // get() first, as computeIfAbsent can lock the bin even when the key is
+        // there
+        StripedStatsHistogram h = theHistogramMap.get(type);
+
+        if (h == null) {
+            h = theHistogramMap.computeIfAbsent(type, k -> new StripedStatsHistogram(k, defaultSize));
         }
 
+        return h;
     }
 
-    public void init(String name, int batchSize, String description) {
+    /**
+     * @return a merged copy of every histogram, by name.
+     */
+    HashMap<String, StatsHistogram> getHistogramSnapshots() {
 
-        synchronized (theHistogramMap) {
-            StatsHistogram h = theHistogramMap.get(name);
-            if (h == null) {
-                h = new StatsHistogram(name, batchSize);
-                h.setDescription(description);
-                theHistogramMap.put(name, h);
-            }
+        HashMap<String, StatsHistogram> snapshots = new HashMap<>();
 
+        for (Entry<String, StripedStatsHistogram> entry : theHistogramMap.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().snapshot());
         }
 
+        return snapshots;
     }
 
-}
\ No newline at end of file
+}
@@ -8,99 +8,113 @@
 
 package org.voltdb.voltutil.stats;
 
+/**
+ * Latency histogram with microsecond resolution and log-linear buckets, in the
+ * style of HdrHistogram. Values below 2^precisionBits microseconds get a
+ * bucket each. Above that every power of two is split into
+ * 2^(precisionBits-1) buckets, so a bucket is never wider than
+ * 1/2^(precisionBits-1) of the values in it. With the default of 8 bits that's
+ * under 0.8%.
+ * <p>
+ * maxSize is in milliseconds, as before. Anything bigger is counted as
+ * maxSize - 1. Counts are longs, so there is no rollover.
+ */
 public class StatsHistogram {
 
     final String NUMFORMAT_DECIMAL = "% ,16.0f";
     final String NUMFORMAT_INTEGER = "%16d";
 
+    public static final int DEFAULT_PRECISION_BITS = 8;
+
     int maxSize = 1000;
-    double[] latencyHistogram = new double[0];
-    String[] latencyComment = new String[0];
-    boolean isRolledOver = false;
+    int precisionBits = DEFAULT_PRECISION_BITS;
+    int subBucketCount;
+    int halfSubBucketCount;
+    long maxValueUs;
+    long[] counts = new long[0];
+    String[] comments = null;
     String name = "";
     long reports = 0;
-    int maxUsedSize = 0;
+    long totalUs = 0;
+    long maxUsedUs = 0;
     String description = "";
 
     public StatsHistogram(int maxSize) {
-        init("", maxSize);
+        init("", maxSize, DEFAULT_PRECISION_BITS);
     }
 
     public StatsHistogram(String name, int maxSize) {
-        init(name, maxSize);
+        init(name, maxSize, DEFAULT_PRECISION_BITS);
+    }
+
+    public StatsHistogram(String name, int maxSize, int precisionBits) {
+        init(name, maxSize, precisionBits);
     }
 
     public void init(String name, int maxSize) {
+        init(name, maxSize, DEFAULT_PRECISION_BITS);
+    }
+
+    public void init(String name, int maxSize, int precisionBits) {
 
         this.name = name;
-        this.maxSize = maxSize;
+        this.maxSize = Math.max(1, maxSize);
+        this.precisionBits = Math.max(2, Math.min(precisionBits, 20));
 
-        latencyHistogram = new double[maxSize];
-        latencyComment = new String[maxSize];
+        subBucketCount = 1 << this.precisionBits;
+        halfSubBucketCount = subBucketCount / 2;
+        maxValueUs = (this.maxSize * 1000L) - 1;
 
-        for (int i = 0; i < latencyComment.length; i++) {
-            latencyComment[i] = "";
-        }
+        counts = new long[bucketFor(maxValueUs) + 1];
+        comments = null;
 
         resetLatency();
 
     }
 
     public void resetLatency() {
-        for (int i = 0; i < maxSize; i++) {
-            latencyHistogram[i] = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
         }
 
         reports = 0;
-        maxUsedSize = 0;
+        totalUs = 0;
+        maxUsedUs = 0;
     }
 
     public void report(int latency, String comment) {
+        reportMicros(latency * 1000L, comment);
+    }
+
+    public void reportMicros(long latencyUs, String comment) {
 
         reports++;
 
-        if (latency < 0) {
-            latency = 0;
+        if (latencyUs < 0) {
+            latencyUs = 0;
         }
 
-        if (latency < maxSize) {
-            if (latencyHistogram[latency] < Integer.MAX_VALUE) {
-                latencyHistogram[latency]++;
+        totalUs += latencyUs;
 
-                if (maxUsedSize < latency) {
-                    maxUsedSize = latency;
-                }
-
-            } else {
-                isRolledOver = true;
-                resetLatency();
-            }
-
-        } else {
-
-            if (latencyHistogram[maxSize - 1] < Integer.MAX_VALUE) {
-                latencyHistogram[maxSize - 1]++;
-
-                if (maxUsedSize == maxSize - 1) {
-                    maxUsedSize = maxSize - 1;
-                }
+        if (latencyUs > maxValueUs) {
+            latencyUs = maxValueUs;
+        }
 
-            } else {
-                isRolledOver = true;
-                resetLatency();
-            }
+        final int bucket = bucketFor(latencyUs);
+        counts[bucket]++;
 
+        if (maxUsedUs < latencyUs) {
+            maxUsedUs = latencyUs;
         }
 
         if (comment != null && comment.length() > 0) {
-            if (latency < maxSize) {
-                if (latencyHistogram[latency] < Integer.MAX_VALUE) {
-                    latencyComment[latency] = comment;
-                }
 
-            } else {
-                latencyComment[maxSize - 1] = comment;
+            // Most histograms never see a comment, so don't allocate until one does
+            if (comments == null) {
+                comments = new String[counts.length];
             }
+
+            comments[bucket] = comment;
         }
 
     }
@@ -113,75 +127,123 @@ public class StatsHistogram {
 
     }
 
-    public double peekValue(int idx) {
+    /**
+     * @param startNanos a value from System.nanoTime()
+     * @param comment
+     */
+    public void reportLatencyNanos(long startNanos, String comment) {
+        reportMicros((System.nanoTime() - startNanos) / 1000, comment);
+    }
 
-        if (idx < maxSize) {
-            return latencyHistogram[idx];
+    int bucketFor(long valueUs) {
+
+        if (valueUs < subBucketCount) {
+            return (int) valueUs;
         }
 
-        return 0.0;
+        final int shift = 63 - Long.numberOfLeadingZeros(valueUs) - (precisionBits - 1);
 
+        return (shift * halfSubBucketCount) + (int) (valueUs >>> shift);
     }
 
-    public void pokeValue(int idx, double value) {
+    long lowestValueFor(int bucket) {
 
-        if (idx < maxSize) {
-            reports -= latencyHistogram[idx];
-            reports += value;
-            latencyHistogram[idx] = value;
+        if (bucket < subBucketCount) {
+            return bucket;
         }
 
+        final int shift = (bucket / halfSubBucketCount) - 1;
+
+        return ((long) (bucket - (shift * halfSubBucketCount))) << shift;
     }
 
-    public void pokeReports(long reports) {
+    long highestValueFor(int bucket) {
 
-        this.reports = reports;
-    }
+        if (bucket < subBucketCount) {
+            return bucket;
+        }
 
-    public double[] getLatencyHistogram() {
-        return latencyHistogram;
+        return lowestValueFor(bucket) + (1L << ((bucket / halfSubBucketCount) - 1)) - 1;
     }
 
-    public String[] getLatencyComment() {
-        return latencyComment;
+    public int getMaxUsedSize() {
+
+        return (int) (maxUsedUs / 1000);
     }
 
-    public int getMaxUsedSize() {
+    public long getMaxUsedMicros() {
 
-        return maxUsedSize;
+        return maxUsedUs;
     }
 
+    /**
+     * @param pct
+     * @return latency in milliseconds that pct percent of events were at or
+     *         below.
+     */
     public int getLatencyPct(double pct) {
 
-        final double target = getLatencyTotal() * (pct / 100);
-        double runningTotal = latencyHistogram[0];
-        int matchValue = 0;
+        return (int) (getLatencyPctMicros(pct) / 1000);
+    }
 
-        for (int i = 1; i < latencyHistogram.length; i++) {
+    /**
+     * @param pct
+     * @return latency in microseconds that pct percent of events were at or
+     *         below, to within the precision of the buckets.
+     */
+    public long getLatencyPctMicros(double pct) {
 
-            if (runningTotal >= target) {
-                break;
-            }
+        long eventTotal = 0;
 
-            matchValue = i;
-            runningTotal = runningTotal + (i * latencyHistogram[i]);
+        for (long count : counts) {
+            eventTotal += count;
+        }
 
+        if (eventTotal <= 0) {
+            return 0;
         }
 
-        return matchValue;
+        final long target = Math.max(1, (long) Math.ceil(eventTotal * (pct / 100)));
+        long runningTotal = 0;
+
+        for (int i = 0; i < counts.length; i++) {
+
+            runningTotal += counts[i];
+
+            if (runningTotal >= target) {
+                return Math.min(highestValueFor(i), maxUsedUs);
+            }
+        }
+
+        return maxUsedUs;
     }
 
-    public double getLatencyTotal() {
+    /**
+     * @param limitUs
+     * @return how many events were no more than limitUs microseconds. Buckets
+     *         that straddle limitUs aren't counted.
+     */
+    public long getCountAtOrBelowMicros(long limitUs) {
 
-        double runningTotal = 0.0;
+        long runningTotal = 0;
+
+        for (int i = 0; i < counts.length; i++) {
+
+            if (highestValueFor(i) > limitUs) {
+                break;
+            }
 
-        for (int i = 0; i < latencyHistogram.length; i++) {
-            runningTotal = runningTotal + (i * latencyHistogram[i]);
+            runningTotal += counts[i];
         }
 
         return runningTotal;
     }
 
+    public double getLatencyTotal() {
+
+        return totalUs / 1000.0;
+    }
+
     public double getLatencyAverage() {
 
         return getLatencyTotal() / reports;
@@ -191,7 +253,7 @@ public class StatsHistogram {
 
         double runningTotal = 0.0;
 
-        for (double element : latencyHistogram) {
+        for (long element : counts) {
             runningTotal += element;
         }
 
@@ -222,11 +284,7 @@ public class StatsHistogram {
         b.append(", 99.95%=");
         b.append(String.format(NUMFORMAT_INTEGER, getLatencyPct(99.95)));
         b.append(", Max=");
-        b.append(String.format(NUMFORMAT_INTEGER, maxUsedSize));
-
-        if (isRolledOver) {
-            b.append(" ROLLED OVER");
-        }
+        b.append(String.format(NUMFORMAT_INTEGER, getMaxUsedSize()));
 
         return b.toString();
     }
@@ -237,16 +295,18 @@ public class StatsHistogram {
 
         b.append("\n");
 
-        for (int i = 0; i < latencyHistogram.length; i++) {
-            if (latencyHistogram[i] != 0) {
-                if (i == (latencyHistogram.length - 1)) {
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                if (i == (counts.length - 1)) {
                     b.append(">= ");
                 }
-                b.append(i);
+                b.append(String.format("%.3f", lowestValueFor(i) / 1000.0));
                 b.append("\t");
-                b.append(latencyHistogram[i]);
+                b.append(counts[i]);
                 b.append("\t");
-                b.append(latencyComment[i]);
+                if (comments != null && comments[i] != null) {
+                    b.append(comments[i]);
+                }
                 b.append("\n");
             }
         }
@@ -254,28 +314,65 @@ public class StatsHistogram {
         return b.toString();
     }
 
-    public boolean isHasRolledOver() {
-        return isRolledOver;
+    /**
+     * Add other's counts to ours, or subtract them if sign is -1. other doesn't
+     * need the same size or precision, but if it has them this is exact.
+     */
+    private void addBuckets(StatsHistogram other, long sign) {
+
+        for (int i = 0; i < other.counts.length; i++) {
+
+            if (other.counts[i] != 0) {
+                final int bucket = bucketFor(Math.min(other.lowestValueFor(i), maxValueUs));
+                counts[bucket] += sign * other.counts[i];
+            }
+        }
     }
 
     public static StatsHistogram subtract(String name, StatsHistogram bigThing, StatsHistogram smallThing) {
-        int size = bigThing.getMaxUsedSize();
 
-        if (smallThing.getMaxUsedSize() > size) {
-            size = smallThing.getMaxUsedSize();
-        }
+        StatsHistogram newHist = new StatsHistogram(name, bigThing.maxSize, bigThing.precisionBits);
+
+        newHist.addBuckets(bigThing, 1);
+        newHist.addBuckets(smallThing, -1);
+
+        newHist.reports = bigThing.reports;
+        newHist.totalUs = bigThing.totalUs - smallThing.totalUs;
+        newHist.maxUsedUs = Math.min(Math.max(bigThing.maxUsedUs, smallThing.maxUsedUs), newHist.maxValueUs);
+
+        return newHist;
+    }
 
-        StatsHistogram newHist = new StatsHistogram(name, size);
+    /**
+     * Add other's counts to ours. Used to combine the per-thread stripes kept
+     * by SafeHistogramCache.
+     *
+     * @param other
+     */
+    public void merge(StatsHistogram other) {
 
-        for (int i = 0; i < size; i++) {
-            double bigVal = bigThing.peekValue(i);
-            double smallVal = smallThing.peekValue(i);
-            newHist.pokeValue(i, (bigVal - smallVal));
+        addBuckets(other, 1);
+
+        if (other.comments != null) {
+            for (int i = 0; i < other.comments.length; i++) {
+
+                if (other.comments[i] != null && other.comments[i].length() > 0) {
+
+                    if (comments == null) {
+                        comments = new String[counts.length];
+                    }
+
+                    comments[bucketFor(Math.min(other.lowestValueFor(i), maxValueUs))] = other.comments[i];
+                }
+            }
         }
 
-        newHist.pokeReports(bigThing.reports);
+        reports += other.reports;
+        totalUs += other.totalUs;
 
-        return newHist;
+        if (maxUsedUs < Math.min(other.maxUsedUs, maxValueUs)) {
+            maxUsedUs = Math.min(other.maxUsedUs, maxValueUs);
+        }
     }
 
     public String getDescription() {
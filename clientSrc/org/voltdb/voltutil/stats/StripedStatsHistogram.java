@@ -0,0 +1,117 @@
+package org.voltdb.voltutil.stats;
+
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A StatsHistogram split into stripes, so that threads reporting at the same
+ * time usually lock different objects. Stripes are created the first time a
+ * thread needs one. Readers get a merged copy.
+ */
+class StripedStatsHistogram {
+
+    static final int STRIPE_COUNT = stripeCount();
+
+    final String name;
+    final int maxSize;
+    volatile String description = "";
+
+    final AtomicReferenceArray<StatsHistogram> stripes = new AtomicReferenceArray<>(STRIPE_COUNT);
+
+    StripedStatsHistogram(String name, int maxSize) {
+        this.name = name;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Wrap an existing histogram, such as the output of subtract().
+     */
+    StripedStatsHistogram(StatsHistogram h) {
+        this(h.name, h.maxSize);
+        description = h.getDescription();
+        stripes.set(0, h);
+    }
+
+    void report(int value, String comment) {
+        StatsHistogram h = getStripe();
+
+        synchronized (h) {
+            h.report(value, comment);
+        }
+    }
+
+    void reportLatency(long startTime, String comment) {
+        report((int) (System.currentTimeMillis() - startTime), comment);
+    }
+
+    void reportLatencyNanos(long startNanos, String comment) {
+        final long latencyUs = (System.nanoTime() - startNanos) / 1000;
+        StatsHistogram h = getStripe();
+
+        synchronized (h) {
+            h.reportMicros(latencyUs, comment);
+        }
+    }
+
+    /**
+     * @return a new StatsHistogram with the sum of all the stripes.
+     */
+    StatsHistogram snapshot() {
+
+        StatsHistogram total = new StatsHistogram(name, maxSize);
+        total.setDescription(description);
+
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            StatsHistogram h = stripes.get(i);
+
+            if (h != null) {
+                synchronized (h) {
+                    total.merge(h);
+                }
+            }
+        }
+
+        return total;
+    }
+
+    private StatsHistogram getStripe() {
+
+        final int idx = (int) (Thread.currentThread().getId() & (STRIPE_COUNT - 1));
+        StatsHistogram h = stripes.get(idx);
+
+        if (h == null) {
+            stripes.compareAndSet(idx, null, new StatsHistogram(name, maxSize));
+            h = stripes.get(idx);
+        }
+
+        return h;
+    }
+
+    /**
+     * @return the smallest power of two that is at least the number of CPUs,
+     *         so we can pick a stripe with a mask.
+     */
+    private static int stripeCount() {
+
+        int count = 1;
+
+        while (count < Runtime.getRuntime().availableProcessors() && count < 64) {
+            count = count * 2;
+        }
+
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+
+}
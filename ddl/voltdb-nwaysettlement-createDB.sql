@@ -9,6 +9,15 @@ Create table user_balances
 
 PARTITION TABLE user_balances ON COLUMN userid;
 
+-- Copy of user_balances taken by SnapshotBalances, so runs can start from
+-- the same balances without reloading them.
+Create table user_balances_snapshot
+(Userid bigint not null primary key
+,Balance_amount bigint not null
+,Balance_date   timestamp not null);
+
+PARTITION TABLE user_balances_snapshot ON COLUMN userid;
+
 Create table user_transactions
 (Userid bigint not null 
 ,Other_userid bigint not null
@@ -32,8 +41,51 @@ CREATE INDEX ut_ix3 ON user_transactions (tran_status,insert_date);
 
 CREATE INDEX ut_ix4 ON user_transactions (tran_status,Effective_date);
 
+-- The orphan sweepers only read rows whose stale_date has passed, so rows
+-- that are still in flight cost them nothing
+CREATE INDEX ut_ix5 ON user_transactions (tran_status,stale_date);
+
 PARTITION TABLE user_transactions ON COLUMN userid;
 
+-- One row per CompoundPayment that spans partitions, in the partition that
+-- owns its Transaction_id, so questions about a whole transaction only need
+-- one partition. participants is the userids, 8 bytes each, payer last. Rows
+-- that nobody cleans up go after an hour, after which EndOrphanedTransactions
+-- is the backstop.
+CREATE TABLE settlement_header
+(Transaction_id bigint not null primary key
+,payer_id bigint not null
+,participant_count integer not null
+,net_amount bigint not null
+,participants varbinary(80008) not null
+,header_status varchar(20) not null
+,header_status_explanation varchar(4000)
+,insert_date timestamp default now not null
+,stale_date timestamp not null
+,done_date timestamp)
+USING TTL 60 MINUTES ON COLUMN insert_date;
+
+CREATE INDEX sh_ix1 ON settlement_header (header_status,stale_date);
+
+CREATE INDEX sh_ix2 ON settlement_header (insert_date);
+
+PARTITION TABLE settlement_header ON COLUMN Transaction_id;
+
+-- One row per co-located CompoundPayment, in the payer's partition, written
+-- by SettleLocalPayment along with the payment. CompactBalances deletes DONE
+-- user_transactions rows after a minute, so this is what stops a resubmission
+-- paying again. Like headers, rows go after an hour.
+CREATE TABLE local_settlement
+(payer_id bigint not null
+,Transaction_id bigint not null
+,insert_date timestamp default now not null
+,primary key (payer_id, Transaction_id))
+USING TTL 60 MINUTES ON COLUMN insert_date;
+
+CREATE INDEX ls_ix1 ON local_settlement (insert_date);
+
+PARTITION TABLE local_settlement ON COLUMN payer_id;
+
 CREATE TABLE promBL_latency_stats
  (statname varchar(128) not null
  ,stathelp varchar(128) not null
@@ -48,6 +100,24 @@ CREATE TABLE promBL_latency_stats
  
  PARTITION TABLE promBL_latency_stats ON COLUMN statname;
  
+-- Same as promBL_latency_stats, but written by directed procedures, which 
+-- can only write rows that live in their own partition. partition_key is any
+-- userid from that partition.
+CREATE TABLE promBL_partition_stats
+ (partition_key bigint not null
+ ,statname varchar(128) not null
+ ,stathelp varchar(128) not null
+ ,event_type varchar(128) not null
+ ,event_name varchar(128) not null
+ ,statvalue  bigint not null
+ ,lastdate timestamp not null
+ ,primary key (partition_key, statname, event_type, event_name))
+ USING TTL 2 MINUTES ON COLUMN lastdate;
+ 
+ CREATE INDEX pps_ix1 ON promBL_partition_stats(lastdate);
+ 
+ PARTITION TABLE promBL_partition_stats ON COLUMN partition_key;
+ 
 
 -- used by TestClient
 create view transaction_status as 
@@ -64,6 +134,16 @@ from user_transactions
 WHERE tran_status IN ('PENDING','PAYERDONE','DONE')
 group by Transaction_id;
 
+-- Running totals used by StartTransactionPayer's funds check, so it doesn't
+-- have to sum a user's whole transaction history. Only DONE rows and the
+-- debits of in-flight transactions count towards what a payer can spend.
+create view user_transaction_totals as
+select userid, tran_status, sum(tran_amount) tran_amount, count(*) how_many
+from user_transactions
+where tran_status = 'DONE'
+or (tran_status IN ('PENDING','PAYERDONE') and tran_amount < 0)
+group by userid, tran_status;
+
 -- Used for manaul checking after test runs
 create view transaction_net_changes as
 select Transaction_id, sum(tran_amount) tran_amount, count(*) how_many
@@ -94,6 +174,26 @@ export to TOPIC transaction_fixes_topic
 ,tran_status varchar(10) 
 ,desc varchar(4000));
 
+-- Same as the two above, but for EndLocalOrphanedTransactions, which can only
+-- write to its own partition. userid is one of the transaction's users in it.
+CREATE STREAM local_transaction_failures 
+PARTITION ON COLUMN userid 
+EXPORT TO TOPIC local_transaction_failures_topic  
+(userid bigint not null
+,Transaction_id bigint not null
+,Effective_date timestamp 
+,tran_status varchar(10) 
+,desc varchar(4000));
+
+CREATE STREAM local_transaction_fixes
+PARTITION ON COLUMN userid 
+export to TOPIC local_transaction_fixes_topic
+(userid bigint not null
+,Transaction_id bigint not null
+,Effective_date timestamp 
+,tran_status varchar(10) 
+,desc varchar(4000));
+
 
 CREATE PROCEDURE 
    PARTITION ON TABLE user_balances COLUMN userid
@@ -103,6 +203,16 @@ CREATE PROCEDURE
    PARTITION ON TABLE user_balances COLUMN userid
    FROM CLASS nwayprocedures.StartTransactionPayee; 
 
+-- The array variants are called once per partition by CompoundPayment. 
+-- Parameter 0 is any user in the partition.
+CREATE PROCEDURE 
+   PARTITION ON TABLE user_balances COLUMN userid PARAMETER 0
+   FROM CLASS nwayprocedures.StartTransactionPayees; 
+
+CREATE PROCEDURE 
+   PARTITION ON TABLE user_balances COLUMN userid PARAMETER 0
+   FROM CLASS nwayprocedures.SetTransactionEntriesDone;
+
 CREATE PROCEDURE 
    PARTITION ON TABLE user_balances COLUMN userid
    FROM CLASS nwayprocedures.EndSpecificTransactionWithErrors;
@@ -121,6 +231,45 @@ CREATE PROCEDURE
    
 
 CREATE COMPOUND PROCEDURE  FROM CLASS nwayprocedures.CompoundPayment;
+
+-- Used by CompoundPayment when every participant is in the payer's partition
+CREATE PROCEDURE 
+   PARTITION ON TABLE user_balances COLUMN userid PARAMETER 0
+   FROM CLASS nwayprocedures.SettleLocalPayment;
+
+CREATE PROCEDURE 
+   PARTITION ON TABLE settlement_header COLUMN Transaction_id PARAMETER 0
+   FROM CLASS nwayprocedures.StartSettlementHeader;
+
+CREATE PROCEDURE 
+   PARTITION ON TABLE settlement_header COLUMN Transaction_id PARAMETER 0
+   FROM CLASS nwayprocedures.SetSettlementHeaderStatus;
+
+CREATE PROCEDURE GetSettlementHeader
+   PARTITION ON TABLE settlement_header COLUMN Transaction_id
+   AS SELECT * FROM settlement_header WHERE Transaction_id = ?;
+
+CREATE PROCEDURE 
+   PARTITION ON TABLE user_balances COLUMN userid PARAMETER 0
+   FROM CLASS nwayprocedures.CancelPendingPayer;
+
+CREATE PROCEDURE 
+   PARTITION ON TABLE user_balances COLUMN userid PARAMETER 0
+   FROM CLASS nwayprocedures.EndTransactionEntries;
+
+CREATE COMPOUND PROCEDURE  FROM CLASS nwayprocedures.ResolveSettlement;
+
+-- Parameters are how many ms past stale_date a header must be (as a 
+-- negative number) and how many to return
+CREATE PROCEDURE GetStaleSettlements
+   AS SELECT Transaction_id FROM settlement_header 
+   WHERE header_status IN ('PENDING','PAYERDONE') AND stale_date <= DATEADD(MILLISECOND, ?, NOW)
+   ORDER BY stale_date, Transaction_id LIMIT ?;
+
+CREATE COMPOUND PROCEDURE  FROM CLASS nwayprocedures.CompoundPaymentBatch;
+
+-- Several CompoundPayments in one call. Used by TestClient's grouped routing
+CREATE COMPOUND PROCEDURE  FROM CLASS nwayprocedures.CompoundPaymentGroup;
    
 CREATE PROCEDURE GetStats__promBL AS
 BEGIN
@@ -131,17 +280,74 @@ select  'bl_transaction_status' statname
 , 'bl_transaction_status' stathelp 
 ,tran_status status 
 ,  how_many  statvalue from transaction_status;
+select  statname, stathelp, event_type, event_name, sum(statvalue) statvalue 
+from promBL_partition_stats
+group by statname, stathelp, event_type, event_name
+order by statname, stathelp, event_type, event_name;
 END;
 
+-- Lets clients write all their stats in one call
+CREATE PROCEDURE 
+   FROM CLASS nwayprocedures.UpsertStats;
+
+-- Clears out everything a run leaves behind. TRUNCATE doesn't need to
+-- visit each row, so this takes seconds where DELETE took minutes.
+CREATE PROCEDURE ResetTransactions AS
+BEGIN
+TRUNCATE TABLE user_transactions;
+TRUNCATE TABLE settlement_header;
+TRUNCATE TABLE local_settlement;
+TRUNCATE TABLE promBL_latency_stats;
+TRUNCATE TABLE promBL_partition_stats;
+END;
+
+-- Called once per partition using callAllPartitionProcedure
+CREATE PROCEDURE 
+   PARTITION ON TABLE user_balances COLUMN userid PARAMETER 0
+   FROM CLASS nwayprocedures.SnapshotBalances;
+
+CREATE PROCEDURE 
+   PARTITION ON TABLE user_balances COLUMN userid PARAMETER 0
+   FROM CLASS nwayprocedures.RestoreBalances;
+
 CREATE PROCEDURE 
    FROM CLASS nwayprocedures.EndOrphanedTransactions;  
    
+-- Backstop for orphans that span partitions. The scheduler runs it between
+-- every 100ms and every 5 seconds, depending on how much it finds. Parameters
+-- are min delay ms, max delay ms, min tranCount, max tranCount, 
+-- min transaction age ms and max % of the time it can spend running.
 CREATE TASK EndOrphanedTransactionsTask 
+FROM CLASS nwayprocedures.EndOrphanedTransactionsScheduler
+WITH (100, 5000, 10, 10000, 10000, 10) 
+ON ERROR LOG RUN ON DATABASE ENABLE;   
+
+CREATE PROCEDURE DIRECTED 
+   FROM CLASS nwayprocedures.EndLocalOrphanedTransactions;
+
+CREATE TASK EndLocalOrphanedTransactionsTask 
 ON SCHEDULE DELAY 100 MILLISECONDS
-PROCEDURE  EndOrphanedTransactions
+PROCEDURE  EndLocalOrphanedTransactions
 WITH ('100', '10000') 
-ON ERROR LOG RUN ON DATABASE ENABLE;   
+ON ERROR LOG RUN ON PARTITIONS ENABLE;   
 
-   
+CREATE PROCEDURE DIRECTED 
+   FROM CLASS nwayprocedures.CompactBalances;
 
+-- Parameters are batch size and minimum age of DONE rows in ms. 
+CREATE TASK CompactBalancesTask 
+ON SCHEDULE DELAY 1 SECONDS
+PROCEDURE  CompactBalances
+WITH ('1000', '60000') 
+ON ERROR LOG RUN ON PARTITIONS ENABLE;   
+
+   
 
+-- Finishes or cancels stale CompoundPayments using settlement_header, which
+-- only needs single partition calls. Finding them is a multi partition read,
+-- so we only look every 5 seconds unless there's a backlog. Parameters are 
+-- delay ms, batch size and minimum transaction age ms.
+CREATE TASK ResolveStaleSettlementsTask
+FROM CLASS nwayprocedures.ResolveStaleSettlementsScheduler
+WITH (5000, 100, 10000)
+ON ERROR LOG RUN ON DATABASE ENABLE;
@@ -1,27 +1,55 @@
  
 DROP TASK EndOrphanedTransactionsTask IF EXISTS;
+DROP TASK EndLocalOrphanedTransactionsTask IF EXISTS;
+DROP TASK CompactBalancesTask IF EXISTS;
+DROP TASK ResolveStaleSettlementsTask IF EXISTS;
 
 DROP PROCEDURE CompoundPayment IF EXISTS;
+DROP PROCEDURE CompoundPaymentBatch IF EXISTS;
+DROP PROCEDURE CompoundPaymentGroup IF EXISTS;
 drop procedure bl_transaction_status if exists;
 DROP PROCEDURE GetStats__promBL IF EXISTS;
+DROP PROCEDURE UpsertStats IF EXISTS;
 DROP PROCEDURE EndOrphanedTransactions IF EXISTS;
+DROP PROCEDURE EndLocalOrphanedTransactions IF EXISTS;
 DROP PROCEDURE TimeoutTransactions IF EXISTS;
 DROP PROCEDURE StartTransactionPayee IF EXISTS;
+DROP PROCEDURE StartTransactionPayees IF EXISTS;
 DROP PROCEDURE StartTransactionPayer IF EXISTS;
 DROP PROCEDURE EndSpecificTransactionWithErrors IF EXISTS;
 DROP PROCEDURE SetTransactionEntryDone IF EXISTS;
+DROP PROCEDURE SetTransactionEntriesDone IF EXISTS;
 DROP PROCEDURE SetPayerDone IF EXISTS;
 DROP PROCEDURE GetBalance IF EXISTS;
+DROP PROCEDURE CompactBalances IF EXISTS;
+DROP PROCEDURE ResetTransactions IF EXISTS;
+DROP PROCEDURE SnapshotBalances IF EXISTS;
+DROP PROCEDURE RestoreBalances IF EXISTS;
+DROP PROCEDURE SettleLocalPayment IF EXISTS;
+DROP PROCEDURE StartSettlementHeader IF EXISTS;
+DROP PROCEDURE SetSettlementHeaderStatus IF EXISTS;
+DROP PROCEDURE GetSettlementHeader IF EXISTS;
+DROP PROCEDURE CancelPendingPayer IF EXISTS;
+DROP PROCEDURE EndTransactionEntries IF EXISTS;
+DROP PROCEDURE ResolveSettlement IF EXISTS;
+DROP PROCEDURE GetStaleSettlements IF EXISTS;
 
 drop view transaction_status if exists;
 DROP view transaction_net_changes IF EXISTS;
 DROP view transaction_changes IF EXISTS;
+DROP view user_transaction_totals IF EXISTS;
    
 DROP STREAM transaction_failures IF EXISTS;
 DROP STREAM transaction_fixes IF EXISTS;
+DROP STREAM local_transaction_failures IF EXISTS;
+DROP STREAM local_transaction_fixes IF EXISTS;
 
 DROP TABLE user_balances IF EXISTS;
+DROP TABLE user_balances_snapshot IF EXISTS;
 DROP TABLE user_transactions IF EXISTS;
+DROP TABLE settlement_header IF EXISTS;
+DROP TABLE local_settlement IF EXISTS;
 DROP table promBL_latency_stats IF EXISTS;
+DROP table promBL_partition_stats IF EXISTS;
 
  
@@ -0,0 +1,18 @@
+#!/bin/sh
+
+# Co-located settlements compared with ones that span partitions
+
+if
+ 	[ "$#" = 0 ]
+then
+	echo Using defaults...
+	PAYEECOUNT=5
+	ITERATIONS=1000
+	DELAY=10
+else
+	PAYEECOUNT=$1
+	ITERATIONS=$2
+	DELAY=$3
+fi
+
+java ${JVMOPTS} -cp ../jars/NWayClient.jar nwaysettlement.client.ColocatedBenchmark `cat $HOME/.vdbhostnames` $PAYEECOUNT $ITERATIONS $DELAY
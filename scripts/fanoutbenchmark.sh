@@ -0,0 +1,18 @@
+#!/bin/sh
+
+# Latency of one CompoundPayment as the payee count grows
+
+if
+ 	[ "$#" = 0 ]
+then
+	echo Using defaults...
+	PAYEECOUNTS=1,2,5,10,100,1000,10000
+	ITERATIONS=100
+	DELAY=10
+else
+	PAYEECOUNTS=$1
+	ITERATIONS=$2
+	DELAY=$3
+fi
+
+java ${JVMOPTS} -cp ../jars/NWayClient.jar nwaysettlement.client.FanOutBenchmark `cat $HOME/.vdbhostnames` $PAYEECOUNTS $ITERATIONS $DELAY
@@ -0,0 +1,20 @@
+#!/bin/sh
+
+# Create user_balances rows with the bulk loader before a run
+
+if
+ 	[ "$#" = 0 ]
+then
+	echo Using defaults...
+	USERCOUNT=100000000
+	OFFSET=0
+	BALANCE=1000000
+	THREADS=8
+else
+	USERCOUNT=$1
+	OFFSET=$2
+	BALANCE=$3
+	THREADS=$4
+fi
+
+java ${JVMOPTS} -cp ../jars/NWayClient.jar nwaysettlement.client.BalanceLoader `cat $HOME/.vdbhostnames` $USERCOUNT $OFFSET $BALANCE $THREADS
@@ -0,0 +1,19 @@
+#!/bin/sh
+
+# Duration of one EndOrphanedTransactions run as the orphan backlog grows,
+# with FRESHROWS PENDING rows that aren't stale yet
+
+if
+ 	[ "$#" = 0 ]
+then
+	echo Using defaults...
+	BACKLOGSIZES=1,10,100,1000,10000
+	ITERATIONS=5
+	FRESHROWS=0
+else
+	BACKLOGSIZES=$1
+	ITERATIONS=$2
+	FRESHROWS=${3:-0}
+fi
+
+java ${JVMOPTS} -cp ../jars/NWayClient.jar nwaysettlement.client.OrphanSweepBenchmark `cat $HOME/.vdbhostnames` $BACKLOGSIZES $ITERATIONS $FRESHROWS
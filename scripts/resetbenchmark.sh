@@ -0,0 +1,15 @@
+#!/bin/sh
+
+# Truncate transactions and stats between runs. Afterwards 'snapshot' saves 
+# balances and 'restore' puts saved balances back.
+
+if
+ 	[ "$#" = 0 ]
+then
+	echo Using defaults...
+	BALANCES=none
+else
+	BALANCES=$1
+fi
+
+java ${JVMOPTS} -cp ../jars/NWayClient.jar nwaysettlement.client.BenchmarkReset `cat $HOME/.vdbhostnames` $BALANCES
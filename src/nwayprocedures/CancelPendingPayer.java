@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package nwayprocedures;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+/**
+ * Cancel the payer's row of a transaction, but only if it's still PENDING.
+ * SetPayerDone only moves PENDING rows, so once this has run the transaction
+ * can't reach PAYERDONE, and it's safe to cancel the payees. If the payer has
+ * no row yet we write a FAILED one, so a late StartTransactionPayer can't
+ * start it either.
+ * <p>
+ * The status string is the payer's status afterwards. It's FAILED if we, or
+ * someone before us, cancelled it, and PAYERDONE or DONE if it got there
+ * first, in which case the transaction has to finish.
+ */
+public class CancelPendingPayer extends VoltProcedure {
+
+    public static final SQLStmt cancelTransaction = new SQLStmt(
+            "UPDATE user_transactions SET tran_status = 'FAILED', tran_status_explanation = ?, "
+                    + "done_date = NOW, queue_date = null, user_count = null "
+                    + "WHERE userid = ? AND Transaction_id = ? AND tran_status = 'PENDING';");
+
+    public static final SQLStmt getPayerTransaction = new SQLStmt(
+            "select t.tran_status from user_transactions t where t.userid = ? and t.transaction_id = ?;");
+
+    public static final SQLStmt insertFailedTransaction = new SQLStmt(
+            "INSERT INTO user_transactions (userid, other_userid, tran_amount, transaction_id, Effective_date, tran_status, tran_status_explanation, stale_date, done_date) "
+                    + " VALUES " + "(?,?,0,?,NOW,'FAILED',?,NOW,NOW);");
+
+    public VoltTable[] run(long payingUserId, long txnId, String explanation) throws VoltAbortException {
+
+        if (explanation != null && explanation.length() > EndTransactionEntries.MAX_EXPLANATION_LENGTH) {
+            explanation = explanation.substring(0, EndTransactionEntries.MAX_EXPLANATION_LENGTH);
+        }
+
+        this.setAppStatusCode(StartTransactionPayer.DONE_CODE);
+        this.setAppStatusString("FAILED");
+
+        voltQueueSQL(cancelTransaction, explanation, payingUserId, txnId);
+        voltQueueSQL(getPayerTransaction, payingUserId, txnId);
+
+        VoltTable[] results = voltExecuteSQL();
+
+        results[0].advanceRow();
+
+        if (results[0].getLong("modified_tuples") == 1) {
+            return voltExecuteSQL(true);
+        }
+
+        if (!results[1].advanceRow()) {
+            voltQueueSQL(insertFailedTransaction, payingUserId, payingUserId, txnId, explanation);
+            return voltExecuteSQL(true);
+        }
+
+        this.setAppStatusString(results[1].getString("tran_status"));
+
+        return voltExecuteSQL(true);
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package nwayprocedures;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+/**
+ * Directed procedure that folds a bounded batch of this partition's DONE
+ * transactions into user_balances and then deletes them. Run by
+ * CompactBalancesTask on every partition.
+ */
+public class CompactBalances extends VoltProcedure {
+
+    public static final SQLStmt getDoneTransactions = new SQLStmt(
+            "SELECT userid, Transaction_id, tran_amount " + "FROM user_transactions t "
+                    + "WHERE tran_status = 'DONE' AND insert_date < ? "
+                    + "ORDER BY tran_status, insert_date LIMIT ?; ");
+
+    public static final SQLStmt updateBalance = new SQLStmt(
+            "UPDATE user_balances SET balance_amount = balance_amount + ? WHERE userid = ?;");
+
+    public static final SQLStmt deleteDoneTransaction = new SQLStmt(
+            "DELETE FROM user_transactions WHERE userid = ? AND Transaction_id = ? AND tran_status = 'DONE';");
+
+    public static final SQLStmt getPartitionKey = new SQLStmt(
+            "SELECT MIN(userid) partition_key FROM user_balances;");
+
+    public static final SQLStmt upsertStat = new SQLStmt(
+            "UPSERT INTO promBL_partition_stats (partition_key, statname, stathelp, event_type, event_name, statvalue,lastdate) VALUES (?,?,?,?,?,?,NOW);");
+
+    private static final int RANDOM_STAT_INTERVAL = 50;
+
+    Random r;
+
+    /**
+     * @param batchSize max number of DONE rows to fold in this run
+     * @param minAgeMs  DONE rows younger than this are left alone, so
+     *                  EndOrphanedTransactions still sees every participant of a
+     *                  transaction it might be finishing.
+     */
+    public VoltTable[] run(long batchSize, long minAgeMs) throws VoltAbortException {
+
+        if (r == null) {
+            r = this.getSeededRandomNumberGenerator();
+        }
+
+        final Date cutoffDate = new Date(this.getTransactionTime().getTime() - minAgeMs);
+
+        voltQueueSQL(getDoneTransactions, cutoffDate, batchSize);
+        voltQueueSQL(getPartitionKey);
+        VoltTable[] doneResults = voltExecuteSQL();
+        VoltTable doneRecords = doneResults[0];
+
+        HashMap<Long, Long> balanceChanges = new HashMap<>();
+
+        while (doneRecords.advanceRow()) {
+
+            final long userId = doneRecords.getLong("userid");
+            final long tranAmount = doneRecords.getLong("tran_amount");
+
+            Long balanceChange = balanceChanges.get(userId);
+
+            if (balanceChange == null) {
+                balanceChanges.put(userId, tranAmount);
+            } else {
+                balanceChanges.put(userId, balanceChange + tranAmount);
+            }
+
+            voltQueueSQL(deleteDoneTransaction, userId, doneRecords.getLong("Transaction_id"));
+        }
+
+        Iterator<Entry<Long, Long>> it = balanceChanges.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry<Long, Long> pair = it.next();
+            voltQueueSQL(updateBalance, pair.getValue(), pair.getKey());
+        }
+
+        // Stats are partitioned like everything else, so we need a key that
+        // lives here. An empty partition has nothing to report.
+        doneResults[1].advanceRow();
+        final long partitionKey = doneResults[1].getLong("partition_key");
+
+        if (!doneResults[1].wasNull()
+                && (doneRecords.getRowCount() > 0 || r.nextInt(RANDOM_STAT_INTERVAL) == 0)) {
+
+            voltQueueSQL(upsertStat, partitionKey, "CompactBalances", "CompactBalances", "internalmeasurement",
+                    "foldedTxs", doneRecords.getRowCount());
+            voltQueueSQL(upsertStat, partitionKey, "CompactBalances", "CompactBalances", "internalmeasurement",
+                    "foldedUsers", balanceChanges.size());
+            voltQueueSQL(upsertStat, partitionKey, "CompactBalances", "CompactBalances", "internalmeasurement",
+                    "fullBatches", doneRecords.getRowCount() >= batchSize ? 1 : 0);
+        }
+
+        return voltExecuteSQL(true);
+
+    }
+
+}
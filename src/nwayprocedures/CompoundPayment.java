@@ -7,24 +7,57 @@
  */
 package nwayprocedures;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
 
 import org.voltcore.logging.VoltLogger;
+import org.voltdb.TheHashinator;
 import org.voltdb.VoltCompoundProcedure;
+import org.voltdb.VoltType;
 import org.voltdb.client.ClientResponse;
 
 public class CompoundPayment extends VoltCompoundProcedure {
 
-    private static final int MAX_PARAMETERS = 10;
+    /**
+     * Most users we'll send to one StartTransactionPayees or
+     * SetTransactionEntriesDone call. Bigger partition groups are split.
+     */
+    public static final int MAX_USERS_PER_CALL = 100;
+
+    /**
+     * Most procedure calls we queue in one stage. A stage that would need
+     * more, such as launching a payroll with thousands of payees, is spread
+     * over as many stages as it takes.
+     */
+    public static final int MAX_CALLS_PER_STAGE = 50;
+
+    /**
+     * Most payees we list in toString.
+     */
+    static final int MAX_PAYEES_IN_SUMMARY = 5;
 
     static VoltLogger LOG = new VoltLogger("CompoundPayment");
 
     long payerId, txnId, delay;
-    long[] payeeId, amounts;
+    long[] payeeId, amounts, participants;
     Date effectiveDate;
     StringBuffer errorList = new StringBuffer();
 
+    // Payees and then all participants, grouped by partition
+    ArrayList<int[]> payeeGroups, participantGroups;
+
+    // The next call to queue in each phase, and how many calls the last
+    // stage queued
+    int launchCall, finishCall, cleanupCall, callsQueued;
+
+    String cleanupExplanation;
+
+    // Once SetPayerDone has worked the payment has to finish, whatever
+    // happens afterwards
+    boolean payerDone;
+
     String returnAppStatus = StartTransactionPayer.DONE_MESSAGE;
     byte returnStatusByte = StartTransactionPayer.DONE_CODE;
 
@@ -51,33 +84,169 @@ public class CompoundPayment extends VoltCompoundProcedure {
             abortProcedure(StartTransactionPayer.PAYEE_LIST_MISMATCH_MESSAGE);
         }
 
-        if (amounts.length > MAX_PARAMETERS - 1) {
+        if (amounts.length > StartTransactionPayer.MAX_PAYEES) {
             LOG.error(StartTransactionPayer.PAYEE_LIST_TOOLONG_MESSAGE);
             this.setAppStatusCode(StartTransactionPayer.PAYEE_LIST_TOOLONG_CODE);
             this.setAppStatusString(StartTransactionPayer.PAYEE_LIST_TOOLONG_MESSAGE);
             abortProcedure(StartTransactionPayer.PAYEE_LIST_TOOLONG_MESSAGE);
         }
 
-        // Build stages
-        newStageList(this::launchTransactions).then(this::markPayerDone).then(this::finishPayees)
-                .then(this::optionallyReportErrors).then(this::finish).build();
+        if (StartTransactionPayer.hasDuplicateParticipants(payerId, payeeId)) {
+            LOG.error(StartTransactionPayer.DUPLICATE_PARTICIPANT_MESSAGE);
+            this.setAppStatusCode(StartTransactionPayer.DUPLICATE_PARTICIPANT_CODE);
+            this.setAppStatusString(StartTransactionPayer.DUPLICATE_PARTICIPANT_MESSAGE);
+            abortProcedure(StartTransactionPayer.DUPLICATE_PARTICIPANT_MESSAGE);
+        }
+
+        // If everyone lives in one partition one single partition call does
+        // the whole thing, and there's nothing in flight to clean up
+        if (SettleLocalPayment.isColocated(payerId, payeeId)) {
+            newStageList(this::settleLocally).then(this::finishLocally).build();
+            return 0L;
+        }
+
+        participants = Arrays.copyOf(payeeId, payeeId.length + 1);
+        participants[payeeId.length] = payerId;
+
+        payeeGroups = groupByPartition(payeeId, MAX_USERS_PER_CALL);
+        participantGroups = groupByPartition(participants, MAX_USERS_PER_CALL);
+
+        // Build stages. Launching, finishing and cleaning up take as many
+        // stages as they need to stay within MAX_CALLS_PER_STAGE
+        StageListBuilder stages = newStageList(this::claimTransaction);
+
+        for (int i = 0; i < getStageCount(payeeGroups.size() + 1); i++) {
+            stages = stages.then(this::launchTransactions);
+        }
+
+        stages = stages.then(this::markPayerDone);
+
+        for (int i = 0; i < getStageCount(participantGroups.size()); i++) {
+            stages = stages.then(this::finishPayees);
+        }
+
+        for (int i = 0; i < getStageCount(participantGroups.size() + 1); i++) {
+            stages = stages.then(this::optionallyReportErrors);
+        }
+
+        stages.then(this::finish).build();
         return 0L;
     }
 
     /**
-     * Launch payer and payee Tx's. These might fail for business reasons, e.g. no
-     * money
+     * @param calls
+     * @return how many stages we need for calls calls
+     */
+    static int getStageCount(int calls) {
+        return (calls + MAX_CALLS_PER_STAGE - 1) / MAX_CALLS_PER_STAGE;
+    }
+
+    /**
+     * Create our settlement_header row. Only one caller can do this for a
+     * txnId, so a resubmission finds out here and doesn't run anything else.
      */
-    private void launchTransactions(ClientResponse[] unused) {
+    private void claimTransaction(ClientResponse[] unused) {
 
-        long payerAmount = 0;
+        long netAmount = 0;
 
         for (int i = 0; i < amounts.length; i++) {
-            payerAmount -= amounts[i];
-            queueProcedureCall("StartTransactionPayee", payeeId[i], payerId, amounts[i], txnId, effectiveDate);
+            netAmount += amounts[i];
+        }
+
+        queueProcedureCall("StartSettlementHeader", txnId, payerId, participants, netAmount);
+    }
+
+    /**
+     * Launch payer and payee Tx's. These might fail for business reasons, e.g. no
+     * money. Call 0 is the payer, so we find out about money first, and call
+     * i is payee group i - 1. Each stage sends the next MAX_CALLS_PER_STAGE.
+     */
+    private void launchTransactions(ClientResponse[] resp) {
+
+        if (launchCall == 0) {
+
+            if (resp[0].getStatus() == ClientResponse.SUCCESS
+                    && resp[0].getAppStatus() == StartTransactionPayer.ALREADY_SUBMITTED_CODE) {
+                reportResubmission(resp[0].getAppStatusString());
+                return;
+            }
+
+            if (!hasNoErrors(resp, StartTransactionPayer.PENDING_CODE, 1, StartTransactionPayer.CANTSTART)) {
+                // We never claimed txnId, so there's nothing of ours to clean up
+                finish(resp);
+                return;
+            }
+
+        } else if (!hasNoErrors(resp, StartTransactionPayer.PENDING_CODE, callsQueued,
+                StartTransactionPayer.CANTSTART)) {
+            return;
+        }
+
+        final int lastCall = Math.min(launchCall + MAX_CALLS_PER_STAGE, payeeGroups.size() + 1);
+        callsQueued = lastCall - launchCall;
+
+        for (; launchCall < lastCall; launchCall++) {
+
+            if (launchCall == 0) {
+
+                long payerAmount = 0;
+
+                for (int i = 0; i < amounts.length; i++) {
+                    payerAmount -= amounts[i];
+                }
+
+                queueProcedureCall("StartTransactionPayer", payerId, payerAmount, txnId, effectiveDate,
+                        amounts.length + 1);
+
+            } else {
+
+                final int[] payeeGroup = payeeGroups.get(launchCall - 1);
+                long[] groupPayees = new long[payeeGroup.length];
+                long[] groupAmounts = new long[payeeGroup.length];
+
+                for (int i = 0; i < payeeGroup.length; i++) {
+                    groupPayees[i] = payeeId[payeeGroup[i]];
+                    groupAmounts[i] = amounts[payeeGroup[i]];
+                }
+
+                queueProcedureCall("StartTransactionPayees", groupPayees[0], groupPayees, payerId, groupAmounts,
+                        txnId, effectiveDate);
+            }
         }
+    }
 
-        queueProcedureCall("StartTransactionPayer", payerId, payerAmount, txnId, effectiveDate, amounts.length + 1);
+    private void settleLocally(ClientResponse[] unused) {
+        queueProcedureCall("SettleLocalPayment", payerId, txnId, payeeId, amounts, effectiveDate);
+    }
+
+    /**
+     * SettleLocalPayment either did everything or nothing, so all we need to
+     * do is report what happened.
+     */
+    private void finishLocally(ClientResponse[] resp) {
+
+        if (resp[0].getStatus() == ClientResponse.SUCCESS
+                && resp[0].getAppStatus() == StartTransactionPayer.ALREADY_SUBMITTED_CODE) {
+            reportResubmission(resp[0].getAppStatusString());
+            return;
+        }
+
+        hasNoErrors(resp, StartTransactionPayer.DONE_CODE, 1, StartTransactionPayer.CANTSTART);
+        finish(resp);
+    }
+
+    /**
+     * txnId was used before, so tell the caller what happened to it instead
+     * of doing anything. A retry of a payment that worked looks like it
+     * worked.
+     *
+     * @param originalStatus
+     */
+    private void reportResubmission(String originalStatus) {
+
+        this.setAppStatusCode(StartTransactionPayer.getResubmissionCode(originalStatus));
+        this.setAppStatusString(originalStatus);
+        completeProcedure(0L);
     }
 
     /**
@@ -86,41 +255,128 @@ public class CompoundPayment extends VoltCompoundProcedure {
      */
     private void markPayerDone(ClientResponse[] resp) {
 
-        if (hasNoErrors(resp, StartTransactionPayer.PENDING_CODE, payeeId.length + 1,
-                StartTransactionPayer.CANTSTART)) {
+        if (hasNoErrors(resp, StartTransactionPayer.PENDING_CODE, callsQueued, StartTransactionPayer.CANTSTART)) {
             queueProcedureCall("SetPayerDone", payerId, txnId, StartTransactionPayer.PAYERDONE_MESSAGE);
+            queueProcedureCall("SetSettlementHeaderStatus", txnId, StartTransactionPayer.PAYERDONE_MESSAGE, null);
+            callsQueued = 2;
         }
 
     }
 
     /**
-     * If we have set the payer to PAYERDONE set everyone to DONE. Note that even if
+     * If we have set the payer to PAYERDONE set everyone to DONE, one partition
+     * group per call and MAX_CALLS_PER_STAGE calls per stage. Note that even if
      * we stop executing at this point a task will do this for us if we don't.
      */
     private void finishPayees(ClientResponse[] resp) {
 
-        if (hasNoErrors(resp, StartTransactionPayer.PAYERDONE_CODE, 1, StartTransactionPayer.CANTSTART)) {
+        byte okCode = StartTransactionPayer.DONE_CODE;
+
+        if (finishCall == 0) {
 
-            for (int i = 0; i < amounts.length; i++) {
-                queueProcedureCall("SetTransactionEntryDone", payeeId[i], txnId);
+            okCode = StartTransactionPayer.PAYERDONE_CODE;
+
+            if (resp.length == 2) {
+
+                payerDone = resp[0].getStatus() == ClientResponse.SUCCESS
+                        && resp[0].getAppStatus() == StartTransactionPayer.PAYERDONE_CODE;
+
+                // ResolveSettlement may have got to the header first. If it
+                // finished it as DONE, so can we.
+                if (isHeaderDone(resp[1])) {
+                    resp = Arrays.copyOf(resp, 1);
+                    callsQueued = 1;
+                }
             }
+        }
 
-            queueProcedureCall("SetTransactionEntryDone", payerId, txnId);
+        if (!hasNoErrors(resp, okCode, callsQueued, StartTransactionPayer.CANTSTART)) {
+            return;
+        }
+
+        final int lastCall = Math.min(finishCall + MAX_CALLS_PER_STAGE, participantGroups.size());
+        callsQueued = lastCall - finishCall;
 
+        for (; finishCall < lastCall; finishCall++) {
+            long[] groupParticipants = getGroupParticipants(finishCall);
+            queueProcedureCall("SetTransactionEntriesDone", groupParticipants[0], groupParticipants, txnId);
         }
 
     }
 
     /**
      * If we've broken things - e.g. someone didn't have the $, try to clean up.
-     * Note that a task will do this even if we don't.
+     * We know who the participants are, so this is one call per partition
+     * group plus one for the header, spread over as many stages as it takes.
+     * Note that a task will do this even if we don't. Otherwise mark the
+     * header as DONE.
+     * <p>
+     * If the payer got to PAYERDONE cleaning up means finishing, as some
+     * participants may already be DONE. This is the same rule ResolveSettlement
+     * uses.
      */
     private void optionallyReportErrors(ClientResponse[] resp) {
 
-        if (!hasNoErrors(resp, StartTransactionPayer.DONE_CODE, payeeId.length + 1, StartTransactionPayer.CANTFINISH)) {
-            queueProcedureCall("EndSpecificTransactionWithErrors", txnId, returnAppStatus, this.toString());
+        if (cleanupCall == 0) {
+
+            if (hasNoErrors(resp, StartTransactionPayer.DONE_CODE, callsQueued, StartTransactionPayer.CANTFINISH)) {
+                queueProcedureCall("SetSettlementHeaderStatus", txnId, StartTransactionPayer.DONE_MESSAGE, null);
+
+                // Nothing for any later cleanup stages to do
+                cleanupCall = participantGroups.size() + 1;
+                return;
+            }
+
+            cleanupExplanation = this.toString();
+
+            if (payerDone) {
+                // The payment went through, so that's what we tell the
+                // caller. What went wrong is in the log and transaction_fixes.
+                errorList.setLength(0);
+                returnAppStatus = StartTransactionPayer.DONE_MESSAGE;
+                returnStatusByte = StartTransactionPayer.DONE_CODE;
+            }
+        }
+
+        final int lastCall = Math.min(cleanupCall + MAX_CALLS_PER_STAGE, participantGroups.size() + 1);
+
+        for (; cleanupCall < lastCall; cleanupCall++) {
+
+            if (cleanupCall < participantGroups.size()) {
+                long[] groupParticipants = getGroupParticipants(cleanupCall);
+                queueProcedureCall("EndTransactionEntries", groupParticipants[0], groupParticipants, txnId,
+                        returnAppStatus, cleanupExplanation);
+            } else {
+                queueProcedureCall("SetSettlementHeaderStatus", txnId, returnAppStatus, cleanupExplanation);
+            }
+        }
+
+    }
+
+    /**
+     * @param headerResponse
+     * @return true if SetSettlementHeaderStatus found the header already DONE
+     */
+    static boolean isHeaderDone(ClientResponse headerResponse) {
+        return headerResponse.getStatus() == ClientResponse.SUCCESS
+                && headerResponse.getAppStatus() == StartTransactionPayer.HEADER_FINISHED_CODE
+                && StartTransactionPayer.DONE_MESSAGE.equals(headerResponse.getAppStatusString());
+    }
+
+    /**
+     * @param group
+     * @return the userids in participantGroups[group]
+     */
+    private long[] getGroupParticipants(int group) {
+
+        final int[] participantGroup = participantGroups.get(group);
+        long[] groupParticipants = new long[participantGroup.length];
+
+        for (int i = 0; i < participantGroup.length; i++) {
+            groupParticipants[i] = participants[participantGroup[i]];
         }
 
+        return groupParticipants;
     }
 
     /**
@@ -140,6 +396,51 @@ public class CompoundPayment extends VoltCompoundProcedure {
 
     }
 
+    /**
+     * Group userIds by the partition that owns them, so each partition gets one
+     * call per stage instead of one per participant. Groups bigger than
+     * maxGroupSize are split, so a payroll with thousands of payees still
+     * turns into reasonably sized single partition transactions.
+     *
+     * @return for each partition, the positions in userIds of its users
+     */
+    static ArrayList<int[]> groupByPartition(long[] userIds, int maxGroupSize) {
+
+        LinkedHashMap<Integer, ArrayList<Integer>> partitionMap = new LinkedHashMap<>();
+
+        for (int i = 0; i < userIds.length; i++) {
+
+            final int partitionId = TheHashinator.getPartitionForParameter(VoltType.BIGINT, userIds[i]);
+
+            ArrayList<Integer> partitionUsers = partitionMap.get(partitionId);
+
+            if (partitionUsers == null) {
+                partitionUsers = new ArrayList<>();
+                partitionMap.put(partitionId, partitionUsers);
+            }
+
+            partitionUsers.add(i);
+        }
+
+        ArrayList<int[]> groups = new ArrayList<>(partitionMap.size());
+
+        for (ArrayList<Integer> partitionUsers : partitionMap.values()) {
+
+            for (int start = 0; start < partitionUsers.size(); start += maxGroupSize) {
+
+                int[] group = new int[Math.min(maxGroupSize, partitionUsers.size() - start)];
+
+                for (int i = 0; i < group.length; i++) {
+                    group[i] = partitionUsers.get(start + i);
+                }
+
+                groups.add(group);
+            }
+        }
+
+        return groups;
+    }
+
     private boolean hasErrors() {
 
         if (errorList.length() > 0) {
@@ -192,6 +493,11 @@ public class CompoundPayment extends VoltCompoundProcedure {
 
     }
 
+    /**
+     * Goes in cleanup calls and the log, so it has to stay short however many
+     * payees there are: the payee count and the first few payees, and no more
+     * than fits in tran_status_explanation.
+     */
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
@@ -199,21 +505,28 @@ public class CompoundPayment extends VoltCompoundProcedure {
         builder.append(payerId);
         builder.append(", txnId=");
         builder.append(txnId);
-        builder.append(", delay=");
-        builder.append(delay);
-        builder.append(", payeeId=");
-        builder.append(Arrays.toString(payeeId));
-        builder.append(", amounts=");
-        builder.append(Arrays.toString(amounts));
         builder.append(", effectiveDate=");
         builder.append(effectiveDate);
-        builder.append(", errorList=");
-        builder.append(errorList);
+
+        if (payeeId != null) {
+            builder.append(", payeeCount=");
+            builder.append(payeeId.length);
+            builder.append(", firstPayees=");
+            builder.append(Arrays.toString(Arrays.copyOf(payeeId, Math.min(payeeId.length, MAX_PAYEES_IN_SUMMARY))));
+        }
+
         builder.append(", returnAppStatus=");
         builder.append(returnAppStatus);
         builder.append(", statusByte=");
         builder.append(returnStatusByte);
+        builder.append(", errorList=");
+        builder.append(errorList);
         builder.append("]");
+
+        if (builder.length() > EndTransactionEntries.MAX_EXPLANATION_LENGTH) {
+            builder.setLength(EndTransactionEntries.MAX_EXPLANATION_LENGTH);
+        }
+
         return builder.toString();
     }
 }
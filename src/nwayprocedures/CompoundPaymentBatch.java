@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package nwayprocedures;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.voltcore.logging.VoltLogger;
+import org.voltdb.VoltCompoundProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.client.ClientResponse;
+
+/**
+ * Same protocol as CompoundPayment, but settles many independent transfers in
+ * one invocation. Transfer i is paid by payerIds[i] and has payeeCounts[i]
+ * payees, which are the next payeeCounts[i] entries of payeeIds and amounts.
+ * Each stage queues the calls for every transfer that is still alive, so the
+ * whole batch costs the same number of round trips as a single payment.
+ * Returns one row per transfer.
+ */
+public class CompoundPaymentBatch extends VoltCompoundProcedure {
+
+    private static final int MAX_PARAMETERS = 10;
+
+    /**
+     * Most payees one transfer can have.
+     */
+    public static final int MAX_PAYEES_PER_TRANSFER = MAX_PARAMETERS - 1;
+
+    public static final int MAX_TRANSFERS = 100;
+
+    static VoltLogger LOG = new VoltLogger("CompoundPaymentBatch");
+
+    long[] payerIds, txnIds, payeeCounts, payeeIds, amounts;
+    Date effectiveDate;
+
+    // Where each transfer's payees start in payeeIds/amounts
+    int[] firstPayee;
+
+    // Where each transfer's calls start in the current stage's responses, or
+    // -1 if the transfer has already failed
+    int[] firstCall;
+
+    byte[] transferStatusByte;
+    String[] transferStatus;
+    StringBuffer[] errorList;
+
+    public long run(long[] payerIds, long[] txnIds, long[] payeeCounts, long[] payeeIds, long[] amounts,
+            Date effectiveDate) {
+
+        // Save inputs
+        this.payerIds = payerIds;
+        this.txnIds = txnIds;
+        this.payeeCounts = payeeCounts;
+        this.payeeIds = payeeIds;
+        this.amounts = amounts;
+        this.effectiveDate = effectiveDate;
+
+        if (payerIds == null || txnIds == null || payeeCounts == null || payeeIds == null || amounts == null
+                || effectiveDate == null) {
+            LOG.error(StartTransactionPayer.PARAMETER_NULL_MESSAGE);
+            this.setAppStatusCode(StartTransactionPayer.PARAMETER_NULL_CODE);
+            this.setAppStatusString(StartTransactionPayer.PARAMETER_NULL_MESSAGE);
+            abortProcedure(StartTransactionPayer.PARAMETER_NULL_MESSAGE);
+        }
+
+        if (payerIds.length > MAX_TRANSFERS) {
+            LOG.error(StartTransactionPayer.TRANSFER_LIST_TOOLONG_MESSAGE);
+            this.setAppStatusCode(StartTransactionPayer.TRANSFER_LIST_TOOLONG_CODE);
+            this.setAppStatusString(StartTransactionPayer.TRANSFER_LIST_TOOLONG_MESSAGE);
+            abortProcedure(StartTransactionPayer.TRANSFER_LIST_TOOLONG_MESSAGE);
+        }
+
+        long payeeTotal = 0;
+
+        for (long payeeCount : payeeCounts) {
+
+            if (payeeCount < 0) {
+                LOG.error(StartTransactionPayer.PAYEE_LIST_MISMATCH_MESSAGE);
+                this.setAppStatusCode(StartTransactionPayer.PAYEE_LIST_MISMATCH_CODE);
+                this.setAppStatusString(StartTransactionPayer.PAYEE_LIST_MISMATCH_MESSAGE);
+                abortProcedure(StartTransactionPayer.PAYEE_LIST_MISMATCH_MESSAGE);
+            }
+
+            if (payeeCount > MAX_PAYEES_PER_TRANSFER) {
+                LOG.error(StartTransactionPayer.BATCH_PAYEE_LIST_TOOLONG_MESSAGE);
+                this.setAppStatusCode(StartTransactionPayer.PAYEE_LIST_TOOLONG_CODE);
+                this.setAppStatusString(StartTransactionPayer.BATCH_PAYEE_LIST_TOOLONG_MESSAGE);
+                abortProcedure(StartTransactionPayer.BATCH_PAYEE_LIST_TOOLONG_MESSAGE);
+            }
+
+            payeeTotal += payeeCount;
+        }
+
+        if (txnIds.length != payerIds.length || payeeCounts.length != payerIds.length
+                || amounts.length != payeeIds.length || payeeTotal != payeeIds.length) {
+            LOG.error(StartTransactionPayer.PAYEE_LIST_MISMATCH_MESSAGE);
+            this.setAppStatusCode(StartTransactionPayer.PAYEE_LIST_MISMATCH_CODE);
+            this.setAppStatusString(StartTransactionPayer.PAYEE_LIST_MISMATCH_MESSAGE);
+            abortProcedure(StartTransactionPayer.PAYEE_LIST_MISMATCH_MESSAGE);
+        }
+
+        firstPayee = new int[payerIds.length];
+        firstCall = new int[payerIds.length];
+        transferStatusByte = new byte[payerIds.length];
+        transferStatus = new String[payerIds.length];
+        errorList = new StringBuffer[payerIds.length];
+
+        int payeeIdx = 0;
+
+        for (int t = 0; t < payerIds.length; t++) {
+            firstPayee[t] = payeeIdx;
+            payeeIdx += payeeCounts[t];
+            transferStatusByte[t] = StartTransactionPayer.DONE_CODE;
+            transferStatus[t] = StartTransactionPayer.DONE_MESSAGE;
+            errorList[t] = new StringBuffer();
+        }
+
+        // Build stages
+        newStageList(this::launchTransactions).then(this::markPayerDone).then(this::finishPayees)
+                .then(this::optionallyReportErrors).then(this::finish).build();
+        return 0L;
+    }
+
+    /**
+     * Launch payer and payee Tx's for every transfer. These might fail for
+     * business reasons, e.g. no money
+     */
+    private void launchTransactions(ClientResponse[] unused) {
+
+        int callIdx = 0;
+
+        for (int t = 0; t < payerIds.length; t++) {
+
+            long payerAmount = 0;
+            firstCall[t] = callIdx;
+
+            for (int i = firstPayee[t]; i < firstPayee[t] + payeeCounts[t]; i++) {
+                payerAmount -= amounts[i];
+                queueProcedureCall("StartTransactionPayee", payeeIds[i], payerIds[t], amounts[i], txnIds[t],
+                        effectiveDate);
+            }
+
+            queueProcedureCall("StartTransactionPayer", payerIds[t], payerAmount, txnIds[t], effectiveDate,
+                    (int) payeeCounts[t] + 1);
+
+            callIdx += payeeCounts[t] + 1;
+        }
+
+    }
+
+    /**
+     * Mark the payer as PAYERDONE for every transfer whose payer and payees all
+     * started.
+     */
+    private void markPayerDone(ClientResponse[] resp) {
+
+        int callIdx = 0;
+
+        for (int t = 0; t < payerIds.length; t++) {
+
+            if (hasNoErrors(t, resp, StartTransactionPayer.PENDING_CODE, (int) payeeCounts[t] + 1,
+                    StartTransactionPayer.CANTSTART)) {
+                queueProcedureCall("SetPayerDone", payerIds[t], txnIds[t], StartTransactionPayer.PAYERDONE_MESSAGE);
+                firstCall[t] = callIdx++;
+            }
+        }
+
+    }
+
+    /**
+     * Set everyone to DONE for every transfer whose payer is PAYERDONE. Note that
+     * even if we stop executing at this point a task will do this for us if we
+     * don't.
+     */
+    private void finishPayees(ClientResponse[] resp) {
+
+        int callIdx = 0;
+
+        for (int t = 0; t < payerIds.length; t++) {
+
+            if (hasNoErrors(t, resp, StartTransactionPayer.PAYERDONE_CODE, 1, StartTransactionPayer.CANTSTART)) {
+
+                for (int i = firstPayee[t]; i < firstPayee[t] + payeeCounts[t]; i++) {
+                    queueProcedureCall("SetTransactionEntryDone", payeeIds[i], txnIds[t]);
+                }
+
+                queueProcedureCall("SetTransactionEntryDone", payerIds[t], txnIds[t]);
+
+                firstCall[t] = callIdx;
+                callIdx += payeeCounts[t] + 1;
+            }
+        }
+
+    }
+
+    /**
+     * Try to clean up every transfer we've broken, with one call per partition
+     * its participants live in. Note that a task will do this even if we don't.
+     */
+    private void optionallyReportErrors(ClientResponse[] resp) {
+
+        for (int t = 0; t < payerIds.length; t++) {
+
+            if (!hasNoErrors(t, resp, StartTransactionPayer.DONE_CODE, (int) payeeCounts[t] + 1,
+                    StartTransactionPayer.CANTFINISH)) {
+
+                long[] participants = Arrays.copyOfRange(payeeIds, firstPayee[t],
+                        firstPayee[t] + (int) payeeCounts[t] + 1);
+                participants[(int) payeeCounts[t]] = payerIds[t];
+
+                final String explanation = transferToString(t);
+
+                for (int[] participantGroup : CompoundPayment.groupByPartition(participants,
+                        CompoundPayment.MAX_USERS_PER_CALL)) {
+
+                    long[] groupParticipants = new long[participantGroup.length];
+
+                    for (int i = 0; i < participantGroup.length; i++) {
+                        groupParticipants[i] = participants[participantGroup[i]];
+                    }
+
+                    queueProcedureCall("EndTransactionEntries", groupParticipants[0], groupParticipants, txnIds[t],
+                            transferStatus[t], explanation);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Ignore resp - not much we can do now. Return a row per transfer.
+     */
+    private void finish(ClientResponse[] resp) {
+
+        VoltTable results = new VoltTable(new VoltTable.ColumnInfo("transaction_id", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("payer_id", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("status_code", VoltType.TINYINT),
+                new VoltTable.ColumnInfo("status", VoltType.STRING));
+
+        byte returnStatusByte = StartTransactionPayer.DONE_CODE;
+        String returnAppStatus = StartTransactionPayer.DONE_MESSAGE;
+
+        for (int t = 0; t < payerIds.length; t++) {
+
+            if (errorList[t].length() > 0) {
+
+                results.addRow(txnIds[t], payerIds[t], transferStatusByte[t], errorList[t].toString());
+
+                if (returnStatusByte == StartTransactionPayer.DONE_CODE) {
+                    returnStatusByte = transferStatusByte[t];
+                    returnAppStatus = transferStatus[t];
+                }
+
+            } else {
+                results.addRow(txnIds[t], payerIds[t], transferStatusByte[t], transferStatus[t]);
+            }
+        }
+
+        this.setAppStatusCode(returnStatusByte);
+        this.setAppStatusString(returnAppStatus);
+
+        completeProcedure(results);
+
+    }
+
+    /**
+     * Check the responses belonging to transfer t. Transfers that have already
+     * failed are skipped and stay failed.
+     */
+    private boolean hasNoErrors(int t, ClientResponse[] resp, byte okCode, int expectedResponses,
+            String errorStatus) {
+
+        if (firstCall[t] < 0) {
+            return false;
+        }
+
+        final int first = firstCall[t];
+        firstCall[t] = -1;
+
+        if (first + expectedResponses > resp.length) {
+            errorList[t].append("Quantity Error: got " + resp.length + ", expected at least "
+                    + (first + expectedResponses));
+        } else {
+
+            for (int i = first; i < first + expectedResponses; i++) {
+
+                if (resp[i].getStatus() != ClientResponse.SUCCESS) {
+                    transferStatusByte[t] = resp[i].getStatus();
+                    errorList[t].append("DB Error ");
+                    errorList[t].append(i - first);
+                    errorList[t].append(' ');
+                    errorList[t].append(transferStatusByte[t]);
+                    errorList[t].append(':');
+                    errorList[t].append(resp[i].getStatusString());
+                    errorList[t].append(':');
+                } else if (resp[i].getAppStatus() != okCode) {
+                    transferStatusByte[t] = resp[i].getAppStatus();
+                    errorList[t].append("App Error ");
+                    errorList[t].append(i - first);
+                    errorList[t].append(' ');
+                    errorList[t].append(transferStatusByte[t]);
+                    errorList[t].append(':');
+                    errorList[t].append(resp[i].getAppStatusString());
+                    errorList[t].append(':');
+                }
+            }
+        }
+
+        if (errorList[t].length() > 0) {
+            transferStatus[t] = errorStatus;
+            LOG.error(transferToString(t));
+            return false;
+        }
+
+        firstCall[t] = first;
+        return true;
+
+    }
+
+    private String transferToString(int t) {
+        final int lastPayee = firstPayee[t] + (int) payeeCounts[t];
+        StringBuilder builder = new StringBuilder();
+        builder.append("CompoundPaymentBatch [payerId=");
+        builder.append(payerIds[t]);
+        builder.append(", txnId=");
+        builder.append(txnIds[t]);
+        builder.append(", payeeId=");
+        builder.append(Arrays.toString(Arrays.copyOfRange(payeeIds, firstPayee[t], lastPayee)));
+        builder.append(", amounts=");
+        builder.append(Arrays.toString(Arrays.copyOfRange(amounts, firstPayee[t], lastPayee)));
+        builder.append(", effectiveDate=");
+        builder.append(effectiveDate);
+        builder.append(", errorList=");
+        builder.append(errorList[t]);
+        builder.append(", returnAppStatus=");
+        builder.append(transferStatus[t]);
+        builder.append(", statusByte=");
+        builder.append(transferStatusByte[t]);
+        builder.append("]");
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,533 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package nwayprocedures;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.voltcore.logging.VoltLogger;
+import org.voltdb.VoltCompoundProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.client.ClientResponse;
+
+/**
+ * Runs several independent CompoundPayments in one invocation, using the same
+ * protocol as CompoundPayment: a settlement header claims each txnId,
+ * co-located transfers go through SettleLocalPayment, and once a payer is
+ * PAYERDONE its transfer finishes. Transfer i is paid by payerIds[i] and has
+ * payeeCounts[i] payees, which are the next payeeCounts[i] entries of
+ * payeeIds and amounts.
+ * <p>
+ * Each stage queues the calls for every transfer that is still alive, so the
+ * whole group costs the client one round trip and the same number of stages
+ * as a single payment. SettlementRouter sends groups whose payers share a
+ * partition to that partition's leader. No transfer may have more than
+ * MAX_PAYEES_PER_TRANSFER payees, and the group's getCallBudget total may not
+ * be more than CompoundPayment.MAX_CALLS_PER_STAGE. Returns one row per
+ * transfer.
+ */
+public class CompoundPaymentGroup extends VoltCompoundProcedure {
+
+    /**
+     * Most payees one transfer can have.
+     */
+    public static final int MAX_PAYEES_PER_TRANSFER = 9;
+
+    public static final String GROUP_TOO_BIG_MESSAGE = "Transfers need more than "
+            + CompoundPayment.MAX_CALLS_PER_STAGE + " calls per stage";
+
+    static VoltLogger LOG = new VoltLogger("CompoundPaymentGroup");
+
+    long[] payerIds, txnIds, payeeCounts, payeeIds, amounts;
+    Date effectiveDate;
+
+    // Where each transfer's payees start in payeeIds/amounts
+    int[] firstPayee;
+
+    // Each transfer's payees, and then payees plus payer, grouped by partition
+    long[][] participants;
+    ArrayList<ArrayList<int[]>> payeeGroups, participantGroups;
+
+    // Where each transfer's calls start in the current stage's responses, or
+    // -1 if the transfer has nothing in this stage, and how many it queued
+    int[] firstCall, callCount;
+
+    // Whether each transfer has a header we need to finish, and whether its
+    // payer got to PAYERDONE
+    boolean[] claimed, payerDone;
+
+    byte[] transferStatusByte;
+    String[] transferStatus;
+    StringBuffer[] errorList;
+
+    /**
+     * @param payeeCount
+     * @return the most calls a transfer with payeeCount payees can queue in
+     *         one stage. Cleaning up is the worst case: one call per
+     *         participant plus one for the header.
+     */
+    public static int getCallBudget(int payeeCount) {
+        return payeeCount + 2;
+    }
+
+    public long run(long[] payerIds, long[] txnIds, long[] payeeCounts, long[] payeeIds, long[] amounts,
+            Date effectiveDate) {
+
+        // Save inputs
+        this.payerIds = payerIds;
+        this.txnIds = txnIds;
+        this.payeeCounts = payeeCounts;
+        this.payeeIds = payeeIds;
+        this.amounts = amounts;
+        this.effectiveDate = effectiveDate;
+
+        if (payerIds == null || txnIds == null || payeeCounts == null || payeeIds == null || amounts == null
+                || effectiveDate == null) {
+            LOG.error(StartTransactionPayer.PARAMETER_NULL_MESSAGE);
+            this.setAppStatusCode(StartTransactionPayer.PARAMETER_NULL_CODE);
+            this.setAppStatusString(StartTransactionPayer.PARAMETER_NULL_MESSAGE);
+            abortProcedure(StartTransactionPayer.PARAMETER_NULL_MESSAGE);
+        }
+
+        long payeeTotal = 0;
+        long callTotal = 0;
+
+        for (long payeeCount : payeeCounts) {
+
+            if (payeeCount < 0) {
+                LOG.error(StartTransactionPayer.PAYEE_LIST_MISMATCH_MESSAGE);
+                this.setAppStatusCode(StartTransactionPayer.PAYEE_LIST_MISMATCH_CODE);
+                this.setAppStatusString(StartTransactionPayer.PAYEE_LIST_MISMATCH_MESSAGE);
+                abortProcedure(StartTransactionPayer.PAYEE_LIST_MISMATCH_MESSAGE);
+            }
+
+            if (payeeCount > MAX_PAYEES_PER_TRANSFER) {
+                LOG.error(StartTransactionPayer.BATCH_PAYEE_LIST_TOOLONG_MESSAGE);
+                this.setAppStatusCode(StartTransactionPayer.PAYEE_LIST_TOOLONG_CODE);
+                this.setAppStatusString(StartTransactionPayer.BATCH_PAYEE_LIST_TOOLONG_MESSAGE);
+                abortProcedure(StartTransactionPayer.BATCH_PAYEE_LIST_TOOLONG_MESSAGE);
+            }
+
+            payeeTotal += payeeCount;
+            callTotal += getCallBudget((int) payeeCount);
+        }
+
+        if (txnIds.length != payerIds.length || payeeCounts.length != payerIds.length
+                || amounts.length != payeeIds.length || payeeTotal != payeeIds.length) {
+            LOG.error(StartTransactionPayer.PAYEE_LIST_MISMATCH_MESSAGE);
+            this.setAppStatusCode(StartTransactionPayer.PAYEE_LIST_MISMATCH_CODE);
+            this.setAppStatusString(StartTransactionPayer.PAYEE_LIST_MISMATCH_MESSAGE);
+            abortProcedure(StartTransactionPayer.PAYEE_LIST_MISMATCH_MESSAGE);
+        }
+
+        if (callTotal > CompoundPayment.MAX_CALLS_PER_STAGE) {
+            LOG.error(GROUP_TOO_BIG_MESSAGE);
+            this.setAppStatusCode(StartTransactionPayer.TRANSFER_LIST_TOOLONG_CODE);
+            this.setAppStatusString(GROUP_TOO_BIG_MESSAGE);
+            abortProcedure(GROUP_TOO_BIG_MESSAGE);
+        }
+
+        firstPayee = new int[payerIds.length];
+        participants = new long[payerIds.length][];
+        payeeGroups = new ArrayList<>(payerIds.length);
+        participantGroups = new ArrayList<>(payerIds.length);
+        firstCall = new int[payerIds.length];
+        callCount = new int[payerIds.length];
+        claimed = new boolean[payerIds.length];
+        payerDone = new boolean[payerIds.length];
+        transferStatusByte = new byte[payerIds.length];
+        transferStatus = new String[payerIds.length];
+        errorList = new StringBuffer[payerIds.length];
+
+        int payeeIdx = 0;
+
+        for (int t = 0; t < payerIds.length; t++) {
+
+            firstPayee[t] = payeeIdx;
+            payeeIdx += payeeCounts[t];
+
+            // Payees and then the payer, as in CompoundPayment
+            participants[t] = Arrays.copyOfRange(payeeIds, firstPayee[t], payeeIdx + 1);
+            participants[t][(int) payeeCounts[t]] = payerIds[t];
+
+            payeeGroups.add(CompoundPayment.groupByPartition(getPayees(t), CompoundPayment.MAX_USERS_PER_CALL));
+            participantGroups
+                    .add(CompoundPayment.groupByPartition(participants[t], CompoundPayment.MAX_USERS_PER_CALL));
+
+            firstCall[t] = -1;
+            transferStatusByte[t] = StartTransactionPayer.DONE_CODE;
+            transferStatus[t] = StartTransactionPayer.DONE_MESSAGE;
+            errorList[t] = new StringBuffer();
+        }
+
+        // Build stages
+        newStageList(this::claimTransactions).then(this::launchTransactions).then(this::markPayerDone)
+                .then(this::finishPayees).then(this::optionallyReportErrors).then(this::finish).build();
+        return 0L;
+    }
+
+    /**
+     * Claim each transfer's txnId by creating its settlement header, or settle
+     * it in one call if everyone is in the payer's partition. Transfers that
+     * fail CompoundPayment's own checks don't get any further.
+     */
+    private void claimTransactions(ClientResponse[] unused) {
+
+        int callIdx = 0;
+
+        for (int t = 0; t < payerIds.length; t++) {
+
+            final long[] transferPayees = getPayees(t);
+            final long[] transferAmounts = getAmounts(t);
+
+            if (StartTransactionPayer.hasDuplicateParticipants(payerIds[t], transferPayees)) {
+                transferStatusByte[t] = StartTransactionPayer.DUPLICATE_PARTICIPANT_CODE;
+                transferStatus[t] = StartTransactionPayer.DUPLICATE_PARTICIPANT_MESSAGE;
+                continue;
+            }
+
+            if (SettleLocalPayment.isColocated(payerIds[t], transferPayees)) {
+                queueProcedureCall("SettleLocalPayment", payerIds[t], txnIds[t], transferPayees, transferAmounts,
+                        effectiveDate);
+            } else {
+
+                long netAmount = 0;
+
+                for (long amount : transferAmounts) {
+                    netAmount += amount;
+                }
+
+                queueProcedureCall("StartSettlementHeader", txnIds[t], payerIds[t], participants[t], netAmount);
+            }
+
+            firstCall[t] = callIdx;
+            callCount[t] = 1;
+            callIdx++;
+        }
+    }
+
+    /**
+     * Launch payer and payee Tx's for every transfer we claimed. These might
+     * fail for business reasons, e.g. no money. Co-located transfers and
+     * resubmissions are finished by now.
+     */
+    private void launchTransactions(ClientResponse[] resp) {
+
+        int callIdx = 0;
+
+        for (int t = 0; t < payerIds.length; t++) {
+
+            if (firstCall[t] < 0) {
+                continue;
+            }
+
+            final ClientResponse claimResponse = resp[firstCall[t]];
+
+            if (claimResponse.getStatus() == ClientResponse.SUCCESS
+                    && claimResponse.getAppStatus() == StartTransactionPayer.ALREADY_SUBMITTED_CODE) {
+
+                // A retry of a transfer that worked looks like it worked
+                transferStatusByte[t] = StartTransactionPayer.getResubmissionCode(claimResponse.getAppStatusString());
+                transferStatus[t] = claimResponse.getAppStatusString();
+                firstCall[t] = -1;
+                continue;
+            }
+
+            if (SettleLocalPayment.isColocated(payerIds[t], getPayees(t))) {
+                hasNoErrors(t, resp, StartTransactionPayer.DONE_CODE, StartTransactionPayer.CANTSTART);
+                firstCall[t] = -1;
+                continue;
+            }
+
+            if (!hasNoErrors(t, resp, StartTransactionPayer.PENDING_CODE, StartTransactionPayer.CANTSTART)) {
+                // We never claimed txnId, so there's nothing of ours to clean up
+                continue;
+            }
+
+            claimed[t] = true;
+
+            long payerAmount = 0;
+
+            for (long amount : getAmounts(t)) {
+                payerAmount -= amount;
+            }
+
+            queueProcedureCall("StartTransactionPayer", payerIds[t], payerAmount, txnIds[t], effectiveDate,
+                    (int) payeeCounts[t] + 1);
+
+            for (int[] payeeGroup : payeeGroups.get(t)) {
+
+                long[] groupPayees = new long[payeeGroup.length];
+                long[] groupAmounts = new long[payeeGroup.length];
+
+                for (int i = 0; i < payeeGroup.length; i++) {
+                    groupPayees[i] = payeeIds[firstPayee[t] + payeeGroup[i]];
+                    groupAmounts[i] = amounts[firstPayee[t] + payeeGroup[i]];
+                }
+
+                queueProcedureCall("StartTransactionPayees", groupPayees[0], groupPayees, payerIds[t], groupAmounts,
+                        txnIds[t], effectiveDate);
+            }
+
+            firstCall[t] = callIdx;
+            callCount[t] = payeeGroups.get(t).size() + 1;
+            callIdx += callCount[t];
+        }
+    }
+
+    /**
+     * Mark the payer and header as PAYERDONE for every transfer whose payer
+     * and payees all started.
+     */
+    private void markPayerDone(ClientResponse[] resp) {
+
+        int callIdx = 0;
+
+        for (int t = 0; t < payerIds.length; t++) {
+
+            if (hasNoErrors(t, resp, StartTransactionPayer.PENDING_CODE, StartTransactionPayer.CANTSTART)) {
+                queueProcedureCall("SetPayerDone", payerIds[t], txnIds[t], StartTransactionPayer.PAYERDONE_MESSAGE);
+                queueProcedureCall("SetSettlementHeaderStatus", txnIds[t], StartTransactionPayer.PAYERDONE_MESSAGE,
+                        null);
+                firstCall[t] = callIdx;
+                callCount[t] = 2;
+                callIdx += 2;
+            }
+        }
+
+    }
+
+    /**
+     * Set everyone to DONE for every transfer whose payer is PAYERDONE, one
+     * call per partition group. Note that even if we stop executing at this
+     * point a task will do this for us if we don't.
+     */
+    private void finishPayees(ClientResponse[] resp) {
+
+        int callIdx = 0;
+
+        for (int t = 0; t < payerIds.length; t++) {
+
+            if (firstCall[t] >= 0 && firstCall[t] + 1 < resp.length) {
+
+                final ClientResponse payerResponse = resp[firstCall[t]];
+
+                payerDone[t] = payerResponse.getStatus() == ClientResponse.SUCCESS
+                        && payerResponse.getAppStatus() == StartTransactionPayer.PAYERDONE_CODE;
+
+                // ResolveSettlement may have got to the header first. If it
+                // finished it as DONE, so can we.
+                if (CompoundPayment.isHeaderDone(resp[firstCall[t] + 1])) {
+                    callCount[t] = 1;
+                }
+            }
+
+            if (hasNoErrors(t, resp, StartTransactionPayer.PAYERDONE_CODE, StartTransactionPayer.CANTSTART)) {
+
+                for (int[] participantGroup : participantGroups.get(t)) {
+                    long[] groupParticipants = getGroupParticipants(t, participantGroup);
+                    queueProcedureCall("SetTransactionEntriesDone", groupParticipants[0], groupParticipants,
+                            txnIds[t]);
+                }
+
+                firstCall[t] = callIdx;
+                callCount[t] = participantGroups.get(t).size();
+                callIdx += callCount[t];
+            }
+        }
+
+    }
+
+    /**
+     * Mark the header DONE for every transfer that finished, and try to clean
+     * up every transfer we claimed and then broke, with one call per
+     * partition group plus one for the header. If the payer got to PAYERDONE
+     * cleaning up means finishing, as in CompoundPayment. Note that a task
+     * will do this even if we don't.
+     */
+    private void optionallyReportErrors(ClientResponse[] resp) {
+
+        for (int t = 0; t < payerIds.length; t++) {
+
+            if (!claimed[t]) {
+                continue;
+            }
+
+            if (hasNoErrors(t, resp, StartTransactionPayer.DONE_CODE, StartTransactionPayer.CANTFINISH)) {
+                queueProcedureCall("SetSettlementHeaderStatus", txnIds[t], StartTransactionPayer.DONE_MESSAGE, null);
+                continue;
+            }
+
+            final String explanation = transferToString(t);
+
+            if (payerDone[t]) {
+                // The transfer went through, so that's what we report. What
+                // went wrong is in the log and transaction_fixes.
+                errorList[t].setLength(0);
+                transferStatusByte[t] = StartTransactionPayer.DONE_CODE;
+                transferStatus[t] = StartTransactionPayer.DONE_MESSAGE;
+            }
+
+            for (int[] participantGroup : participantGroups.get(t)) {
+                long[] groupParticipants = getGroupParticipants(t, participantGroup);
+                queueProcedureCall("EndTransactionEntries", groupParticipants[0], groupParticipants, txnIds[t],
+                        transferStatus[t], explanation);
+            }
+
+            queueProcedureCall("SetSettlementHeaderStatus", txnIds[t], transferStatus[t], explanation);
+        }
+
+    }
+
+    /**
+     * Ignore resp - not much we can do now. Return a row per transfer.
+     */
+    private void finish(ClientResponse[] resp) {
+
+        VoltTable results = new VoltTable(new VoltTable.ColumnInfo("transaction_id", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("payer_id", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("status_code", VoltType.TINYINT),
+                new VoltTable.ColumnInfo("status", VoltType.STRING));
+
+        byte returnStatusByte = StartTransactionPayer.DONE_CODE;
+        String returnAppStatus = StartTransactionPayer.DONE_MESSAGE;
+
+        for (int t = 0; t < payerIds.length; t++) {
+
+            if (errorList[t].length() > 0) {
+                results.addRow(txnIds[t], payerIds[t], transferStatusByte[t], errorList[t].toString());
+            } else {
+                results.addRow(txnIds[t], payerIds[t], transferStatusByte[t], transferStatus[t]);
+            }
+
+            if (returnStatusByte == StartTransactionPayer.DONE_CODE
+                    && transferStatusByte[t] != StartTransactionPayer.DONE_CODE) {
+                returnStatusByte = transferStatusByte[t];
+                returnAppStatus = transferStatus[t];
+            }
+        }
+
+        this.setAppStatusCode(returnStatusByte);
+        this.setAppStatusString(returnAppStatus);
+
+        completeProcedure(results);
+
+    }
+
+    private long[] getPayees(int t) {
+        return Arrays.copyOfRange(payeeIds, firstPayee[t], firstPayee[t] + (int) payeeCounts[t]);
+    }
+
+    private long[] getAmounts(int t) {
+        return Arrays.copyOfRange(amounts, firstPayee[t], firstPayee[t] + (int) payeeCounts[t]);
+    }
+
+    /**
+     * @param t
+     * @param participantGroup positions in participants[t]
+     * @return the userids in participantGroup
+     */
+    private long[] getGroupParticipants(int t, int[] participantGroup) {
+
+        long[] groupParticipants = new long[participantGroup.length];
+
+        for (int i = 0; i < participantGroup.length; i++) {
+            groupParticipants[i] = participants[t][participantGroup[i]];
+        }
+
+        return groupParticipants;
+    }
+
+    /**
+     * Check the responses belonging to transfer t. Transfers that have already
+     * failed, or have nothing in this stage, are skipped and return false.
+     */
+    private boolean hasNoErrors(int t, ClientResponse[] resp, byte okCode, String errorStatus) {
+
+        if (firstCall[t] < 0 || errorList[t].length() > 0) {
+            firstCall[t] = -1;
+            return false;
+        }
+
+        final int first = firstCall[t];
+        firstCall[t] = -1;
+
+        if (first + callCount[t] > resp.length) {
+            errorList[t].append("Quantity Error: got " + resp.length + ", expected at least "
+                    + (first + callCount[t]));
+        } else {
+
+            for (int i = first; i < first + callCount[t]; i++) {
+
+                if (resp[i].getStatus() != ClientResponse.SUCCESS) {
+                    transferStatusByte[t] = resp[i].getStatus();
+                    errorList[t].append("DB Error ");
+                    errorList[t].append(i - first);
+                    errorList[t].append(' ');
+                    errorList[t].append(transferStatusByte[t]);
+                    errorList[t].append(':');
+                    errorList[t].append(resp[i].getStatusString());
+                    errorList[t].append(':');
+                } else if (resp[i].getAppStatus() != okCode) {
+                    transferStatusByte[t] = resp[i].getAppStatus();
+                    errorList[t].append("App Error ");
+                    errorList[t].append(i - first);
+                    errorList[t].append(' ');
+                    errorList[t].append(transferStatusByte[t]);
+                    errorList[t].append(':');
+                    errorList[t].append(resp[i].getAppStatusString());
+                    errorList[t].append(':');
+                }
+            }
+        }
+
+        if (errorList[t].length() > 0) {
+            transferStatus[t] = errorStatus;
+            LOG.error(transferToString(t));
+            return false;
+        }
+
+        firstCall[t] = first;
+        return true;
+
+    }
+
+    /**
+     * Goes in cleanup calls and the log, so it's kept to what fits in
+     * tran_status_explanation.
+     */
+    private String transferToString(int t) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("CompoundPaymentGroup [payerId=");
+        builder.append(payerIds[t]);
+        builder.append(", txnId=");
+        builder.append(txnIds[t]);
+        builder.append(", payeeId=");
+        builder.append(Arrays.toString(getPayees(t)));
+        builder.append(", amounts=");
+        builder.append(Arrays.toString(getAmounts(t)));
+        builder.append(", effectiveDate=");
+        builder.append(effectiveDate);
+        builder.append(", errorList=");
+        builder.append(errorList[t]);
+        builder.append(", returnAppStatus=");
+        builder.append(transferStatus[t]);
+        builder.append(", statusByte=");
+        builder.append(transferStatusByte[t]);
+        builder.append("]");
+
+        if (builder.length() > EndTransactionEntries.MAX_EXPLANATION_LENGTH) {
+            builder.setLength(EndTransactionEntries.MAX_EXPLANATION_LENGTH);
+        }
+
+        return builder.toString();
+    }
+
+}
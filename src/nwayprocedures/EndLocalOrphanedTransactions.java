@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package nwayprocedures;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.voltcore.logging.VoltLogger;
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Directed procedure that ends orphaned transactions whose participants all
+ * live in this partition. Run by EndLocalOrphanedTransactionsTask on every
+ * partition. Anything that needs rows from other partitions is counted as
+ * escalated and left for EndOrphanedTransactions, which runs far less often.
+ * <p>
+ * transaction_failures and transaction_fixes are partitioned on
+ * Transaction_id, which usually hashes somewhere else, so we report to
+ * local_transaction_failures and local_transaction_fixes instead. They're
+ * partitioned on userid, and we use one of the transaction's local userids.
+ */
+public class EndLocalOrphanedTransactions extends VoltProcedure {
+
+    public static final SQLStmt getOrphanedTransactions = new SQLStmt(
+            "SELECT Transaction_id, userid, insert_date " + "FROM user_transactions t "
+                    + "WHERE tran_status = ? AND stale_date <= ? " + "ORDER BY stale_date LIMIT ?; ");
+
+    public static final SQLStmt getLocalTransactionStatus = new SQLStmt(
+            "SELECT * FROM transaction_changes WHERE Transaction_id IN ? ; ");
+
+    public static final SQLStmt finishTransaction = new SQLStmt(
+            "UPDATE user_transactions SET tran_status = 'DONE', tran_status_explanation = ?, "
+                    + "done_date = NOW, queue_date = null "
+                    + "WHERE  Transaction_id = ? AND tran_status IN ('PENDING','PAYERDONE');");
+
+    public static final SQLStmt cancelTransaction = new SQLStmt(
+            "UPDATE user_transactions SET tran_status = 'FAILED', tran_status_explanation = ?, "
+                    + "done_date = NOW, queue_date = null, user_count = null "
+                    + "WHERE Transaction_id = ? AND tran_status IN ('PENDING','PAYERDONE');");
+
+    public static final SQLStmt reportFailures = new SQLStmt(
+            "INSERT INTO local_transaction_failures(userid,Transaction_id,Effective_date,tran_status,desc) VALUES (?,?,?,?,?);");
+
+    public static final SQLStmt reportFixes = new SQLStmt(
+            "INSERT INTO local_transaction_fixes(userid,Transaction_id,Effective_date,tran_status,desc) VALUES (?,?,?,?,?);");
+
+    public static final SQLStmt getPartitionKey = new SQLStmt(
+            "SELECT MIN(userid) partition_key FROM user_balances;");
+
+    public static final SQLStmt upsertStat = new SQLStmt(
+            "UPSERT INTO promBL_partition_stats (partition_key, statname, stathelp, event_type, event_name, statvalue,lastdate) VALUES (?,?,?,?,?,?,NOW);");
+
+    private static final int RANDOM_STAT_INTERVAL = 50;
+
+    static VoltLogger LOG = new VoltLogger("EndLocalOrphanedTransactions");
+
+    Random r;
+
+    // A local userid for each orphan, for reporting
+    HashMap<Long, Long> orphanUserIds = new HashMap<>();
+
+    public VoltTable[] run(long tranCount, long minTranAgeMs) throws VoltAbortException {
+
+        if (r == null) {
+            r = this.getSeededRandomNumberGenerator();
+        }
+
+        orphanUserIds.clear();
+
+        // Same cutoff rules as EndOrphanedTransactions
+        final Date cutoffDate = StartTransactionPayer.getStaleCutoff(getTransactionTime(), minTranAgeMs);
+
+        voltQueueSQL(getOrphanedTransactions, StartTransactionPayer.PAYERDONE_MESSAGE, cutoffDate, tranCount);
+        voltQueueSQL(getOrphanedTransactions, StartTransactionPayer.PENDING_MESSAGE, cutoffDate, tranCount);
+        voltQueueSQL(getPartitionKey);
+        VoltTable[] orphanResults = voltExecuteSQL();
+
+        LinkedHashMap<Long, TimestampType> payerdoneOrphans = getOrphans(orphanResults[0]);
+        LinkedHashMap<Long, TimestampType> pendingOrphans = getOrphans(orphanResults[1]);
+
+        // A PAYERDONE transaction shows up in both lists if a payee is still
+        // PENDING. It's only stale if the payer never got that far.
+        for (Long txId : payerdoneOrphans.keySet()) {
+            pendingOrphans.remove(txId);
+        }
+
+        HashMap<Long, Boolean> localVerdicts = getLocalVerdicts(payerdoneOrphans, pendingOrphans);
+
+        int finishedTxCount = 0;
+        int cancelledTxCount = 0;
+        int escalatedTxCount = 0;
+
+        for (Entry<Long, TimestampType> orphan : payerdoneOrphans.entrySet()) {
+
+            final long txId = orphan.getKey();
+            final Boolean safe = localVerdicts.get(txId);
+
+            if (safe == null) {
+                escalatedTxCount++;
+            } else if (safe) {
+                voltQueueSQL(finishTransaction, "Completed by EndLocalOrphanedTransactions", txId);
+                voltQueueSQL(reportFixes, orphanUserIds.get(txId), txId, this.getTransactionTime(), "DONE",
+                        "PAYERDONE, Completed by EndLocalOrphanedTransactions");
+                finishedTxCount++;
+            } else {
+                voltQueueSQL(cancelTransaction, "Cancelled by EndLocalOrphanedTransactions", txId);
+                voltQueueSQL(reportFailures, orphanUserIds.get(txId), txId, this.getTransactionTime(), StartTransactionPayer.STALE,
+                        "PAYERDONE, Cancelled by EndLocalOrphanedTransactions. Started at "
+                                + orphan.getValue().toString());
+                cancelledTxCount++;
+            }
+        }
+
+        for (Entry<Long, TimestampType> orphan : pendingOrphans.entrySet()) {
+
+            final long txId = orphan.getKey();
+
+            if (localVerdicts.get(txId) == null) {
+                escalatedTxCount++;
+            } else {
+                voltQueueSQL(cancelTransaction, "Cancelled by EndLocalOrphanedTransactions", txId);
+                voltQueueSQL(reportFailures, orphanUserIds.get(txId), txId, this.getTransactionTime(), StartTransactionPayer.STALE,
+                        "PENDING, Cancelled by EndLocalOrphanedTransactions. Started at "
+                                + orphan.getValue().toString());
+                cancelledTxCount++;
+            }
+        }
+
+        orphanResults[2].advanceRow();
+        final long partitionKey = orphanResults[2].getLong("partition_key");
+
+        if (!orphanResults[2].wasNull() && (payerdoneOrphans.size() + pendingOrphans.size() > 0
+                || r.nextInt(RANDOM_STAT_INTERVAL) == 0)) {
+
+            voltQueueSQL(upsertStat, partitionKey, "EndLocalTransactions", "EndLocalTransactions",
+                    "internalmeasurement", "localFinishedTxs", finishedTxCount);
+            voltQueueSQL(upsertStat, partitionKey, "EndLocalTransactions", "EndLocalTransactions",
+                    "internalmeasurement", "localCancelledTxs", cancelledTxCount);
+            voltQueueSQL(upsertStat, partitionKey, "EndLocalTransactions", "EndLocalTransactions",
+                    "internalmeasurement", "escalatedTxs", escalatedTxCount);
+        }
+
+        return voltExecuteSQL(true);
+
+    }
+
+    private LinkedHashMap<Long, TimestampType> getOrphans(VoltTable orphanRecords) {
+
+        LinkedHashMap<Long, TimestampType> orphans = new LinkedHashMap<>();
+
+        while (orphanRecords.advanceRow()) {
+            final long txId = orphanRecords.getLong("Transaction_id");
+
+            if (!orphans.containsKey(txId)) {
+                orphans.put(txId, orphanRecords.getTimestampAsTimestamp("insert_date"));
+                orphanUserIds.put(txId, orphanRecords.getLong("userid"));
+            }
+        }
+
+        return orphans;
+    }
+
+    /**
+     * transaction_changes only sees this partition's rows, so a transaction is
+     * entirely local if the payer's row is here and so are all the participants
+     * it expects.
+     *
+     * @return for each transaction we can decide on our own, whether its
+     *         amounts add up to zero. Transactions that need a global verdict
+     *         are left out.
+     */
+    private HashMap<Long, Boolean> getLocalVerdicts(LinkedHashMap<Long, TimestampType> payerdoneOrphans,
+            LinkedHashMap<Long, TimestampType> pendingOrphans) {
+
+        HashMap<Long, Boolean> verdicts = new HashMap<>();
+
+        long[] txIds = new long[payerdoneOrphans.size() + pendingOrphans.size()];
+        int i = 0;
+
+        for (Long txId : payerdoneOrphans.keySet()) {
+            txIds[i++] = txId;
+        }
+
+        for (Long txId : pendingOrphans.keySet()) {
+            txIds[i++] = txId;
+        }
+
+        if (txIds.length == 0) {
+            return verdicts;
+        }
+
+        voltQueueSQL(getLocalTransactionStatus, txIds);
+        VoltTable localStatus = voltExecuteSQL()[0];
+
+        while (localStatus.advanceRow()) {
+
+            final long plannedParticipants = localStatus.getLong("planned_participants");
+
+            if (!localStatus.wasNull() && plannedParticipants == localStatus.getLong("actual_participants")) {
+                verdicts.put(localStatus.getLong("Transaction_id"), localStatus.getLong("net_tran_amount") == 0);
+            }
+        }
+
+        return verdicts;
+    }
+
+}
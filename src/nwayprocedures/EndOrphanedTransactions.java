@@ -8,12 +8,17 @@
 package nwayprocedures;
 
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
 import java.util.Random;
+import java.util.Set;
 
 import org.voltcore.logging.VoltLogger;
 import org.voltdb.SQLStmt;
 import org.voltdb.VoltProcedure;
 import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
 import org.voltdb.types.TimestampType;
 
 /**
@@ -23,10 +28,11 @@ public class EndOrphanedTransactions extends VoltProcedure {
 
     public static final SQLStmt getPayerdoneTransactions = new SQLStmt(
             "SELECT userid, Transaction_id, insert_date " + "FROM user_transactions t "
-                    + "WHERE tran_status = 'PAYERDONE'  " + "ORDER BY insert_date, Transaction_id, userid LIMIT ?; ");
+                    + "WHERE tran_status = 'PAYERDONE' AND stale_date <= ? "
+                    + "ORDER BY stale_date, Transaction_id, userid LIMIT ?; ");
 
     public static final SQLStmt getPayerdoneTransactionStatus = new SQLStmt(
-            "SELECT * FROM transaction_changes WHERE Transaction_id = ? ; ");
+            "SELECT * FROM transaction_changes WHERE Transaction_id IN ? ; ");
 
     public static final SQLStmt finishTransaction = new SQLStmt(
             "UPDATE user_transactions SET tran_status = 'DONE', tran_status_explanation = ?, "
@@ -35,7 +41,8 @@ public class EndOrphanedTransactions extends VoltProcedure {
 
     public static final SQLStmt getStalePendingTransactions = new SQLStmt(
             "SELECT userid, Transaction_id, effective_date, insert_date " + "FROM user_transactions t "
-                    + "WHERE tran_status = 'PENDING' " + "ORDER BY insert_date, Transaction_id, userid LIMIT ?; ");
+                    + "WHERE tran_status = 'PENDING' AND stale_date <= ? "
+                    + "ORDER BY stale_date, Transaction_id, userid LIMIT ?; ");
 
     public static final SQLStmt cancelTransaction = new SQLStmt(
             "UPDATE user_transactions SET tran_status = 'FAILED', tran_status_explanation = ?, "
@@ -61,6 +68,7 @@ public class EndOrphanedTransactions extends VoltProcedure {
 
         TimestampType firstPayerDone = null;
         TimestampType firstStalePending = null;
+        long orphansFound = 0;
 
         // Always use VoltDB's random number generator inside a procedure. We use it to
         // send
@@ -69,61 +77,58 @@ public class EndOrphanedTransactions extends VoltProcedure {
             r = this.getSeededRandomNumberGenerator();
         }
 
-        // Cutoff Date
-
-        Date cutoffDate = new Date(this.getTransactionTime().getTime() - minTranAgeMs);
-
-        if (cutoffDate.getTime() > System.currentTimeMillis() - SetTransactionEntryDone.TX_FINISH_GRACE_WINDOW_MS) {
-            cutoffDate = new Date(System.currentTimeMillis() - SetTransactionEntryDone.TX_FINISH_GRACE_WINDOW_MS - 1);
-        }
+        // Only rows whose stale_date has passed, so we never read rows we'd
+        // skip
+        final Date cutoffDate = StartTransactionPayer.getStaleCutoff(getTransactionTime(), minTranAgeMs);
 
         // Find oldest payerdone record...
-        voltQueueSQL(getPayerdoneTransactions, tranCount);
+        voltQueueSQL(getPayerdoneTransactions, cutoffDate, tranCount);
         VoltTable payerdoneRecords = voltExecuteSQL()[0];
 
         if (payerdoneRecords.getRowCount() > 0) {
 
-            int skippedPayerDoneCount = 0;
             int finishedTxCount = 0;
             int cantFinishTxCount = 0;
 
+            LinkedHashMap<Long, TimestampType> orphans = new LinkedHashMap<>();
+
             while (payerdoneRecords.advanceRow()) {
 
                 TimestampType insertDate = payerdoneRecords.getTimestampAsTimestamp("insert_date");
 
-                if (insertDate.asExactJavaDate().after(cutoffDate)) {
-                    skippedPayerDoneCount++;
+                if (firstPayerDone == null || firstPayerDone.asExactJavaDate().after(insertDate.asExactJavaDate())) {
+                    firstPayerDone = insertDate;
+                }
 
-                } else {
+                orphans.put(payerdoneRecords.getLong("Transaction_id"), insertDate);
+            }
+
+            orphansFound += orphans.size();
 
-                    if (firstPayerDone == null
-                            || firstPayerDone.asExactJavaDate().after(insertDate.asExactJavaDate())) {
-                        firstPayerDone = insertDate;
-                    }
+            // Get verdicts for all of them in one go...
+            HashSet<Long> safeToFinish = getSafeToFinish(orphans.keySet());
 
-                    final long userId = payerdoneRecords.getLong("userid");
-                    final long txId = payerdoneRecords.getLong("Transaction_id");
+            for (Entry<Long, TimestampType> orphan : orphans.entrySet()) {
 
-                    if (isSafeToFinish(txId)) {
+                final long txId = orphan.getKey();
 
-                        voltQueueSQL(finishTransaction, "Completed by EndOrphanedTransactions", txId);
-                        voltQueueSQL(reportFixes, txId, this.getTransactionTime(), "DONE",
-                                "PAYERDONE, Completed by EndOrphanedTransactions");
-                        finishedTxCount++;
+                if (safeToFinish.contains(txId)) {
 
-                    } else {
+                    voltQueueSQL(finishTransaction, "Completed by EndOrphanedTransactions", txId);
+                    voltQueueSQL(reportFixes, txId, this.getTransactionTime(), "DONE",
+                            "PAYERDONE, Completed by EndOrphanedTransactions");
+                    finishedTxCount++;
 
-                        voltQueueSQL(cancelTransaction, "Cancelled by EndOrphanedTransactions", txId);
-                        voltQueueSQL(reportFailures, txId, this.getTransactionTime(), StartTransactionPayer.STALE,
-                                "PAYERDONE, Cancelled by EndOrphanedTransactions. Started at " + insertDate.toString());
-                        cantFinishTxCount++;
-                    }
+                } else {
 
+                    voltQueueSQL(cancelTransaction, "Cancelled by EndOrphanedTransactions", txId);
+                    voltQueueSQL(reportFailures, txId, this.getTransactionTime(), StartTransactionPayer.STALE,
+                            "PAYERDONE, Cancelled by EndOrphanedTransactions. Started at "
+                                    + orphan.getValue().toString());
+                    cantFinishTxCount++;
                 }
             }
 
-            voltQueueSQL(upsertStat, "EndTransactions", "EndTransactions", "internalmeasurement",
-                    "skippedPayerDoneCount", skippedPayerDoneCount);
             voltQueueSQL(upsertStat, "EndTransactions", "EndTransactions", "internalmeasurement", "forceFinishedTxs",
                     finishedTxCount);
             voltQueueSQL(upsertStat, "EndTransactions", "EndTransactions", "internalmeasurement", "cantFinishTx",
@@ -142,12 +147,11 @@ public class EndOrphanedTransactions extends VoltProcedure {
         }
 
         // Find oldest pending record...
-        voltQueueSQL(getStalePendingTransactions, tranCount);
+        voltQueueSQL(getStalePendingTransactions, cutoffDate, tranCount);
         VoltTable staleRecords = voltExecuteSQL()[0];
 
         if (staleRecords.getRowCount() > 0) {
 
-            int skippedDoneCount = 0;
             int staleTxCount = 0;
             int staleTxParties = 0;
 
@@ -156,16 +160,13 @@ public class EndOrphanedTransactions extends VoltProcedure {
                 TimestampType insertDate = staleRecords.getTimestampAsTimestamp("insert_date");
                 TimestampType effectiveDate = staleRecords.getTimestampAsTimestamp("effective_date");
 
-                if (insertDate.asExactJavaDate().after(cutoffDate)) {
-                    skippedDoneCount = staleRecords.getRowCount() - staleRecords.getActiveRowIndex() + 1;
-                    break;
-                }
-
                 if (firstStalePending == null
                         || firstStalePending.asExactJavaDate().after(effectiveDate.asExactJavaDate())) {
                     firstStalePending = effectiveDate;
                 }
 
+                orphansFound++;
+
                 voltQueueSQL(cancelTransaction,  "Cancelled by EndOrphanedTransactions",staleRecords.getLong("Transaction_id"));
                 voltQueueSQL(reportFailures, staleRecords.getLong("Transaction_id"), this.getTransactionTime(),
                         StartTransactionPayer.STALE,
@@ -185,8 +186,6 @@ public class EndOrphanedTransactions extends VoltProcedure {
 
             staleTxParties = staleTxParties / 2;
 
-            voltQueueSQL(upsertStat, "EndTransactions", "EndTransactions", "internalmeasurement", "skippedDoneCount",
-                    skippedDoneCount);
             voltQueueSQL(upsertStat, "EndTransactions", "EndTransactions", "internalmeasurement", "staleTxs",
                     staleTxCount);
             voltQueueSQL(upsertStat, "EndTransactions", "EndTransactions", "internalmeasurement", "staleTxMembers",
@@ -206,39 +205,64 @@ public class EndOrphanedTransactions extends VoltProcedure {
                 && r.nextInt(RANDOM_STAT_INTERVAL) == 0)
 
         {
-            String[] statsToBeSetToZero = { "skippedPayerDoneCount", "forceFinishedTxs", "forceFinishedTxMembers",
-                    "payerDoneLag", "skippedDoneCount", "staleTxs", "staleTxMembers", "pendingLag" };
+            String[] statsToBeSetToZero = { "forceFinishedTxs", "forceFinishedTxMembers", "payerDoneLag", "staleTxs",
+                    "staleTxMembers", "pendingLag" };
 
             for (String element : statsToBeSetToZero) {
                 voltQueueSQL(upsertStat, "EndTransactions", "EndTransactions", "internalmeasurement", element, 0);
             }
         }
 
-        return voltExecuteSQL();
+        voltExecuteSQL(true);
+
+        // Tell whoever called us how busy we were, so they can decide when to
+        // call us again...
+        VoltTable summary = new VoltTable(new VoltTable.ColumnInfo("orphans_found", VoltType.BIGINT),
+                new VoltTable.ColumnInfo("rows_read", VoltType.BIGINT));
+        summary.addRow(orphansFound, Math.max(payerdoneRecords.getRowCount(), staleRecords.getRowCount()));
+
+        return new VoltTable[] { summary };
 
     }
 
-    private boolean isSafeToFinish(long txId) {
+    /**
+     * @return the members of txIds whose rows add up to zero and have the
+     *         expected number of participants.
+     */
+    private HashSet<Long> getSafeToFinish(Set<Long> txIds) {
 
-        boolean safe = true;
+        HashSet<Long> safe = new HashSet<>();
 
-        voltQueueSQL(getPayerdoneTransactionStatus, EXPECT_ONE_ROW, txId);
-        VoltTable[] isSafeToFinishResults = voltExecuteSQL();
-        int txRow = isSafeToFinishResults.length - 1;
-        isSafeToFinishResults[txRow].advanceRow();
+        if (txIds.isEmpty()) {
+            return safe;
+        }
+
+        long[] txIdArray = new long[txIds.size()];
+        int i = 0;
 
-        final long netTranAmount = isSafeToFinishResults[txRow].getLong("net_tran_amount");
-        final long plannedParticipants = isSafeToFinishResults[txRow].getLong("planned_participants");
-        final long actualParticipants = isSafeToFinishResults[txRow].getLong("actual_participants");
+        for (Long txId : txIds) {
+            txIdArray[i++] = txId;
+        }
 
-        if (netTranAmount != 0) {
-            LOG.error("txId " + txId + " has a net_tran_amount of " + netTranAmount);
-            safe = false;
+        voltQueueSQL(getPayerdoneTransactionStatus, txIdArray);
+        VoltTable isSafeToFinishResults = voltExecuteSQL()[0];
 
-        } else if (plannedParticipants != isSafeToFinishResults[txRow].getLong("actual_participants")) {
-            LOG.error("txId " + txId + " has a different number of planned and actual participants: "
-                    + plannedParticipants + "/" + actualParticipants);
-            safe = false;
+        while (isSafeToFinishResults.advanceRow()) {
+
+            final long txId = isSafeToFinishResults.getLong("Transaction_id");
+            final long netTranAmount = isSafeToFinishResults.getLong("net_tran_amount");
+            final long plannedParticipants = isSafeToFinishResults.getLong("planned_participants");
+            final long actualParticipants = isSafeToFinishResults.getLong("actual_participants");
+
+            if (netTranAmount != 0) {
+                LOG.error("txId " + txId + " has a net_tran_amount of " + netTranAmount);
+
+            } else if (plannedParticipants != actualParticipants) {
+                LOG.error("txId " + txId + " has a different number of planned and actual participants: "
+                        + plannedParticipants + "/" + actualParticipants);
+            } else {
+                safe.add(txId);
+            }
         }
 
         return safe;
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package nwayprocedures;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.voltdb.VoltTable;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.task.ActionResult;
+import org.voltdb.task.ActionScheduler;
+import org.voltdb.task.ScheduledAction;
+import org.voltdb.task.TaskHelper;
+
+/**
+ * Runs EndOrphanedTransactions as often as the backlog needs. When runs find
+ * nothing we back off towards maxDelayMs and shrink the batch. When a run
+ * fills its batch we go back to minDelayMs and double the batch. We never let
+ * EndOrphanedTransactions use more than maxCpuPct of the time, however big the
+ * backlog gets.
+ */
+public class EndOrphanedTransactionsScheduler implements ActionScheduler {
+
+    private static final int REPORT_INTERVAL = 50;
+
+    TaskHelper helper;
+
+    long minDelayMs, maxDelayMs, minTranCount, maxTranCount, minTranAgeMs, maxCpuPct;
+
+    long delayMs, tranCount;
+
+    long lastReportedDelayMs = -1, lastReportedTranCount = -1;
+
+    int runsSinceReport = 0;
+
+    public void initialize(TaskHelper helper, long minDelayMs, long maxDelayMs, long minTranCount,
+            long maxTranCount, long minTranAgeMs, long maxCpuPct) {
+
+        this.helper = helper;
+        this.minDelayMs = minDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.minTranCount = minTranCount;
+        this.maxTranCount = maxTranCount;
+        this.minTranAgeMs = minTranAgeMs;
+        this.maxCpuPct = Math.max(1, Math.min(100, maxCpuPct));
+
+        delayMs = minDelayMs;
+        tranCount = minTranCount;
+    }
+
+    @Override
+    public ScheduledAction getFirstScheduledAction() {
+        return sweep();
+    }
+
+    private ScheduledAction sweep() {
+        return ScheduledAction.procedureCall(delayMs, TimeUnit.MILLISECONDS, this::afterSweep,
+                "EndOrphanedTransactions", tranCount, minTranAgeMs);
+    }
+
+    private ScheduledAction afterSweep(ActionResult result) {
+
+        if (result.getStatus() != ClientResponse.SUCCESS) {
+
+            helper.logError("EndOrphanedTransactions failed: " + result.getResponse().getStatusString());
+            delayMs = maxDelayMs;
+
+        } else {
+
+            VoltTable summary = result.getResults()[0];
+            summary.advanceRow();
+
+            final long orphansFound = summary.getLong("orphans_found");
+            final long rowsRead = summary.getLong("rows_read");
+
+            if (rowsRead >= tranCount) {
+                // Batch was full, so there's probably more out there...
+                delayMs = minDelayMs;
+                tranCount = Math.min(tranCount * 2, maxTranCount);
+            } else if (orphansFound > 0) {
+                delayMs = Math.max(delayMs / 2, minDelayMs);
+            } else {
+                delayMs = Math.min(delayMs * 2, maxDelayMs);
+                tranCount = Math.max(tranCount / 2, minTranCount);
+            }
+
+            // Don't let a big backlog turn us into the main workload
+            final long minDelayForCpuMs = (result.getResponse().getClusterRoundtrip() * (100 - maxCpuPct))
+                    / maxCpuPct;
+
+            delayMs = Math.max(delayMs, minDelayForCpuMs);
+        }
+
+        if (delayMs != lastReportedDelayMs || tranCount != lastReportedTranCount
+                || ++runsSinceReport >= REPORT_INTERVAL) {
+
+            lastReportedDelayMs = delayMs;
+            lastReportedTranCount = tranCount;
+            runsSinceReport = 0;
+
+            return reportStat("schedulerDelayMs", delayMs,
+                    r -> reportStat("schedulerTranCount", tranCount, r2 -> sweep()));
+        }
+
+        return sweep();
+    }
+
+    private ScheduledAction reportStat(String eventName, long value, Function<ActionResult, ScheduledAction> next) {
+        return ScheduledAction.procedureCall(0, TimeUnit.MILLISECONDS, next, "promBL_latency_stats.UPSERT",
+                "EndTransactions", "EndTransactions", "internalmeasurement", eventName, value, new Date());
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package nwayprocedures;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+/**
+ * Finish (if newStatus is DONE) or cancel the unfinished user_transactions
+ * rows of one transaction that live in one partition. Unlike
+ * SetTransactionEntriesDone there's no grace window, as the caller has
+ * already decided what happens. partitionKey is any of userIds and is only
+ * used for routing.
+ */
+public class EndTransactionEntries extends VoltProcedure {
+
+    /**
+     * Size of user_transactions.tran_status_explanation.
+     */
+    public static final int MAX_EXPLANATION_LENGTH = 1000;
+
+    public static final SQLStmt finishTransaction = new SQLStmt(
+            "UPDATE user_transactions SET tran_status = 'DONE', tran_status_explanation = ?, "
+                    + "done_date = NOW, queue_date = null "
+                    + "WHERE userid = ? AND Transaction_id = ? AND tran_status IN ('PENDING','PAYERDONE');");
+
+    public static final SQLStmt cancelTransaction = new SQLStmt(
+            "UPDATE user_transactions SET tran_status = ?, tran_status_explanation = ?, "
+                    + "done_date = NOW, queue_date = null, user_count = null "
+                    + "WHERE userid = ? AND Transaction_id = ? AND tran_status IN ('PENDING','PAYERDONE');");
+
+    public VoltTable[] run(long partitionKey, long[] userIds, long txnId, String newStatus, String explanation)
+            throws VoltAbortException {
+
+        if (explanation != null && explanation.length() > MAX_EXPLANATION_LENGTH) {
+            explanation = explanation.substring(0, MAX_EXPLANATION_LENGTH);
+        }
+
+        final boolean finishing = newStatus.equals(StartTransactionPayer.DONE_MESSAGE);
+
+        for (long userId : userIds) {
+            if (finishing) {
+                voltQueueSQL(finishTransaction, explanation, userId, txnId);
+            } else {
+                voltQueueSQL(cancelTransaction, newStatus, explanation, userId, txnId);
+            }
+        }
+
+        this.setAppStatusCode(StartTransactionPayer.DONE_CODE);
+        this.setAppStatusString(StartTransactionPayer.DONE_MESSAGE);
+
+        return voltExecuteSQL(true);
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package nwayprocedures;
+
+import org.voltdb.VoltCompoundProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.client.ClientResponse;
+
+/**
+ * Finish or cancel one CompoundPayment using its settlement_header row. We
+ * use the same rule as EndOrphanedTransactions: if the payer got to PAYERDONE
+ * the transaction finishes, otherwise it's cancelled. Because the header
+ * tells us who the participants are this is a handful of single partition
+ * calls instead of a multi partition scan.
+ * <p>
+ * A slow coordinator can still call SetPayerDone while we're working, so we
+ * don't read the payer's status and act on it later. CancelPendingPayer
+ * checks and cancels the payer in one transaction, and we only cancel the
+ * payees if the payer ended up cancelled.
+ * <p>
+ * Returns 1 if we changed anything, 0 if there was nothing to do.
+ */
+public class ResolveSettlement extends VoltCompoundProcedure {
+
+    static final String CANCEL_EXPLANATION = "Cancelled by ResolveSettlement";
+
+    long txnId, payerId;
+    long[] participants;
+    String newStatus;
+
+    public long run(long txnId) {
+
+        this.txnId = txnId;
+
+        newStageList(this::getHeader).then(this::cancelPendingPayer).then(this::endEntries).then(this::finish)
+                .build();
+        return 0L;
+    }
+
+    private void getHeader(ClientResponse[] unused) {
+        queueProcedureCall("GetSettlementHeader", txnId);
+    }
+
+    private void cancelPendingPayer(ClientResponse[] resp) {
+
+        if (resp[0].getStatus() != ClientResponse.SUCCESS) {
+            abortProcedure("GetSettlementHeader failed: " + resp[0].getStatusString());
+            return;
+        }
+
+        VoltTable header = resp[0].getResults()[0];
+
+        if (!header.advanceRow()) {
+            completeProcedure(0L);
+            return;
+        }
+
+        final String headerStatus = header.getString("header_status");
+
+        if (!headerStatus.equals(StartTransactionPayer.PENDING_MESSAGE)
+                && !headerStatus.equals(StartTransactionPayer.PAYERDONE_MESSAGE)) {
+            completeProcedure(0L);
+            return;
+        }
+
+        payerId = header.getLong("payer_id");
+        participants = StartSettlementHeader.unpackParticipants(header.getVarbinary("participants"));
+
+        queueProcedureCall("CancelPendingPayer", payerId, txnId, CANCEL_EXPLANATION);
+    }
+
+    private void endEntries(ClientResponse[] resp) {
+
+        if (resp[0].getStatus() != ClientResponse.SUCCESS) {
+            abortProcedure("CancelPendingPayer failed: " + resp[0].getStatusString());
+            return;
+        }
+
+        final String payerStatus = resp[0].getAppStatusString();
+        String explanation;
+
+        if (StartTransactionPayer.PAYERDONE_MESSAGE.equals(payerStatus)
+                || StartTransactionPayer.DONE_MESSAGE.equals(payerStatus)) {
+            newStatus = StartTransactionPayer.DONE_MESSAGE;
+            explanation = "Completed by ResolveSettlement";
+        } else {
+            newStatus = StartTransactionPayer.STALE;
+            explanation = CANCEL_EXPLANATION;
+        }
+
+        final String entryStatus = newStatus.equals(StartTransactionPayer.DONE_MESSAGE) ? newStatus : "FAILED";
+
+        for (int[] participantGroup : CompoundPayment.groupByPartition(participants,
+                CompoundPayment.MAX_USERS_PER_CALL)) {
+
+            long[] groupParticipants = new long[participantGroup.length];
+
+            for (int i = 0; i < participantGroup.length; i++) {
+                groupParticipants[i] = participants[participantGroup[i]];
+            }
+
+            queueProcedureCall("EndTransactionEntries", groupParticipants[0], groupParticipants, txnId, entryStatus,
+                    explanation);
+        }
+
+        queueProcedureCall("SetSettlementHeaderStatus", txnId, newStatus, explanation);
+    }
+
+    private void finish(ClientResponse[] resp) {
+
+        for (ClientResponse element : resp) {
+            if (element.getStatus() != ClientResponse.SUCCESS) {
+                abortProcedure("ResolveSettlement failed for " + txnId + ": " + element.getStatusString());
+                return;
+            }
+        }
+
+        this.setAppStatusString(newStatus);
+        completeProcedure(1L);
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package nwayprocedures;
+
+import java.util.concurrent.TimeUnit;
+
+import org.voltdb.VoltTable;
+import org.voltdb.client.ClientResponse;
+import org.voltdb.task.ActionResult;
+import org.voltdb.task.ActionScheduler;
+import org.voltdb.task.ScheduledAction;
+import org.voltdb.task.TaskHelper;
+
+/**
+ * Every delayMs, find up to batchSize settlement_header rows that are still
+ * PENDING or PAYERDONE and at least minTranAgeMs old, and call
+ * ResolveSettlement for each of them, one at a time.
+ * <p>
+ * Finding them is a multi partition read, so delayMs should be seconds rather
+ * than milliseconds. If we found a whole batch there are probably more, so we
+ * look again straight away instead of waiting.
+ */
+public class ResolveStaleSettlementsScheduler implements ActionScheduler {
+
+    TaskHelper helper;
+
+    long delayMs, batchSize, minTranAgeMs;
+
+    long[] txnIds = new long[0];
+
+    int nextTxn = 0;
+
+    boolean batchWasFull = false;
+
+    public void initialize(TaskHelper helper, long delayMs, long batchSize, long minTranAgeMs) {
+
+        this.helper = helper;
+        this.delayMs = delayMs;
+        this.batchSize = batchSize;
+        this.minTranAgeMs = minTranAgeMs;
+    }
+
+    @Override
+    public ScheduledAction getFirstScheduledAction() {
+        return find(delayMs);
+    }
+
+    private ScheduledAction find(long findDelayMs) {
+
+        // stale_date is already TX_FINISH_GRACE_WINDOW_MS after the insert,
+        // so we only need to wait for the rest of minTranAgeMs
+        final long extraAgeMs = Math.max(0, minTranAgeMs - SetTransactionEntryDone.TX_FINISH_GRACE_WINDOW_MS - 1);
+
+        return ScheduledAction.procedureCall(findDelayMs, TimeUnit.MILLISECONDS, this::afterFind,
+                "GetStaleSettlements", -extraAgeMs, batchSize);
+    }
+
+    private ScheduledAction afterFind(ActionResult result) {
+
+        if (result.getStatus() != ClientResponse.SUCCESS) {
+            helper.logError("GetStaleSettlements failed: " + result.getResponse().getStatusString());
+            return find(delayMs);
+        }
+
+        VoltTable staleSettlements = result.getResults()[0];
+
+        txnIds = new long[staleSettlements.getRowCount()];
+        nextTxn = 0;
+        batchWasFull = txnIds.length >= batchSize;
+
+        for (int i = 0; staleSettlements.advanceRow(); i++) {
+            txnIds[i] = staleSettlements.getLong("Transaction_id");
+        }
+
+        return resolveNext();
+    }
+
+    private ScheduledAction resolveNext() {
+
+        if (nextTxn >= txnIds.length) {
+            return find(batchWasFull ? 0 : delayMs);
+        }
+
+        return ScheduledAction.procedureCall(0, TimeUnit.MILLISECONDS, this::afterResolve, "ResolveSettlement",
+                txnIds[nextTxn++]);
+    }
+
+    private ScheduledAction afterResolve(ActionResult result) {
+
+        if (result.getStatus() != ClientResponse.SUCCESS) {
+            helper.logError("ResolveSettlement failed: " + result.getResponse().getStatusString());
+        }
+
+        return resolveNext();
+    }
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package nwayprocedures;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+/**
+ * Replace this partition's user_balances with what SnapshotBalances saved.
+ * Called once per partition with callAllPartitionProcedure. partitionKey is
+ * only used for routing.
+ */
+public class RestoreBalances extends VoltProcedure {
+
+    public static final SQLStmt deleteBalances = new SQLStmt("DELETE FROM user_balances;");
+
+    public static final SQLStmt restoreSnapshot = new SQLStmt(
+            "INSERT INTO user_balances SELECT * FROM user_balances_snapshot;");
+
+    public VoltTable[] run(long partitionKey) throws VoltAbortException {
+
+        voltQueueSQL(deleteBalances);
+        voltQueueSQL(restoreSnapshot);
+
+        return voltExecuteSQL(true);
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package nwayprocedures;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+/**
+ * Move a settlement_header row on from PENDING or PAYERDONE. Headers that
+ * have already finished are left alone, and we return HEADER_FINISHED_CODE
+ * with the status they finished with. If we have an explanation the change
+ * is also reported to transaction_fixes (for DONE) or transaction_failures
+ * (for anything else).
+ */
+public class SetSettlementHeaderStatus extends VoltProcedure {
+
+    /**
+     * Size of the desc columns of transaction_failures and transaction_fixes.
+     */
+    public static final int MAX_EXPLANATION_LENGTH = 4000;
+
+    public static final SQLStmt setInFlightStatus = new SQLStmt(
+            "UPDATE settlement_header SET header_status = ?, header_status_explanation = ? "
+                    + "WHERE Transaction_id = ? AND header_status IN ('PENDING','PAYERDONE');");
+
+    public static final SQLStmt setFinalStatus = new SQLStmt(
+            "UPDATE settlement_header SET header_status = ?, header_status_explanation = ?, done_date = NOW "
+                    + "WHERE Transaction_id = ? AND header_status IN ('PENDING','PAYERDONE');");
+
+    public static final SQLStmt getHeaderStatus = new SQLStmt(
+            "SELECT header_status FROM settlement_header WHERE Transaction_id = ?;");
+
+    public static final SQLStmt reportFailures = new SQLStmt(
+            "INSERT INTO transaction_failures(Transaction_id,Effective_date,tran_status,desc) VALUES (?,NOW,?,?);");
+
+    public static final SQLStmt reportFixes = new SQLStmt(
+            "INSERT INTO transaction_fixes(Transaction_id,Effective_date,tran_status,desc) VALUES (?,NOW,?,?);");
+
+    public VoltTable[] run(long txnId, String newStatus, String explanation) throws VoltAbortException {
+
+        if (explanation != null && explanation.length() > MAX_EXPLANATION_LENGTH) {
+            explanation = explanation.substring(0, MAX_EXPLANATION_LENGTH);
+        }
+
+        if (newStatus.equals(StartTransactionPayer.PAYERDONE_MESSAGE)) {
+            voltQueueSQL(setInFlightStatus, newStatus, explanation, txnId);
+            this.setAppStatusCode(StartTransactionPayer.PAYERDONE_CODE);
+            this.setAppStatusString(StartTransactionPayer.PAYERDONE_MESSAGE);
+        } else {
+            voltQueueSQL(setFinalStatus, newStatus, explanation, txnId);
+            this.setAppStatusCode(StartTransactionPayer.DONE_CODE);
+            this.setAppStatusString(StartTransactionPayer.DONE_MESSAGE);
+        }
+
+        voltQueueSQL(getHeaderStatus, txnId);
+
+        VoltTable[] results = voltExecuteSQL();
+        results[0].advanceRow();
+
+        if (results[0].getLong("modified_tuples") != 1) {
+            this.setAppStatusCode(StartTransactionPayer.HEADER_FINISHED_CODE);
+
+            if (results[1].advanceRow()) {
+                this.setAppStatusString(results[1].getString("header_status"));
+            } else {
+                this.setAppStatusString(StartTransactionPayer.NO_SUCH_HEADER_MESSAGE);
+            }
+
+            return results;
+        }
+
+        if (explanation != null) {
+            if (newStatus.equals(StartTransactionPayer.DONE_MESSAGE)) {
+                voltQueueSQL(reportFixes, txnId, newStatus, explanation);
+            } else {
+                voltQueueSQL(reportFailures, txnId, newStatus, explanation);
+            }
+        }
+
+        return voltExecuteSQL(true);
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package nwayprocedures;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+/**
+ * SetTransactionEntryDone for every participant of a transaction that lives in
+ * one partition. partitionKey is any of userIds and is only used for routing.
+ */
+public class SetTransactionEntriesDone extends VoltProcedure {
+
+    public static final SQLStmt finishTransaction = new SQLStmt(
+            "UPDATE user_transactions " + "SET tran_status = 'DONE', done_date = NOW, queue_date = null "
+                    + "WHERE  userid = ? AND Transaction_id = ? " + "AND tran_status IN ('PENDING','PAYERDONE') "
+                    + "AND DATEADD(MILLISECOND,?,insert_date) >= NOW;");
+
+    public VoltTable[] run(long partitionKey, long[] userIds, long txnId) throws VoltAbortException {
+
+        for (long userId : userIds) {
+            voltQueueSQL(finishTransaction, userId, txnId, SetTransactionEntryDone.TX_FINISH_GRACE_WINDOW_MS);
+        }
+
+        this.setAppStatusCode(StartTransactionPayer.DONE_CODE);
+        this.setAppStatusString(StartTransactionPayer.DONE_MESSAGE);
+
+        VoltTable[] results = voltExecuteSQL(true);
+
+        for (VoltTable result : results) {
+            result.advanceRow();
+            if (result.getLong("modified_tuples") != 1) {
+                this.setAppStatusCode(StartTransactionPayer.MISSED_EFFECTIVE_DATE_CODE);
+                this.setAppStatusString(StartTransactionPayer.MISSED_EFFECTIVE_DATE_MESSAGE);
+            }
+        }
+
+        return results;
+
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package nwayprocedures;
+
+import java.util.Date;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.TheHashinator;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltType;
+import org.voltdb.types.TimestampType;
+
+/**
+ * Does a whole CompoundPayment in one single partition transaction, for when
+ * the payer and every payee live in the same partition. It makes the same
+ * checks as StartTransactionPayer and StartTransactionPayees, and then
+ * writes every row as DONE, so there's no PENDING or PAYERDONE state for
+ * anything to clean up. Payees in another partition get NOT_COLOCATED_CODE.
+ * <p>
+ * Each payment we make gets a local_settlement row. If the payer already has
+ * one for txnId, or a user_transactions row, we change nothing and return
+ * ALREADY_SUBMITTED_CODE, with the original's status as the status string.
+ * local_settlement rows last an hour, so a resubmission is still caught
+ * after CompactBalances has folded the DONE rows away.
+ */
+public class SettleLocalPayment extends VoltProcedure {
+
+    public static final SQLStmt getLocalSettlement = new SQLStmt(
+            "select l.transaction_id from local_settlement l where l.payer_id = ? and l.transaction_id = ?;");
+
+    public static final SQLStmt insertLocalSettlement = new SQLStmt(
+            "INSERT INTO local_settlement (payer_id, transaction_id) VALUES (?,?);");
+
+    public static final SQLStmt getPayerTransaction = new SQLStmt(
+            "select t.tran_status from user_transactions t where t.userid = ? and t.transaction_id = ?;");
+
+    public static final SQLStmt getUser = new SQLStmt(
+            "select u.userid, u.balance_amount " + "from user_balances u " + "where  u.userid = ?;");
+
+    public static final SQLStmt getUsers = new SQLStmt(
+            "select u.userid " + "from user_balances u " + "where u.userid IN ?;");
+
+    public static final SQLStmt getRunningTotal = new SQLStmt("select sum(v.tran_amount) completed_transactions "
+            + "from user_transaction_totals v where v.userid = ?;");
+
+    public static final SQLStmt insertDoneTransaction = new SQLStmt(
+            "INSERT INTO user_transactions (userid, other_userid, tran_amount, transaction_id, Effective_date, tran_status, user_count, stale_date, done_date) "
+                    + " VALUES " + "(?,?,?,?,?,'DONE',?,?,NOW);");
+
+    public VoltTable[] run(long payingUserId, long txnId, long[] paidUserIds, long[] paidAmounts,
+            TimestampType effectiveDate) throws VoltAbortException {
+
+        // A resubmission gets the original's outcome, even if it's now too late
+        this.voltQueueSQL(getLocalSettlement, payingUserId, txnId);
+        this.voltQueueSQL(getPayerTransaction, payingUserId, txnId);
+
+        VoltTable[] earlierSubmission = voltExecuteSQL();
+
+        if (earlierSubmission[0].advanceRow()) {
+            this.setAppStatusCode(StartTransactionPayer.ALREADY_SUBMITTED_CODE);
+            this.setAppStatusString(StartTransactionPayer.DONE_MESSAGE);
+            return earlierSubmission;
+        }
+
+        if (earlierSubmission[1].advanceRow()) {
+            this.setAppStatusCode(StartTransactionPayer.ALREADY_SUBMITTED_CODE);
+            this.setAppStatusString(earlierSubmission[1].getString("tran_status"));
+            return earlierSubmission;
+        }
+
+        final Date cutoffDate = new Date(this.getTransactionTime().getTime() - StartTransactionPayer.GRACE_MS);
+
+        if (effectiveDate.asExactJavaDate().before(cutoffDate)) {
+            this.setAppStatusCode(StartTransactionPayer.MISSED_EFFECTIVE_DATE_CODE);
+            this.setAppStatusString(StartTransactionPayer.MISSED_EFFECTIVE_DATE_MESSAGE);
+            return voltExecuteSQL(true);
+        }
+
+        if (paidUserIds.length != paidAmounts.length) {
+            this.setAppStatusCode(StartTransactionPayer.PAYEE_LIST_MISMATCH_CODE);
+            this.setAppStatusString(StartTransactionPayer.PAYEE_LIST_MISMATCH_MESSAGE);
+            return voltExecuteSQL(true);
+        }
+
+        if (StartTransactionPayer.hasDuplicateParticipants(payingUserId, paidUserIds)) {
+            this.setAppStatusCode(StartTransactionPayer.DUPLICATE_PARTICIPANT_CODE);
+            this.setAppStatusString(StartTransactionPayer.DUPLICATE_PARTICIPANT_MESSAGE);
+            return voltExecuteSQL(true);
+        }
+
+        if (!isColocated(payingUserId, paidUserIds)) {
+            this.setAppStatusCode(StartTransactionPayer.NOT_COLOCATED_CODE);
+            this.setAppStatusString(StartTransactionPayer.NOT_COLOCATED_MESSAGE);
+            return voltExecuteSQL(true);
+        }
+
+        this.voltQueueSQL(getUser, payingUserId);
+        this.voltQueueSQL(getRunningTotal, payingUserId);
+        this.voltQueueSQL(getUsers, paidUserIds);
+
+        VoltTable[] userQueryResults = voltExecuteSQL();
+
+        if (!userQueryResults[0].advanceRow() || userQueryResults[2].getRowCount() != paidUserIds.length) {
+            this.setAppStatusCode(StartTransactionPayer.NO_SUCH_USER_CODE);
+            this.setAppStatusString(StartTransactionPayer.NO_SUCH_USER_MESSAGE);
+            return voltExecuteSQL(true);
+        }
+
+        long availableCredit = userQueryResults[0].getLong("balance_amount");
+
+        // DONE transactions plus money already promised to in-flight ones...
+        if (userQueryResults[1].advanceRow()) {
+            long transactionValue = userQueryResults[1].getLong("completed_transactions");
+
+            if (!userQueryResults[1].wasNull()) {
+                availableCredit = availableCredit + transactionValue;
+            }
+
+        }
+
+        long payingAmount = 0;
+
+        for (long paidAmount : paidAmounts) {
+            payingAmount -= paidAmount;
+        }
+
+        if (availableCredit + payingAmount < 0) {
+            this.setAppStatusCode(StartTransactionPayer.NOT_ENOUGH_MONEY_CODE);
+            this.setAppStatusString(StartTransactionPayer.NOT_ENOUGH_MONEY_MESSAGE + " " + availableCredit);
+            return voltExecuteSQL(true);
+        }
+
+        final Date staleDate = StartTransactionPayer.getStaleDate(getTransactionTime());
+
+        this.voltQueueSQL(insertLocalSettlement, payingUserId, txnId);
+        this.voltQueueSQL(insertDoneTransaction, payingUserId, payingUserId, payingAmount, txnId, effectiveDate,
+                paidUserIds.length + 1, staleDate);
+
+        for (int i = 0; i < paidUserIds.length; i++) {
+            this.voltQueueSQL(insertDoneTransaction, paidUserIds[i], payingUserId, paidAmounts[i], txnId,
+                    effectiveDate, null, staleDate);
+        }
+
+        this.setAppStatusCode(StartTransactionPayer.DONE_CODE);
+        this.setAppStatusString(StartTransactionPayer.DONE_MESSAGE);
+
+        return voltExecuteSQL(true);
+    }
+
+    /**
+     * @param payingUserId
+     * @param paidUserIds
+     * @return true if every payee hashes to the same partition as the payer
+     */
+    public static boolean isColocated(long payingUserId, long[] paidUserIds) {
+
+        final int payerPartition = TheHashinator.getPartitionForParameter(VoltType.BIGINT, payingUserId);
+
+        for (long paidUserId : paidUserIds) {
+            if (TheHashinator.getPartitionForParameter(VoltType.BIGINT, paidUserId) != payerPartition) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package nwayprocedures;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+/**
+ * Copy this partition's user_balances into user_balances_snapshot, so a later
+ * RestoreBalances can put them back. Called once per partition with
+ * callAllPartitionProcedure. partitionKey is only used for routing.
+ */
+public class SnapshotBalances extends VoltProcedure {
+
+    public static final SQLStmt deleteSnapshot = new SQLStmt("DELETE FROM user_balances_snapshot;");
+
+    public static final SQLStmt takeSnapshot = new SQLStmt(
+            "INSERT INTO user_balances_snapshot SELECT * FROM user_balances;");
+
+    public VoltTable[] run(long partitionKey) throws VoltAbortException {
+
+        voltQueueSQL(deleteSnapshot);
+        voltQueueSQL(takeSnapshot);
+
+        return voltExecuteSQL(true);
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package nwayprocedures;
+
+import java.nio.ByteBuffer;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+/**
+ * Record a CompoundPayment in settlement_header, in the partition that owns
+ * txnId. participants is every userid in the transaction, payer last.
+ * <p>
+ * This is also how CompoundPayment claims txnId. If there's already a header
+ * we change nothing and return ALREADY_SUBMITTED_CODE, with its status as the
+ * status string.
+ */
+public class StartSettlementHeader extends VoltProcedure {
+
+    public static final SQLStmt getHeader = new SQLStmt(
+            "SELECT header_status FROM settlement_header WHERE Transaction_id = ?;");
+
+    public static final SQLStmt insertHeader = new SQLStmt(
+            "INSERT INTO settlement_header (Transaction_id, payer_id, participant_count, net_amount, participants, "
+                    + "header_status, stale_date) VALUES (?,?,?,?,?,'PENDING',?);");
+
+    public VoltTable[] run(long txnId, long payerId, long[] participants, long netAmount)
+            throws VoltAbortException {
+
+        voltQueueSQL(getHeader, txnId);
+
+        VoltTable[] headerResults = voltExecuteSQL();
+
+        if (headerResults[0].advanceRow()) {
+            this.setAppStatusCode(StartTransactionPayer.ALREADY_SUBMITTED_CODE);
+            this.setAppStatusString(headerResults[0].getString("header_status"));
+            return headerResults;
+        }
+
+        voltQueueSQL(insertHeader, txnId, payerId, participants.length, netAmount, packParticipants(participants),
+                StartTransactionPayer.getStaleDate(this.getTransactionTime()));
+
+        this.setAppStatusCode(StartTransactionPayer.PENDING_CODE);
+        this.setAppStatusString(StartTransactionPayer.PENDING_MESSAGE);
+
+        return voltExecuteSQL(true);
+    }
+
+    /**
+     * @param participants
+     * @return participants as a varbinary, 8 bytes each
+     */
+    public static byte[] packParticipants(long[] participants) {
+
+        ByteBuffer buffer = ByteBuffer.allocate(participants.length * Long.BYTES);
+
+        for (long participant : participants) {
+            buffer.putLong(participant);
+        }
+
+        return buffer.array();
+    }
+
+    /**
+     * @param packedParticipants the participants column of settlement_header
+     * @return the userids in it
+     */
+    public static long[] unpackParticipants(byte[] packedParticipants) {
+
+        ByteBuffer buffer = ByteBuffer.wrap(packedParticipants);
+        long[] participants = new long[packedParticipants.length / Long.BYTES];
+
+        for (int i = 0; i < participants.length; i++) {
+            participants[i] = buffer.getLong();
+        }
+
+        return participants;
+    }
+
+}
@@ -24,7 +24,7 @@ public class StartTransactionPayee extends VoltProcedure {
 
     public static final SQLStmt startTransaction = new SQLStmt(
             "INSERT INTO user_transactions (userid, other_userid, tran_amount, transaction_id, Effective_date, tran_status, stale_date) "
-                    + " VALUES " + "(?,?,?,?,?,'PENDING',DATEADD(SECOND, 2, ?));");
+                    + " VALUES " + "(?,?,?,?,?,'PENDING',?);");
 
     public VoltTable[] run(long paidUserId, long payingUserId, long paidAmount, long txnId, TimestampType effectiveDate)
             throws VoltAbortException {
@@ -47,7 +47,8 @@ public class StartTransactionPayee extends VoltProcedure {
             return voltExecuteSQL(true);
         }
 
-        this.voltQueueSQL(startTransaction, paidUserId, payingUserId, paidAmount, txnId, effectiveDate, effectiveDate);
+        this.voltQueueSQL(startTransaction, paidUserId, payingUserId, paidAmount, txnId, effectiveDate,
+                StartTransactionPayer.getStaleDate(getTransactionTime()));
         this.setAppStatusCode(StartTransactionPayer.PENDING_CODE);
         this.setAppStatusString(StartTransactionPayer.PENDING_MESSAGE);
 
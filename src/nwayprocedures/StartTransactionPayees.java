@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package nwayprocedures;
+
+import java.util.Date;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+import org.voltdb.types.TimestampType;
+
+/**
+ * StartTransactionPayee for every payee of a transaction that lives in one
+ * partition. partitionKey is any of paidUserIds and is only used for routing.
+ * Either all payees get a PENDING row or none do.
+ */
+public class StartTransactionPayees extends VoltProcedure {
+
+    public static final SQLStmt getUsers = new SQLStmt(
+            "select u.userid " + "from user_balances u " + "where u.userid IN ?;");
+
+    public static final SQLStmt startTransaction = new SQLStmt(
+            "INSERT INTO user_transactions (userid, other_userid, tran_amount, transaction_id, Effective_date, tran_status, stale_date) "
+                    + " VALUES " + "(?,?,?,?,?,'PENDING',?);");
+
+    public VoltTable[] run(long partitionKey, long[] paidUserIds, long payingUserId, long[] paidAmounts, long txnId,
+            TimestampType effectiveDate) throws VoltAbortException {
+
+        final Date cutoffDate = new Date(this.getTransactionTime().getTime() - StartTransactionPayer.GRACE_MS);
+
+        if (effectiveDate.asExactJavaDate().before(cutoffDate)) {
+            this.setAppStatusCode(StartTransactionPayer.MISSED_EFFECTIVE_DATE_CODE);
+            this.setAppStatusString(StartTransactionPayer.MISSED_EFFECTIVE_DATE_MESSAGE);
+            return voltExecuteSQL(true);
+        }
+
+        if (paidUserIds.length != paidAmounts.length) {
+            this.setAppStatusCode(StartTransactionPayer.PAYEE_LIST_MISMATCH_CODE);
+            this.setAppStatusString(StartTransactionPayer.PAYEE_LIST_MISMATCH_MESSAGE);
+            return voltExecuteSQL(true);
+        }
+
+        if (StartTransactionPayer.hasDuplicateParticipants(payingUserId, paidUserIds)) {
+            this.setAppStatusCode(StartTransactionPayer.DUPLICATE_PARTICIPANT_CODE);
+            this.setAppStatusString(StartTransactionPayer.DUPLICATE_PARTICIPANT_MESSAGE);
+            return voltExecuteSQL(true);
+        }
+
+        this.voltQueueSQL(getUsers, paidUserIds);
+
+        VoltTable[] userQueryResults = voltExecuteSQL();
+
+        if (userQueryResults[0].getRowCount() != paidUserIds.length) {
+            this.setAppStatusCode(StartTransactionPayer.NO_SUCH_USER_CODE);
+            this.setAppStatusString(StartTransactionPayer.NO_SUCH_USER_MESSAGE);
+            return voltExecuteSQL(true);
+        }
+
+        final Date staleDate = StartTransactionPayer.getStaleDate(getTransactionTime());
+
+        for (int i = 0; i < paidUserIds.length; i++) {
+            this.voltQueueSQL(startTransaction, paidUserIds[i], payingUserId, paidAmounts[i], txnId, effectiveDate,
+                    staleDate);
+        }
+
+        this.setAppStatusCode(StartTransactionPayer.PENDING_CODE);
+        this.setAppStatusString(StartTransactionPayer.PENDING_MESSAGE);
+
+        return voltExecuteSQL(true);
+
+    }
+
+}
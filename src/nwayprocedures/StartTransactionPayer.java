@@ -7,6 +7,7 @@
  */
 package nwayprocedures;
 
+import java.util.Arrays;
 import java.util.Date;
 
 import org.voltdb.SQLStmt;
@@ -22,16 +23,12 @@ public class StartTransactionPayer extends VoltProcedure {
     public static final SQLStmt getUser = new SQLStmt(
             "select u.userid, u.balance_amount " + "from user_balances u " + "where  u.userid = ?;");
 
-    public static final SQLStmt getDoneTransactions = new SQLStmt("select sum(t.tran_amount) completed_transactions "
-            + "from user_transactions t where t.userid = ? and t.tran_status = 'DONE';");
-
-    public static final SQLStmt getReleventPendingTransactions = new SQLStmt(
-            "select sum(t.tran_amount) completed_transactions "
-                    + "from user_transactions t where t.userid = ? and t.tran_status = 'PENDING' AND t.tran_amount < 0;");
+    public static final SQLStmt getRunningTotal = new SQLStmt("select sum(v.tran_amount) completed_transactions "
+            + "from user_transaction_totals v where v.userid = ?;");
 
     public static final SQLStmt startTransaction = new SQLStmt(
             "INSERT INTO user_transactions (userid, other_userid, tran_amount, transaction_id, Effective_date, tran_status,queue_date,user_count, stale_date) "
-                    + " VALUES " + "(?,?,?,?,?,'PENDING',?,?,DATEADD(SECOND, 2, ?));");
+                    + " VALUES " + "(?,?,?,?,?,'PENDING',?,?,?);");
 
     public static final byte PAYERDONE_CODE = 1;
     public static final String PAYERDONE_MESSAGE = "PAYERDONE";
@@ -56,16 +53,110 @@ public class StartTransactionPayer extends VoltProcedure {
     public static final byte PAYEE_LIST_MISMATCH_CODE = 6;
     public static final String PAYEE_LIST_MISMATCH_MESSAGE = "Payee list and amount mismatch";
 
+    public static final int MAX_PAYEES = 10000;
+
     public static final byte PAYEE_LIST_TOOLONG_CODE = 7;
-    public static final String PAYEE_LIST_TOOLONG_MESSAGE = "Payee list must be 9 or less in length";
+    public static final String PAYEE_LIST_TOOLONG_MESSAGE = "Payee list must be " + MAX_PAYEES
+            + " or less in length";
+    public static final String BATCH_PAYEE_LIST_TOOLONG_MESSAGE = "Payee list must be 9 or less in length";
 
     public static final byte PARAMETER_NULL_CODE = 8;
     public static final String PARAMETER_NULL_MESSAGE = "Parameter can not be null";
 
+    public static final byte TRANSFER_LIST_TOOLONG_CODE = 9;
+    public static final String TRANSFER_LIST_TOOLONG_MESSAGE = "Transfer list must be 100 or less in length";
+
+    public static final byte NOT_COLOCATED_CODE = 10;
+    public static final String NOT_COLOCATED_MESSAGE = "Participants must all be in the payer's partition";
+
+    /**
+     * The Transaction_id has been used before. The status string is what
+     * happened to it.
+     */
+    public static final byte ALREADY_SUBMITTED_CODE = 11;
+
+    public static final byte DUPLICATE_PARTICIPANT_CODE = 12;
+    public static final String DUPLICATE_PARTICIPANT_MESSAGE = "Payer and payees must all be different users";
+
+    /**
+     * The settlement_header row has already finished, or there isn't one. The
+     * status string is its header_status, or NO_SUCH_HEADER_MESSAGE.
+     */
+    public static final byte HEADER_FINISHED_CODE = 13;
+    public static final String NO_SUCH_HEADER_MESSAGE = "No such settlement header";
+
     public static final String CANTFINISH = "CANTFINISH";
     public static final String CANTSTART = "CANTSTART";
     public static final String STALE = "STALE";
 
+    /**
+     * stale_date is when the orphan sweepers can start looking at a row, which
+     * is as soon as SetTransactionEntriesDone can no longer finish it.
+     * Sweepers only read rows whose stale_date has passed, using ut_ix5.
+     *
+     * @param transactionTime when the row is inserted
+     * @return stale_date for a new user_transactions row
+     */
+    public static Date getStaleDate(Date transactionTime) {
+        return new Date(transactionTime.getTime() + SetTransactionEntryDone.TX_FINISH_GRACE_WINDOW_MS + 1);
+    }
+
+    /**
+     * As stale_date is TX_FINISH_GRACE_WINDOW_MS + 1 after insertion, rows with
+     * a stale_date at or before this are at least minTranAgeMs old.
+     *
+     * @param transactionTime
+     * @param minTranAgeMs
+     * @return the latest stale_date a sweeper should act on
+     */
+    public static Date getStaleCutoff(Date transactionTime, long minTranAgeMs) {
+        return new Date(transactionTime.getTime()
+                - Math.max(0, minTranAgeMs - SetTransactionEntryDone.TX_FINISH_GRACE_WINDOW_MS - 1));
+    }
+
+    /**
+     * A user can only have one row per Transaction_id, so a payee that is
+     * listed twice, or is also the payer, can't be paid.
+     *
+     * @param payingUserId
+     * @param paidUserIds
+     * @return true if any user appears more than once
+     */
+    public static boolean hasDuplicateParticipants(long payingUserId, long[] paidUserIds) {
+
+        long[] participants = Arrays.copyOf(paidUserIds, paidUserIds.length + 1);
+        participants[paidUserIds.length] = payingUserId;
+        Arrays.sort(participants);
+
+        for (int i = 1; i < participants.length; i++) {
+            if (participants[i] == participants[i - 1]) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param tranStatus what happened to an earlier submission of a
+     *                   Transaction_id
+     * @return what we tell a client that submits it again: DONE_CODE if it
+     *         worked, PENDING_CODE or PAYERDONE_CODE if it's still in flight,
+     *         and ALREADY_SUBMITTED_CODE if it failed.
+     */
+    public static byte getResubmissionCode(String tranStatus) {
+
+        if (tranStatus.equals(DONE_MESSAGE)) {
+            return DONE_CODE;
+        } else if (tranStatus.equals(PENDING_MESSAGE)) {
+            return PENDING_CODE;
+        } else if (tranStatus.equals(PAYERDONE_MESSAGE)) {
+            return PAYERDONE_CODE;
+        }
+
+        return ALREADY_SUBMITTED_CODE;
+    }
+
     public VoltTable[] run(long payingUserId, long payingAmount, long txnId, TimestampType effectiveDate,
             int involvedUserCount) throws VoltAbortException {
 
@@ -78,8 +169,7 @@ public class StartTransactionPayer extends VoltProcedure {
         }
 
         this.voltQueueSQL(getUser, payingUserId);
-        this.voltQueueSQL(getDoneTransactions, payingUserId);
-        this.voltQueueSQL(getReleventPendingTransactions, payingUserId);
+        this.voltQueueSQL(getRunningTotal, payingUserId);
 
         VoltTable[] userQueryResults = voltExecuteSQL();
 
@@ -91,15 +181,14 @@ public class StartTransactionPayer extends VoltProcedure {
 
         long availableCredit = userQueryResults[0].getLong("balance_amount");
 
-        for (int i = 1; i < 2; i++) {
-            if (userQueryResults[i].advanceRow()) {
-                long transactionValue = userQueryResults[i].getLong("completed_transactions");
-
-                if (!userQueryResults[i].wasNull()) {
-                    availableCredit = availableCredit + transactionValue;
-                }
+        // DONE transactions plus money already promised to in-flight ones...
+        if (userQueryResults[1].advanceRow()) {
+            long transactionValue = userQueryResults[1].getLong("completed_transactions");
 
+            if (!userQueryResults[1].wasNull()) {
+                availableCredit = availableCredit + transactionValue;
             }
+
         }
 
         if (availableCredit + payingAmount < 0) {
@@ -109,7 +198,7 @@ public class StartTransactionPayer extends VoltProcedure {
         }
 
         this.voltQueueSQL(startTransaction, payingUserId, payingUserId, payingAmount, txnId, effectiveDate,
-                effectiveDate, involvedUserCount, effectiveDate);
+                effectiveDate, involvedUserCount, getStaleDate(getTransactionTime()));
 
         this.setAppStatusCode(StartTransactionPayer.PENDING_CODE);
         this.setAppStatusString(StartTransactionPayer.PENDING_MESSAGE);
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2025 Volt Active Data Inc.
+ *
+ * Use of this source code is governed by an MIT
+ * license that can be found in the LICENSE file or at
+ * https://opensource.org/licenses/MIT.
+ */
+package nwayprocedures;
+
+import org.voltdb.SQLStmt;
+import org.voltdb.VoltProcedure;
+import org.voltdb.VoltTable;
+
+/**
+ * Upsert any number of promBL_latency_stats rows in one call. Row i is made
+ * from element i of each array. promBL_latency_stats is partitioned on
+ * statname, so this is multi partition, but it means a client only makes one
+ * call per flush no matter how many stats it has.
+ */
+public class UpsertStats extends VoltProcedure {
+
+    public static final SQLStmt upsertStat = new SQLStmt(
+            "UPSERT INTO promBL_latency_stats (statname, stathelp, event_type, event_name, statvalue,lastdate) VALUES (?,?,?,?,?,NOW);");
+
+    public VoltTable[] run(String[] statnames, String[] stathelps, String[] eventTypes, String[] eventNames,
+            long[] statvalues) throws VoltAbortException {
+
+        if (statnames.length != stathelps.length || statnames.length != eventTypes.length
+                || statnames.length != eventNames.length || statnames.length != statvalues.length) {
+            throw new VoltAbortException("UpsertStats: arrays must all be the same length");
+        }
+
+        for (int i = 0; i < statnames.length; i++) {
+            voltQueueSQL(upsertStat, statnames[i], stathelps[i], eventTypes[i], eventNames[i], statvalues[i]);
+        }
+
+        return voltExecuteSQL(true);
+    }
+
+}
@@ -19,10 +19,13 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.voltdb.VoltType;
 import org.voltdb.client.Client;
 import org.voltdb.client.ClientResponse;
+import org.voltdb.client.ClientResponseWithPartitionKey;
 import org.voltdb.client.ProcCallException;
 
+import nwayprocedures.CompoundPayment;
 import nwayprocedures.SetTransactionEntryDone;
 import nwayprocedures.StartTransactionPayer;
 import nwaysettlement.client.TestClient;
@@ -31,7 +34,8 @@ class UnitTests {
 
     // final String HOSTNAME = "34.249.100.202";
     final String HOSTNAME = "localhost";
-    final String[] tablesToDelete = { "user_balances", "user_transactions" };
+    final String[] tablesToDelete = { "user_balances", "user_transactions", "user_balances_snapshot",
+            "settlement_header", "local_settlement" };
     Client c = null;
 
     @BeforeAll
@@ -209,29 +213,497 @@ class UnitTests {
 
     }
 
+    @Test
+    void resubmissionTest() {
+
+        msg("resubmissionTest");
+
+        long payerId = 1;
+        long[] amounts = { 100, 50 };
+        Date effectiveDate = new Date(System.currentTimeMillis() + 10000);
+
+        createBalance(payerId, 5000);
+
+        // Co-located payees go through SettleLocalPayment, the others through
+        // the settlement header
+        boolean[] colocatedCases = { true, false };
+        long expectedBalance = 5000;
+
+        try {
+            for (int txnId = 1; txnId <= colocatedCases.length; txnId++) {
+
+                long[] payeeId = { findUser(payerId, colocatedCases[txnId - 1], 1), 0 };
+                payeeId[1] = findUser(payerId, colocatedCases[txnId - 1], payeeId[0]);
+
+                if (payeeId[0] < 0 || payeeId[1] < 0) {
+                    msg("Not enough partitions to test colocated=" + colocatedCases[txnId - 1]);
+                    continue;
+                }
+
+                for (long element : payeeId) {
+                    createBalance(element, 500);
+                }
+
+                for (int i = 0; i < 3; i++) {
+
+                    ClientResponse cr = c.callProcedure("CompoundPayment", payerId, txnId, payeeId, amounts,
+                            effectiveDate);
+
+                    if (cr.getAppStatus() != StartTransactionPayer.DONE_CODE) {
+                        fail("resubmission of a DONE payment should say DONE");
+                    }
+                }
+
+                if (checkStatus(txnId, StartTransactionPayer.DONE_MESSAGE) != 3) {
+                    fail("wrong number of DONE rows");
+                }
+
+                expectedBalance -= 150;
+
+                // Once CompactBalances has folded the DONE rows away a
+                // resubmission still mustn't pay again
+                c.callAllPartitionProcedure("CompactBalances", 1000, 0);
+
+                ClientResponse cr = c.callProcedure("CompoundPayment", payerId, txnId, payeeId, amounts,
+                        effectiveDate);
+
+                if (cr.getAppStatus() != StartTransactionPayer.DONE_CODE) {
+                    fail("resubmission after compaction should say DONE");
+                }
+
+                if (getBalance(payerId) != expectedBalance) {
+                    fail("paid more than once, colocated=" + colocatedCases[txnId - 1]);
+                }
+            }
+
+        } catch (IOException e) {
+            fail(e);
+        } catch (ProcCallException e) {
+            fail(e);
+        }
+
+    }
+
+    @Test
+    void largeFanOutTest() {
+
+        msg("largeFanOutTest");
+
+        long payerId = 1;
+        long txnId = 1;
+        long[] payeeId = new long[250];
+        long[] amounts = new long[250];
+        Date effectiveDate = new Date(System.currentTimeMillis() + 10000);
+
+        createBalance(payerId, 5000);
+
+        for (int i = 0; i < payeeId.length; i++) {
+            payeeId[i] = i + 2;
+            amounts[i] = 10;
+            createBalance(payeeId[i], 500);
+        }
+
+        try {
+            ClientResponse cr = c.callProcedure("CompoundPayment", payerId, txnId, payeeId, amounts, effectiveDate);
+            if (cr.getAppStatus() != StartTransactionPayer.DONE_CODE) {
+                fail("should not get here");
+            }
+
+            if (checkStatus(txnId, "DONE") != payeeId.length + 1) {
+                fail("done not reported");
+            }
+
+            if (getBalance(payerId) != 2500) {
+                fail("wrong balance");
+            }
+
+            if (getBalance(payeeId[payeeId.length - 1]) != 510) {
+                fail("wrong balance");
+            }
+
+        } catch (IOException e) {
+            fail(e);
+        } catch (ProcCallException e) {
+            fail(e);
+        }
+
+    }
+
+    @Test
+    void stagedFanOutTest() {
+
+        msg("stagedFanOutTest");
+
+        long payerId = 1;
+        long txnId = 1;
+
+        // Enough partition groups that launching and finishing each take
+        // more than one stage
+        final int payeeCount = CompoundPayment.MAX_CALLS_PER_STAGE * CompoundPayment.MAX_USERS_PER_CALL + 1;
+        long[] payeeId = new long[payeeCount];
+        long[] amounts = new long[payeeCount];
+
+        createBalance(payerId, payeeCount * 2);
+
+        for (int i = 0; i < payeeId.length; i++) {
+            payeeId[i] = i + 2;
+            amounts[i] = 1;
+            createBalance(payeeId[i], 500);
+        }
+
+        try {
+            // Loading that many balances takes a while, so set this now
+            Date effectiveDate = new Date(System.currentTimeMillis() + 10000);
+
+            ClientResponse cr = c.callProcedure("CompoundPayment", payerId, txnId, payeeId, amounts, effectiveDate);
+            if (cr.getAppStatus() != StartTransactionPayer.DONE_CODE) {
+                fail("should not get here");
+            }
+
+            if (checkStatus(txnId, "DONE") != payeeId.length + 1) {
+                fail("done not reported");
+            }
+
+            if (getBalance(payerId) != payeeCount) {
+                fail("wrong balance");
+            }
+
+            // Not enough money for this one, so everything it started has
+            // to be cleaned up
+            for (int i = 0; i < amounts.length; i++) {
+                amounts[i] = 2;
+            }
+
+            cr = c.callProcedure("CompoundPayment", payerId, txnId + 1, payeeId, amounts, effectiveDate);
+            if (cr.getAppStatus() != StartTransactionPayer.NOT_ENOUGH_MONEY_CODE) {
+                fail("should not get here");
+            }
+
+            if (checkStatus(txnId + 1, "PENDING") != 0) {
+                fail("PENDING rows left behind");
+            }
+
+            if (getBalance(payerId) != payeeCount) {
+                fail("wrong balance");
+            }
+
+        } catch (IOException e) {
+            fail(e);
+        } catch (ProcCallException e) {
+            fail(e);
+        }
+
+    }
+
+    @Test
+    void resetTest() {
+
+        msg("resetTest");
+
+        createBalance(1, 1000);
+
+        try {
+            c.callAllPartitionProcedure("SnapshotBalances");
+
+            createBalance(1, 5);
+            createTransaction(1, 1, 2, -10, "PENDING", 2);
+
+            c.callProcedure("ResetTransactions");
+
+            if (checkStatus(1, "PENDING") != 0) {
+                fail("transactions not removed");
+            }
+
+            c.callAllPartitionProcedure("RestoreBalances");
+
+            if (getBalance(1) != 1000) {
+                fail("wrong balance");
+            }
+
+        } catch (IOException e) {
+            fail(e);
+        } catch (ProcCallException e) {
+            fail(e);
+        }
+
+    }
+
+    @Test
+    void upsertStatsTest() {
+
+        msg("upsertStatsTest");
+
+        String[] statnames = { "unittest", "unittest", "unittest2" };
+        String[] stathelps = { "unittest", "unittest", "unittest2" };
+        String[] eventTypes = { "test", "test", "test" };
+        String[] eventNames = { "a", "b", "c" };
+        long[] statvalues = { 1, 2, 3 };
+
+        try {
+            c.callProcedure("UpsertStats", statnames, stathelps, eventTypes, eventNames, statvalues);
+
+            ClientResponse cr = c.callProcedure("@AdHoc",
+                    "SELECT SUM(statvalue) how_much FROM promBL_latency_stats WHERE statname LIKE 'unittest%';");
+            cr.getResults()[0].advanceRow();
+
+            if (cr.getResults()[0].getLong("how_much") != 6) {
+                fail("stats not written");
+            }
+
+        } catch (IOException e) {
+            fail(e);
+        } catch (ProcCallException e) {
+            fail(e);
+        }
+
+        try {
+            c.callProcedure("UpsertStats", statnames, stathelps, eventTypes, eventNames, new long[] { 1 });
+            fail("mismatched arrays accepted");
+        } catch (IOException e) {
+            fail(e);
+        } catch (ProcCallException e) {
+            msg("Got expected error " + e.getMessage());
+        }
+
+    }
+
+    @Test
+    void batchSmokeTest() {
+
+        msg("batchSmokeTest");
+
+        long[] payerIds = { 1l, 4l };
+        long[] txnIds = { 1l, 2l };
+        long[] payeeCounts = { 2l, 1l };
+        long[] payeeIds = { 2l, 3l, 2l };
+        long[] amounts = { 100, 50, 10 };
+        Date effectiveDate = new Date(System.currentTimeMillis() + 10000);
+
+        createBalance(1, 5000);
+        createBalance(4, 5);
+
+        for (long element : payeeIds) {
+            createBalance(element, 500);
+        }
+
+        try {
+            ClientResponse cr = c.callProcedure("CompoundPaymentBatch", payerIds, txnIds, payeeCounts, payeeIds,
+                    amounts, effectiveDate);
+
+            // Second transfer can't be afforded...
+            if (cr.getAppStatus() != StartTransactionPayer.NOT_ENOUGH_MONEY_CODE) {
+                fail("should not get here");
+            }
+
+            cr.getResults()[0].advanceRow();
+            if (cr.getResults()[0].getLong("status_code") != StartTransactionPayer.DONE_CODE) {
+                fail("first transfer should be DONE");
+            }
+
+            cr.getResults()[0].advanceRow();
+            if (cr.getResults()[0].getLong("status_code") != StartTransactionPayer.NOT_ENOUGH_MONEY_CODE) {
+                fail("second transfer should fail");
+            }
+
+            if (getBalance(1) != 4850) {
+                fail("wrong balance");
+            }
+
+            if (getBalance(2) != 600) {
+                fail("wrong balance");
+            }
+
+            if (getBalance(3) != 550) {
+                fail("wrong balance");
+            }
+
+            if (getBalance(4) != 5) {
+                fail("wrong balance");
+            }
+
+        } catch (IOException e) {
+            fail(e);
+        } catch (ProcCallException e) {
+            fail(e);
+        }
+
+    }
+
+    @Test
+    void groupSmokeTest() {
+
+        msg("groupSmokeTest");
+
+        long payerId = 1;
+        long otherPayee1 = findUser(payerId, false, 1);
+
+        if (otherPayee1 < 0) {
+            msg("Only one partition, so no headers");
+            return;
+        }
+
+        long otherPayee2 = findUser(payerId, false, otherPayee1);
+        long localPayee = findUser(payerId, true, 1);
+
+        // Not co-located with its payee, so it gets a header
+        long poorPayer = findUser(otherPayee1, false, Math.max(otherPayee2, localPayee));
+
+        long[] payerIds = { payerId, payerId, poorPayer };
+        long[] txnIds = { 1l, 2l, 3l };
+        long[] payeeCounts = { 2l, 1l, 1l };
+        long[] payeeIds = { otherPayee1, otherPayee2, localPayee, otherPayee1 };
+        long[] amounts = { 100, 50, 20, 10 };
+        Date effectiveDate = new Date(System.currentTimeMillis() + 10000);
+
+        createBalance(payerId, 5000);
+        createBalance(poorPayer, 5);
+        createBalance(otherPayee1, 500);
+        createBalance(otherPayee2, 500);
+        createBalance(localPayee, 500);
+
+        try {
+            ClientResponse cr = c.callProcedure("CompoundPaymentGroup", payerIds, txnIds, payeeCounts, payeeIds,
+                    amounts, effectiveDate);
+
+            // Third transfer can't be afforded...
+            if (cr.getAppStatus() != StartTransactionPayer.NOT_ENOUGH_MONEY_CODE) {
+                fail("should not get here");
+            }
+
+            cr.getResults()[0].advanceRow();
+            if (cr.getResults()[0].getLong("status_code") != StartTransactionPayer.DONE_CODE) {
+                fail("first transfer should be DONE");
+            }
+
+            cr.getResults()[0].advanceRow();
+            if (cr.getResults()[0].getLong("status_code") != StartTransactionPayer.DONE_CODE) {
+                fail("co-located transfer should be DONE");
+            }
+
+            cr.getResults()[0].advanceRow();
+            if (cr.getResults()[0].getLong("status_code") != StartTransactionPayer.NOT_ENOUGH_MONEY_CODE) {
+                fail("third transfer should fail");
+            }
+
+            if (!StartTransactionPayer.DONE_MESSAGE.equals(getHeaderStatus(1))) {
+                fail("header not DONE");
+            }
+
+            if (!StartTransactionPayer.CANTSTART.equals(getHeaderStatus(3))) {
+                fail("header not CANTSTART");
+            }
+
+            // Sending the same group again changes nothing, and the
+            // transfers that worked still look like they worked
+            cr = c.callProcedure("CompoundPaymentGroup", payerIds, txnIds, payeeCounts, payeeIds, amounts,
+                    effectiveDate);
+
+            cr.getResults()[0].advanceRow();
+            if (cr.getResults()[0].getLong("status_code") != StartTransactionPayer.DONE_CODE) {
+                fail("resubmitted transfer should be DONE");
+            }
+
+            cr.getResults()[0].advanceRow();
+            if (cr.getResults()[0].getLong("status_code") != StartTransactionPayer.DONE_CODE) {
+                fail("resubmitted co-located transfer should be DONE");
+            }
+
+            cr.getResults()[0].advanceRow();
+            if (cr.getResults()[0].getLong("status_code") != StartTransactionPayer.ALREADY_SUBMITTED_CODE) {
+                fail("resubmitted failure not reported");
+            }
+
+            if (getBalance(payerId) != 4830) {
+                fail("wrong balance");
+            }
+
+            if (getBalance(otherPayee1) != 600) {
+                fail("wrong balance");
+            }
+
+            if (getBalance(otherPayee2) != 550) {
+                fail("wrong balance");
+            }
+
+            if (getBalance(localPayee) != 520) {
+                fail("wrong balance");
+            }
+
+            if (getBalance(poorPayer) != 5) {
+                fail("wrong balance");
+            }
+
+        } catch (IOException e) {
+            fail(e);
+        } catch (ProcCallException e) {
+            fail(e);
+        }
+
+    }
+
     @Test
     void missingPayee() {
 
-        msg("missingPayee");
+        msg("missingPayee");
+
+        long payerId = 1;
+        long txnId = 1;
+        long[] payeeId = { 2l, 3l };
+        long[] amounts = { 100, 50 };
+        Date effectiveDate = new Date(System.currentTimeMillis() + 10000);
+
+        createBalance(payerId, 5000);
+
+        for (long element : payeeId) {
+            createBalance(element, 500);
+        }
+
+        payeeId[1] = 42; // Payee 2 is wrong
+
+        try {
+            ClientResponse cr = c.callProcedure("CompoundPayment", payerId, txnId, payeeId, amounts, effectiveDate);
+            if (cr.getAppStatus() != StartTransactionPayer.NO_SUCH_USER_CODE) {
+                fail("should not get here");
+            }
+
+        } catch (IOException e) {
+            fail(e);
+        } catch (ProcCallException e) {
+            fail(e);
+        }
+
+    }
+
+    @Test
+    void duplicatePayee() {
+
+        msg("duplicatePayee");
 
         long payerId = 1;
-        long txnId = 1;
-        long[] payeeId = { 2l, 3l };
+        long payee = findUser(payerId, true, 1);
         long[] amounts = { 100, 50 };
         Date effectiveDate = new Date(System.currentTimeMillis() + 10000);
 
         createBalance(payerId, 5000);
+        createBalance(payee, 500);
 
-        for (long element : payeeId) {
-            createBalance(element, 500);
-        }
+        try {
+            ClientResponse cr = c.callProcedure("StartTransactionPayees", payee, new long[] { payee, payee },
+                    payerId, amounts, 1, effectiveDate);
 
-        payeeId[1] = 42; // Payee 2 is wrong
+            if (cr.getAppStatus() != StartTransactionPayer.DUPLICATE_PARTICIPANT_CODE) {
+                fail("duplicate payee accepted by StartTransactionPayees");
+            }
 
-        try {
-            ClientResponse cr = c.callProcedure("CompoundPayment", payerId, txnId, payeeId, amounts, effectiveDate);
-            if (cr.getAppStatus() != StartTransactionPayer.NO_SUCH_USER_CODE) {
-                fail("should not get here");
+            cr = c.callProcedure("SettleLocalPayment", payerId, 2, new long[] { payee, payee }, amounts,
+                    effectiveDate);
+
+            if (cr.getAppStatus() != StartTransactionPayer.DUPLICATE_PARTICIPANT_CODE) {
+                fail("duplicate payee accepted by SettleLocalPayment");
+            }
+
+            if (getBalance(payee) != 500) {
+                fail("wrong balance");
             }
 
         } catch (IOException e) {
@@ -240,6 +712,17 @@ class UnitTests {
             fail(e);
         }
 
+        try {
+            c.callProcedure("CompoundPayment", payerId, 3, new long[] { payee, payerId }, amounts, effectiveDate);
+            fail("should not get here");
+        } catch (IOException e) {
+            fail(e);
+        } catch (ProcCallException e) {
+            if (!e.getMessage().endsWith(StartTransactionPayer.DUPLICATE_PARTICIPANT_MESSAGE)) {
+                fail(e.getMessage());
+            }
+        }
+
     }
 
     @Test
@@ -280,8 +763,8 @@ class UnitTests {
 
         long payerId = 1;
         long txnId = 1;
-        long[] payeeId = new long[11];
-        long[] amounts = new long[11];
+        long[] payeeId = new long[StartTransactionPayer.MAX_PAYEES + 1];
+        long[] amounts = new long[StartTransactionPayer.MAX_PAYEES + 1];
         Date effectiveDate = new Date();
 
         try {
@@ -415,6 +898,59 @@ class UnitTests {
 
     }
     
+    @Test
+    void localOrphanTask() {
+
+        msg("localOrphanTask");
+
+        long payerId = 1;
+        long payee = findUser(payerId, true, 1);
+        long txnId = 1;
+
+        final long payerPartition = c.getPartitionForParameter(VoltType.BIGINT.getValue(), payerId);
+
+        // Reports mustn't depend on where the Transaction_id hashes to, so
+        // pick one that isn't in the payer's partition if we can
+        for (long i = 1; i < 100; i++) {
+            if (c.getPartitionForParameter(VoltType.BIGINT.getValue(), i) != payerPartition) {
+                txnId = i;
+                break;
+            }
+        }
+
+        createBalance(payerId, 5000);
+        createBalance(payee, 500);
+        disableTask();
+
+        createTransaction(txnId, payerId, payerId, -100, "PENDING", 2);
+        createTransaction(txnId, payee, payerId, 100, "PENDING", null);
+
+        try {
+            Thread.sleep(SetTransactionEntryDone.TX_FINISH_GRACE_WINDOW_MS + 1000);
+
+            ClientResponseWithPartitionKey[] responses = c.callAllPartitionProcedure("EndLocalOrphanedTransactions",
+                    100, 0);
+
+            for (ClientResponseWithPartitionKey response : responses) {
+                if (response.response.getStatus() != ClientResponse.SUCCESS) {
+                    fail(response.response.getStatusString());
+                }
+            }
+
+            if (checkStatus(txnId, "FAILED") != 2) {
+                fail("FAILED not reported");
+            }
+
+            if (getBalance(payerId) != 5000) {
+                fail("wrong balance");
+            }
+
+        } catch (Exception e) {
+            fail(e);
+        }
+
+    }
+
     @Test
     void wrongNumberOfOParticipantsInTableOrphanTask() {
 
@@ -469,6 +1005,301 @@ class UnitTests {
 
     }
     
+    @Test
+    void settlementHeaderTest() {
+
+        msg("settlementHeaderTest");
+
+        long payerId = 1;
+        long[] payeeId = { findUser(payerId, false, 1), 0 };
+        long[] amounts = { 100, 50 };
+        Date effectiveDate = new Date(System.currentTimeMillis() + 10000);
+
+        if (payeeId[0] < 0) {
+            msg("Only one partition, so no headers");
+            return;
+        }
+
+        payeeId[1] = findUser(payerId, false, payeeId[0]);
+
+        createBalance(payerId, 5000);
+
+        for (long element : payeeId) {
+            createBalance(element, 500);
+        }
+
+        try {
+            c.callProcedure("CompoundPayment", payerId, 1, payeeId, amounts, effectiveDate);
+
+            if (!StartTransactionPayer.DONE_MESSAGE.equals(getHeaderStatus(1))) {
+                fail("header not DONE");
+            }
+
+            payeeId[1] = findUser(payerId, false, payeeId[1]); // Payee 2 doesn't exist
+
+            c.callProcedure("CompoundPayment", payerId, 2, payeeId, amounts, effectiveDate);
+
+            if (!StartTransactionPayer.CANTSTART.equals(getHeaderStatus(2))) {
+                fail("header not CANTSTART");
+            }
+
+            if (checkStatus(2, StartTransactionPayer.CANTSTART) != 2) {
+                fail("entries not CANTSTART");
+            }
+
+            ClientResponse cr = c.callProcedure("CompoundPayment", payerId, 2, payeeId, amounts, effectiveDate);
+
+            if (cr.getAppStatus() != StartTransactionPayer.ALREADY_SUBMITTED_CODE
+                    || !cr.getAppStatusString().equals(StartTransactionPayer.CANTSTART)) {
+                fail("resubmission not reported");
+            }
+
+        } catch (IOException e) {
+            fail(e);
+        } catch (ProcCallException e) {
+            fail(e);
+        }
+
+    }
+
+    @Test
+    void colocatedPaymentTest() {
+
+        msg("colocatedPaymentTest");
+
+        long payerId = 1;
+        long[] payeeId = { findUser(payerId, true, 1), 0 };
+        long[] amounts = { 100, 50 };
+        Date effectiveDate = new Date(System.currentTimeMillis() + 10000);
+
+        payeeId[1] = findUser(payerId, true, payeeId[0]);
+
+        createBalance(payerId, 5000);
+
+        for (long element : payeeId) {
+            createBalance(element, 500);
+        }
+
+        try {
+            ClientResponse cr = c.callProcedure("CompoundPayment", payerId, 1, payeeId, amounts, effectiveDate);
+
+            if (cr.getAppStatus() != StartTransactionPayer.DONE_CODE) {
+                fail("should not get here");
+            }
+
+            if (checkStatus(1, StartTransactionPayer.DONE_MESSAGE) != 3) {
+                fail("entries not DONE");
+            }
+
+            if (getHeaderStatus(1) != null) {
+                fail("co-located payments don't need a header");
+            }
+
+            if (getBalance(payerId) != 4850) {
+                fail("wrong balance");
+            }
+
+            if (getBalance(payeeId[1]) != 550) {
+                fail("wrong balance");
+            }
+
+            final long otherPartitionUser = findUser(payerId, false, 1);
+
+            if (otherPartitionUser > 0) {
+
+                cr = c.callProcedure("SettleLocalPayment", payerId, 2, new long[] { otherPartitionUser },
+                        new long[] { 1 }, effectiveDate);
+
+                if (cr.getAppStatus() != StartTransactionPayer.NOT_COLOCATED_CODE) {
+                    fail("payee in another partition accepted");
+                }
+            }
+
+        } catch (IOException e) {
+            fail(e);
+        } catch (ProcCallException e) {
+            fail(e);
+        }
+
+    }
+
+    @Test
+    void resolveSettlementTest() {
+
+        msg("resolveSettlementTest");
+
+        long payerId = 1;
+        long txnId = 1;
+        long[] payeeId = { 2l, 3l };
+        long[] amounts = { 100, 50 };
+        long[] participants = { 2l, 3l, payerId };
+
+        createBalance(payerId, 5000);
+
+        for (long element : payeeId) {
+            createBalance(element, 500);
+        }
+
+        createTransaction(txnId, payerId, payerId, -150, "PAYERDONE", 3);
+
+        for (int i = 0; i < payeeId.length; i++) {
+            createTransaction(txnId, payeeId[i], payerId, amounts[i], "PENDING", null);
+        }
+
+        try {
+            c.callProcedure("StartSettlementHeader", txnId, payerId, participants, 150);
+
+            ClientResponse cr = c.callProcedure("ResolveSettlement", txnId);
+
+            if (cr.getResults()[0].asScalarLong() != 1) {
+                fail("nothing resolved");
+            }
+
+            if (checkStatus(txnId, "DONE") != 3) {
+                fail("done not reported");
+            }
+
+            if (!getHeaderStatus(txnId).equals(StartTransactionPayer.DONE_MESSAGE)) {
+                fail("header not DONE");
+            }
+
+            if (getBalance(payerId) != 4850) {
+                fail("wrong balance");
+            }
+
+            // A payer that never got to PAYERDONE is cancelled, and so are
+            // its payees
+            createTransaction(2, payerId, payerId, -150, "PENDING", 3);
+
+            for (int i = 0; i < payeeId.length; i++) {
+                createTransaction(2, payeeId[i], payerId, amounts[i], "PENDING", null);
+            }
+
+            c.callProcedure("StartSettlementHeader", 2, payerId, participants, 150);
+            c.callProcedure("ResolveSettlement", 2);
+
+            if (checkStatus(2, "FAILED") != 3) {
+                fail("not cancelled");
+            }
+
+            if (!getHeaderStatus(2).equals(StartTransactionPayer.STALE)) {
+                fail("header not STALE");
+            }
+
+            // A payer that got to PAYERDONE first is left alone
+            createTransaction(3, payerId, payerId, -150, "PAYERDONE", 3);
+
+            cr = c.callProcedure("CancelPendingPayer", payerId, 3, "test");
+
+            if (!cr.getAppStatusString().equals(StartTransactionPayer.PAYERDONE_MESSAGE)
+                    || checkStatus(3, "PAYERDONE") != 1) {
+                fail("PAYERDONE payer cancelled");
+            }
+
+            // A payer with no row gets a FAILED one, so it can't start later
+            c.callProcedure("CancelPendingPayer", payerId, 4, "test");
+
+            if (checkStatus(4, "FAILED") != 1) {
+                fail("missing payer not fenced");
+            }
+
+        } catch (IOException e) {
+            fail(e);
+        } catch (ProcCallException e) {
+            fail(e);
+        }
+
+    }
+
+    @Test
+    void racingResolveSettlementTest() {
+
+        msg("racingResolveSettlementTest");
+
+        final int paymentCount = 50;
+        long payerId = 1;
+        long[] payeeId = { findUser(payerId, false, 1), 0 };
+        long[] amounts = { 100, 50 };
+        Date effectiveDate = new Date(System.currentTimeMillis() + 10000);
+
+        if (payeeId[0] < 0) {
+            msg("Only one partition, so nothing to race");
+            return;
+        }
+
+        payeeId[1] = findUser(payerId, false, payeeId[0]);
+
+        createBalance(payerId, 50000);
+
+        for (long element : payeeId) {
+            createBalance(element, 500);
+        }
+
+        try {
+            // A header that has finished is reported as such, not as a
+            // late payment
+            c.callProcedure("StartSettlementHeader", 0, payerId, new long[] { payerId }, 0);
+            c.callProcedure("SetSettlementHeaderStatus", 0, StartTransactionPayer.DONE_MESSAGE, null);
+
+            ClientResponse cr = c.callProcedure("SetSettlementHeaderStatus", 0,
+                    StartTransactionPayer.PAYERDONE_MESSAGE, null);
+
+            if (cr.getAppStatus() != StartTransactionPayer.HEADER_FINISHED_CODE
+                    || !cr.getAppStatusString().equals(StartTransactionPayer.DONE_MESSAGE)) {
+                fail("finished header not reported");
+            }
+
+            // Whichever of CompoundPayment and ResolveSettlement gets there
+            // first, a payment must end up entirely DONE or not DONE at all,
+            // and CompoundPayment must only say DONE if it is
+            final ClientResponse[] paymentResponses = new ClientResponse[paymentCount + 1];
+
+            for (int txnId = 1; txnId <= paymentCount; txnId++) {
+                final int thisTxnId = txnId;
+                c.callProcedure(response -> paymentResponses[thisTxnId] = response, "CompoundPayment", payerId,
+                        txnId, payeeId, amounts, effectiveDate);
+                c.callProcedure(response -> {
+                }, "ResolveSettlement", txnId);
+            }
+
+            c.drain();
+
+            long doneCount = 0;
+
+            for (int txnId = 1; txnId <= paymentCount; txnId++) {
+
+                final long doneEntries = checkStatus(txnId, StartTransactionPayer.DONE_MESSAGE);
+
+                if (doneEntries != 0 && doneEntries != 3) {
+                    fail("settlement " + txnId + " split, " + doneEntries + " entries DONE");
+                }
+
+                if (paymentResponses[txnId].getAppStatus() == StartTransactionPayer.DONE_CODE) {
+
+                    if (doneEntries != 3) {
+                        fail("settlement " + txnId + " reported DONE but isn't");
+                    }
+
+                    if (!StartTransactionPayer.DONE_MESSAGE.equals(getHeaderStatus(txnId))) {
+                        fail("header " + txnId + " not DONE");
+                    }
+                }
+
+                if (doneEntries == 3) {
+                    doneCount++;
+                }
+            }
+
+            if (getBalance(payerId) != 50000 - (doneCount * 150)) {
+                fail("wrong balance");
+            }
+
+        } catch (Exception e) {
+            fail(e);
+        }
+
+    }
+
     @Test
     void wrongAmountsInTableOrphanTask() {
 
@@ -554,7 +1385,7 @@ class UnitTests {
             
              c.callProcedure("user_transactions.INSERT",   userId,  otherUserId,tranAmount,  txId
                      , new Date(System.currentTimeMillis() + 10000)
-                     , new Date(System.currentTimeMillis() + 120000)
+                     , StartTransactionPayer.getStaleDate(new Date())
                     , status,"createTransaction",  new Date(),  new Date(), userCount,null);
         } catch (Exception e) {
             fail(e);
@@ -594,6 +1425,38 @@ class UnitTests {
         return balanceAmount;
     }
     
+    private String getHeaderStatus(long txId) {
+
+        String headerStatus = null;
+        try {
+            ClientResponse cr = c.callProcedure("GetSettlementHeader", txId);
+            if (cr.getResults()[0].advanceRow()) {
+                headerStatus = cr.getResults()[0].getString("header_status");
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+
+        return headerStatus;
+    }
+
+    /**
+     * @return the first userid after startAfter that is (or isn't) in the
+     *         same partition as userId, or -1 if there isn't one.
+     */
+    private long findUser(long userId, boolean samePartition, long startAfter) {
+
+        final long userPartition = c.getPartitionForParameter(VoltType.BIGINT.getValue(), userId);
+
+        for (long candidate = startAfter + 1; candidate < startAfter + 10000; candidate++) {
+            if ((c.getPartitionForParameter(VoltType.BIGINT.getValue(), candidate) == userPartition) == samePartition) {
+                return candidate;
+            }
+        }
+
+        return -1;
+    }
+
     private long checkStatus(long txId, String status) {
 
         long statusCount = -1;
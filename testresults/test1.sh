@@ -1,6 +1,8 @@
 #!/bin/sh
 
-for i in 1 5 10 20 22 24 26 28 30 32 34 36 38 40  ; do java -jar NWayClient.jar `cat /home/ubuntu/.vdbhostnames` $i 100000 9000000 15 15 2 0 > $i.lst ; sleep 120; done
-
-
+# Load balances once and save them, then put them back before each run
+# instead of loading them again
+java -cp NWayClient.jar nwaysettlement.client.BalanceLoader `cat /home/ubuntu/.vdbhostnames` 100000 0 1000000 1
+java -cp NWayClient.jar nwaysettlement.client.BenchmarkReset `cat /home/ubuntu/.vdbhostnames` snapshot
 
+for i in 1 5 10 20 22 24 26 28 30 32 34 36 38 40  ; do java -jar NWayClient.jar `cat /home/ubuntu/.vdbhostnames` $i 100000 9000000 15 15 2 0 1 uniform sequential 0 any restore > $i.lst ; sleep 120; done